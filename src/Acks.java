@@ -0,0 +1,13 @@
+// When a publish to a replicated topic counts as done.
+// Followers always replicate in the background; only ALL makes the publish wait for them.
+public enum Acks {
+    // Returns once the leader has appended it, the same point as LEADER: brokers are in-process, so
+    // handing the record to the leader is the append. Failures are not reported and no offset is
+    // returned; it saves no time on the publishing thread, which still waits out the append, a
+    // flush and, for BLOCK topics, room in the log.
+    NONE,
+    // Once the leader has appended it
+    LEADER,
+    // Once every in-sync replica has it, so it survives the loss of any minInSyncReplicas - 1 nodes
+    ALL
+}
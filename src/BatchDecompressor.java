@@ -0,0 +1,64 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Expands compressed batches on the consumer side. Inner records are handed over through one
+// reusable view with their absolute offset and the batch's timestamp written in, so handlers see
+// them exactly like uncompressed records. The batch as a whole is covered by the outer record's CRC.
+// Not thread-safe; each consumer keeps its own.
+public class BatchDecompressor{
+    private final RecordView inner;
+    private ByteBuffer buffer;
+
+    public BatchDecompressor() {
+        this.inner = new RecordView();
+    }
+
+    // Hands handler each record in record at or after fromOffset, expanding it first if it is a
+    // compressed batch. Returns the number of records handed over.
+    public int forEach(RecordView record, long fromOffset, RecordHandler handler){
+        if(!record.isCompressedBatch()){
+            if(record.offset() < fromOffset){
+                return 0;
+            }
+            handler.onRecord(record);
+            return 1;
+        }
+        CompressionCodec codec = CompressionCodecs.forId(record.compressionCodecId());
+        ByteBuffer source = record.buffer();
+        int valuePosition = record.valuePosition();
+        int uncompressedBytes = source.getInt(valuePosition + Integer.BYTES);
+        if(buffer == null || buffer.capacity() < uncompressedBytes){
+            buffer = ByteBuffer.allocate(Math.max(uncompressedBytes, buffer == null ? 0 : 2 * buffer.capacity()));
+        }
+        buffer.clear().limit(uncompressedBytes);
+        codec.decompress(source.duplicate().limit(valuePosition + record.valueLength())
+                .position(valuePosition + CompressedBatch.HEADER_BYTES), buffer);
+
+        long baseOffset = CompressedBatch.baseOffset(record);
+        long timestamp = record.timestamp();
+        int handled = 0;
+        int position = 0;
+        while(position < uncompressedBytes){
+            inner.wrap(buffer, position);
+            long offset = baseOffset + inner.offset();
+            position += inner.sizeInBytes();
+            if(offset >= fromOffset){
+                buffer.putLong(inner.position() + RecordFormat.OFFSET_POSITION, offset);
+                buffer.putLong(inner.position() + RecordFormat.TIMESTAMP_POSITION, timestamp);
+                handler.onRecord(inner);
+                handled++;
+            }
+        }
+        return handled;
+    }
+
+    // A handler that adds the records from fromOffset on to out as Messages, up to maxMessages.
+    public RecordHandler collect(long fromOffset, int maxMessages, List<Message> out){
+        RecordHandler add = record -> {
+            if(out.size() < maxMessages){
+                out.add(record.toMessage());
+            }
+        };
+        return record -> forEach(record, fromOffset, add);
+    }
+}
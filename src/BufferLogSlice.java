@@ -0,0 +1,48 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+public class BufferLogSlice implements LogSlice{
+    static final BufferLogSlice EMPTY = new BufferLogSlice(null, ByteBuffer.allocate(0), 0);
+
+    private final LogSegment segment;
+    private final ByteBuffer buffer;
+    private final int recordCount;
+
+    public BufferLogSlice(LogSegment segment, ByteBuffer buffer, int recordCount) {
+        this.segment = segment;
+        this.buffer = buffer;
+        this.recordCount = recordCount;
+    }
+
+    @Override
+    public int sizeInBytes() {
+        return buffer.remaining();
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    // Points view at each record in turn and hands it to handler.
+    public void read(RecordView view, RecordHandler handler){
+        for(int scan = buffer.position(); scan < buffer.limit(); scan += Integer.BYTES + buffer.getInt(scan)){
+            handler.onRecord(view.wrap(buffer, scan));
+        }
+    }
+
+    @Override
+    public void transferTo(WritableByteChannel target) throws IOException {
+        ByteBuffer view = buffer.duplicate();
+        while(view.hasRemaining()){
+            target.write(view);
+        }
+    }
+
+    @Override
+    public void release() {
+        if(segment != null){
+            segment.releaseSlice();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Recycles the direct buffers backing in-memory segments so rolling and retention do not
+// keep allocating (and later freeing) off-heap memory.
+public class BufferPool{
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free;
+    private final AtomicInteger pooled;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.free = new ConcurrentLinkedQueue<>();
+        this.pooled = new AtomicInteger();
+    }
+
+    public ByteBuffer acquire(){
+        ByteBuffer buffer = free.poll();
+        if(buffer == null){
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return buffer.clear();
+    }
+
+    public void release(ByteBuffer buffer){
+        if(buffer.capacity() == bufferSize && pooled.incrementAndGet() <= maxPooled){
+            free.offer(buffer);
+        } else if(buffer.capacity() == bufferSize) {
+            pooled.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
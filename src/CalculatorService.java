@@ -0,0 +1,9 @@
+// Interface defining the remote procedures
+public interface CalculatorService {
+    @Idempotent
+    int add(int a, int b);
+    @Idempotent
+    int subtract(int a, int b);
+    @Idempotent
+    int multiply(int a, int b);
+}
@@ -0,0 +1,17 @@
+// Server implementation of the calculator service
+public class CalculatorServiceImpl implements CalculatorService {
+    @Override
+    public int add(int a, int b) {
+        return a + b;
+    }
+
+    @Override
+    public int subtract(int a, int b) {
+        return a - b;
+    }
+
+    @Override
+    public int multiply(int a, int b) {
+        return a * b;
+    }
+}
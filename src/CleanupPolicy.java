@@ -0,0 +1,8 @@
+public enum CleanupPolicy {
+    // Old segments go only through retention
+    DELETE,
+    // Closed segments are rewritten in the background to keep just the latest record per key, and
+    // neighbours merged as they shrink. A compressed batch stays compressed until one of its records
+    // is superseded; the survivors are then kept as uncompressed records.
+    COMPACT
+}
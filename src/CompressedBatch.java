@@ -0,0 +1,51 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+// A producer batch compressed as a unit and stored as the value of a single record:
+// [int recordCount][int uncompressedBytes][compressed records]
+// The inner records use the ordinary record layout, with offsets relative to the batch's first
+// record and no timestamp. The log gives the outer record the offset of the last inner record,
+// so lookups for any offset in the batch land on it, and stamps it with the append time. It then
+// travels through the log, replication and fetches untouched; only consumers expand it.
+public class CompressedBatch{
+    static final int HEADER_BYTES = 8;
+
+    private CompressedBatch() {}
+
+    public static ByteBuffer encode(List<Message> messages, CompressionCodec codec){
+        List<ByteBuffer[]> fields = new ArrayList<>(messages.size());
+        int uncompressedBytes = 0;
+        for(Message message: messages){
+            ByteBuffer[] record = {Message.utf8(message.getKey()), Message.utf8(message.getContent()),
+                    RecordHeaders.forProducer(message.getProducerId())};
+            uncompressedBytes += RecordFormat.sizeOf(record[0], record[1], record[2]);
+            fields.add(record);
+        }
+        ByteBuffer records = ByteBuffer.allocate(uncompressedBytes);
+        ByteBuffer crcView = records.duplicate();
+        CRC32C crc = new CRC32C();
+        int position = 0;
+        for(int i = 0; i < fields.size(); i++){
+            ByteBuffer[] record = fields.get(i);
+            position += RecordFormat.write(records, position, i, 0, record[0], record[1], record[2], crcView, crc);
+        }
+        ByteBuffer batch = ByteBuffer.allocate(HEADER_BYTES + codec.maxCompressedLength(uncompressedBytes));
+        batch.putInt(messages.size()).putInt(uncompressedBytes);
+        codec.compress(records, batch);
+        return batch.flip();
+    }
+
+    // Offset of the first record in record, which is record itself unless it is a compressed batch.
+    public static long baseOffset(RecordView record){
+        if(!record.isCompressedBatch()){
+            return record.offset();
+        }
+        return record.offset() - (recordCount(record) - 1);
+    }
+
+    public static int recordCount(RecordView record){
+        return record.buffer().getInt(record.valuePosition());
+    }
+}
@@ -0,0 +1,13 @@
+import java.nio.ByteBuffer;
+
+// Compresses a producer batch as a unit. The id is what ends up in the attributes of the record
+// holding the batch, so it must be registered with CompressionCodecs on every node that reads it.
+public interface CompressionCodec{
+    // 1-7
+    int id();
+    int maxCompressedLength(int length);
+    // Compresses src's remaining bytes into dst, which has at least maxCompressedLength of them remaining.
+    void compress(ByteBuffer src, ByteBuffer dst);
+    // Expands src's remaining bytes into dst, which has exactly the uncompressed length remaining.
+    void decompress(ByteBuffer src, ByteBuffer dst);
+}
@@ -0,0 +1,36 @@
+import java.util.zip.Deflater;
+
+// Codecs by the id found in record attributes. Deflate and LZ4 are always there; others can be added
+// under a free id before any batch using them is produced or read.
+public class CompressionCodecs{
+    static final CompressionCodec DEFLATE = new DeflateCodec(Deflater.BEST_SPEED);
+    static final CompressionCodec LZ4 = new Lz4Codec();
+
+    private static final CompressionCodec[] CODECS = new CompressionCodec[RecordFormat.COMPRESSION_CODEC_MASK + 1];
+
+    static {
+        register(DEFLATE);
+        register(LZ4);
+    }
+
+    private CompressionCodecs() {}
+
+    public static synchronized void register(CompressionCodec codec){
+        int id = codec.id();
+        if(id <= 0 || id >= CODECS.length){
+            throw new IllegalArgumentException("Codec id must be in [1, " + (CODECS.length - 1) + "] but was " + id);
+        }
+        if(CODECS[id] != null && CODECS[id] != codec){
+            throw new IllegalArgumentException("Codec id " + id + " is already taken by " + CODECS[id].getClass().getSimpleName());
+        }
+        CODECS[id] = codec;
+    }
+
+    public static synchronized CompressionCodec forId(int id){
+        CompressionCodec codec = id > 0 && id < CODECS.length ? CODECS[id] : null;
+        if(codec == null){
+            throw new IllegalStateException("No compression codec registered for id " + id);
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,8 @@
+// How RPCServer limits the calls it has taken on at once, queued or running. A call over the limit
+// is answered OVERLOADED as soon as it arrives, which costs next to nothing, rather than waiting in
+// the queue until its caller has given up on it.
+public enum ConcurrencyLimit {
+    NONE,     // only the worker queue's capacity
+    AIMD,     // +1 while calls meet their deadlines and the limit is in use, -10% whenever one misses
+    GRADIENT  // scaled by long-run over recent latency, so it shrinks as soon as queueing delay builds up
+}
@@ -0,0 +1,88 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The adaptive limit of one server. Every admitted call is a sample: how long it took from being
+// read to being answered, queueing included, and whether it missed its deadline, having been
+// skipped or finished too late. Calls that were never run but say nothing about load (rejected by
+// a full queue) are ignored.
+public class ConcurrencyLimiter {
+    private static final double AIMD_BACKOFF = 0.9;
+    // Recent latency may run this far above the long-run average before the limit shrinks
+    private static final double GRADIENT_TOLERANCE = 1.5;
+    private static final double GRADIENT_SMOOTHING = 0.2;
+    private static final double RECENT_LATENCY_WEIGHT = 0.1;
+    private static final double LONG_RUN_LATENCY_WEIGHT = 0.01;
+
+    private final ConcurrencyLimit algorithm;
+    private final int maxLimit;
+    private final AtomicInteger inFlight;
+    private volatile double limit;
+    // Guarded by this
+    private double recentLatencyNanos;
+    private double longRunLatencyNanos;
+
+    ConcurrencyLimiter(ConcurrencyLimit algorithm, int initialLimit, int maxLimit) {
+        this.algorithm = algorithm;
+        this.maxLimit = maxLimit;
+        this.inFlight = new AtomicInteger();
+        this.limit = initialLimit;
+    }
+
+    // On true the caller must report the call through onComplete or onIgnore
+    boolean tryAcquire() {
+        if (algorithm == ConcurrencyLimit.NONE) {
+            return true;
+        }
+        if (inFlight.incrementAndGet() > (int) limit) {
+            inFlight.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    void onIgnore() {
+        if (algorithm != ConcurrencyLimit.NONE) {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    void onComplete(long latencyNanos, boolean missedDeadline) {
+        if (algorithm == ConcurrencyLimit.NONE) {
+            return;
+        }
+        int inFlightBefore = inFlight.getAndDecrement();
+        synchronized (this) {
+            if (algorithm == ConcurrencyLimit.AIMD) {
+                if (missedDeadline) {
+                    limit = Math.max(1, limit * AIMD_BACKOFF);
+                } else if (inFlightBefore * 2 >= limit) {
+                    limit = Math.min(maxLimit, limit + 1);
+                }
+                return;
+            }
+            if (longRunLatencyNanos == 0) {
+                recentLatencyNanos = latencyNanos;
+                longRunLatencyNanos = latencyNanos;
+            }
+            recentLatencyNanos += (latencyNanos - recentLatencyNanos) * RECENT_LATENCY_WEIGHT;
+            longRunLatencyNanos += (latencyNanos - longRunLatencyNanos) * LONG_RUN_LATENCY_WEIGHT;
+            // Once load drops the long-run average comes back down quickly rather than over hundreds of samples
+            if (longRunLatencyNanos > 2 * recentLatencyNanos) {
+                longRunLatencyNanos *= 0.95;
+            }
+            // With most of the limit unused, latency says nothing about whether it is too high
+            if (inFlightBefore * 2 < limit && !missedDeadline) {
+                return;
+            }
+            double gradient = missedDeadline ? 0.5
+                    : Math.max(0.5, Math.min(1.0, GRADIENT_TOLERANCE * longRunLatencyNanos / recentLatencyNanos));
+            // The square root leaves room for a short queue, so the limit can also grow
+            double target = limit * gradient + Math.sqrt(limit);
+            limit = Math.max(1, Math.min(maxLimit, limit * (1 - GRADIENT_SMOOTHING) + target * GRADIENT_SMOOTHING));
+        }
+    }
+
+    // Integer.MAX_VALUE with no limit
+    int getLimit() {
+        return algorithm == ConcurrencyLimit.NONE ? Integer.MAX_VALUE : (int) limit;
+    }
+}
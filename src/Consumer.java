@@ -0,0 +1,135 @@
+import java.util.concurrent.atomic.LongAdder;
+
+public class Consumer implements Runnable {
+    static final int MAX_POLL_MESSAGES = 100;
+    static final long IDLE_BACKOFF_MS = 10;
+
+    private final String id;
+    private final String groupId;
+    private final QueueSystem queueSystem;
+    private final RecordView recordView;
+    private final BatchDecompressor decompressor;
+    private final LongAdder recordsConsumed;
+    private final LatencyHistogram processingLatency;
+    private final LatencyHistogram endToEndLatency;
+    private final LongAdder pollErrors;
+    // Cleared when the consumer is unsubscribed, which ends its poll loop
+    private volatile boolean running;
+
+    // A consumer without an explicit group gets its own, so it sees every message of its topics.
+    public Consumer(String id, QueueSystem queueSystem) {
+        this(id, id, queueSystem);
+    }
+
+    public Consumer(String id, String groupId, QueueSystem queueSystem) {
+        this.id = id;
+        this.groupId = groupId;
+        this.queueSystem = queueSystem;
+        this.recordView = new RecordView();
+        this.decompressor = new BatchDecompressor();
+        MetricsRegistry metrics = queueSystem.getMetrics();
+        this.recordsConsumed = metrics.counter(MetricName.of("consumer", "records-consumed", "group", groupId, "consumer", id));
+        this.processingLatency = metrics.histogram(MetricName.of("consumer", "processing-latency-ns", "group", groupId, "consumer", id));
+        this.endToEndLatency = metrics.histogram(MetricName.of("consumer", "end-to-end-latency-ms", "group", groupId, "consumer", id));
+        this.pollErrors = metrics.counter(MetricName.of("consumer", "poll-errors", "group", groupId, "consumer", id));
+    }
+
+    public void subscribe(String topicName) {
+        queueSystem.subscribeConsumer(topicName, this);
+    }
+
+    // Moves this consumer's group to the records appended at or after timestamp; call before subscribe.
+    public void seekToTimestamp(String topicName, long timestamp){
+        queueSystem.seekToTimestamp(groupId, topicName, timestamp);
+    }
+
+    public void onMessageAvailable(Message message, Topic topic){
+        System.out.println(id + " received " + message.getContent() + " on topic " + topic.getName());
+    }
+
+    // Called for every record with a view that is reused for the next one. Override this instead of
+    // onMessageAvailable to consume without allocating per message.
+    public void onRecord(RecordView record, Topic topic){
+        onMessageAvailable(record.toMessage(), topic);
+    }
+
+    // Fetches one batch from each assigned partition, starting at the group's committed offset,
+    // and commits past the batch once it has been handled. Returns the number of messages handled.
+    public int poll(){
+        ConsumerGroup group = queueSystem.getConsumerGroup(groupId);
+        if(group == null){
+            return 0;
+        }
+        int handled = 0;
+        long[] nextOffset = new long[1];
+        for(TopicPartition topicPartition: group.getAssignment(this)){
+            Topic topic = group.getTopic(topicPartition.getTopic());
+            // Retention may have deleted the committed position; resume from the oldest retained message
+            long offset = Math.max(group.getCommittedOffset(topicPartition),
+                    topic.getLogStartOffset(topicPartition.getPartition()));
+            RecordHandler handler = record -> handle(record, topic);
+            // A compressed batch counts as one read but may hold many records
+            int read = topic.read(topicPartition.getPartition(), offset, MAX_POLL_MESSAGES, recordView, record -> {
+                nextOffset[0] = record.offset() + 1;
+                decompressor.forEach(record, offset, handler);
+            });
+            if(read > 0){
+                // The view's buffer may be recycled once read returns, so the offset was taken in the handler
+                group.commit(topicPartition, nextOffset[0]);
+                handled += read;
+            }
+        }
+        return handled;
+    }
+
+    private void handle(RecordView record, Topic topic){
+        long timestamp = record.timestamp();
+        long start = System.nanoTime();
+        onRecord(record, topic);
+        recordProcessed(timestamp, System.nanoTime() - start);
+    }
+
+    // End-to-end latency runs from the append timestamp to the end of processing, so it includes
+    // time spent in the log and, for ParallelConsumer, time queued behind other records of the key.
+    void recordProcessed(long appendTimestamp, long processingNanos){
+        recordsConsumed.increment();
+        processingLatency.record(processingNanos);
+        endToEndLatency.record(System.currentTimeMillis() - appendTimestamp);
+    }
+
+    // A poll that threw, e.g. from onRecord; polling goes on as if it had found nothing
+    void recordPollError(){
+        pollErrors.increment();
+    }
+
+    @Override
+    public void run() {
+        while(running && !Thread.currentThread().isInterrupted()){
+            int handled = 0;
+            try{
+                handled = poll();
+            } catch (RuntimeException e){
+                recordPollError();
+            }
+            try{
+                if(handled == 0){
+                    Thread.sleep(IDLE_BACKOFF_MS);
+                }
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    void setRunning(boolean running) {
+        this.running = running;
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Members of a group split the partitions of every topic they subscribe to, and the group
+// remembers how far it has committed on each partition so a new owner resumes where the old one stopped.
+public class ConsumerGroup{
+    private final String groupId;
+    private final Map<String, Topic> topics;
+    private final Map<String, List<Consumer>> members;
+    private final ConcurrentHashMap<TopicPartition, Long> committedOffsets;
+    private final MetricsRegistry metrics;
+    private volatile Map<Consumer, List<TopicPartition>> assignment;
+
+    public ConsumerGroup(String groupId, MetricsRegistry metrics) {
+        this.groupId = groupId;
+        this.metrics = metrics;
+        this.topics = new HashMap<>();
+        this.members = new LinkedHashMap<>();
+        this.committedOffsets = new ConcurrentHashMap<>();
+        this.assignment = Collections.emptyMap();
+    }
+
+    public synchronized void join(Consumer consumer, Topic topic){
+        if(topics.putIfAbsent(topic.getName(), topic) == null){
+            topic.registerConsumerGroup(this);
+            registerLagGauges(topic);
+        }
+        List<Consumer> topicMembers = members.computeIfAbsent(topic.getName(), name -> new ArrayList<>());
+        if(!topicMembers.contains(consumer)){
+            topicMembers.add(consumer);
+            rebalance();
+        }
+    }
+
+    public synchronized void leave(Consumer consumer){
+        boolean removed = false;
+        for(List<Consumer> topicMembers: members.values()){
+            removed |= topicMembers.remove(consumer);
+        }
+        if(removed){
+            rebalance();
+        }
+    }
+
+    // Partitions of each topic are dealt round-robin across the members subscribed to it.
+    private void rebalance(){
+        Map<Consumer, List<TopicPartition>> newAssignment = new HashMap<>();
+        for(Map.Entry<String, List<Consumer>> entry: members.entrySet()){
+            List<Consumer> topicMembers = entry.getValue();
+            if(topicMembers.isEmpty()){
+                continue;
+            }
+            Topic topic = topics.get(entry.getKey());
+            for(int partition = 0; partition < topic.getPartitionCount(); partition++){
+                Consumer owner = topicMembers.get(partition % topicMembers.size());
+                newAssignment.computeIfAbsent(owner, c -> new ArrayList<>())
+                        .add(new TopicPartition(topic.getName(), partition));
+            }
+        }
+        assignment = newAssignment;
+    }
+
+    private void registerLagGauges(Topic topic){
+        for(int partition = 0; partition < topic.getPartitionCount(); partition++){
+            TopicPartition topicPartition = new TopicPartition(topic.getName(), partition);
+            metrics.gauge(MetricName.of("consumer-group", "lag", "group", groupId, "topic", topic.getName(),
+                    "partition", String.valueOf(partition)), () -> getLag(topicPartition));
+        }
+        metrics.gauge(MetricName.of("consumer-group", "lag-total", "group", groupId, "topic", topic.getName()),
+                () -> getTotalLag(topic.getName()));
+    }
+
+    // Messages appended to the partition that the group has not committed yet. Offsets already
+    // removed by retention are not counted, since the group can never read them.
+    public long getLag(TopicPartition topicPartition){
+        Topic topic = getTopic(topicPartition.getTopic());
+        if(topic == null){
+            return 0;
+        }
+        int partition = topicPartition.getPartition();
+        long position = Math.max(getCommittedOffset(topicPartition), topic.getLogStartOffset(partition));
+        return Math.max(0, topic.getLogEndOffset(partition) - position);
+    }
+
+    public long getTotalLag(String topicName){
+        Topic topic = getTopic(topicName);
+        if(topic == null){
+            return 0;
+        }
+        long lag = 0;
+        for(int partition = 0; partition < topic.getPartitionCount(); partition++){
+            lag += getLag(new TopicPartition(topicName, partition));
+        }
+        return lag;
+    }
+
+    public List<TopicPartition> getAssignment(Consumer consumer){
+        return assignment.getOrDefault(consumer, Collections.emptyList());
+    }
+
+    public long getCommittedOffset(TopicPartition topicPartition){
+        return committedOffsets.getOrDefault(topicPartition, 0L);
+    }
+
+    // Commits only move forward, so a late commit from a previous owner cannot rewind the group.
+    public void commit(TopicPartition topicPartition, long offset){
+        committedOffsets.merge(topicPartition, offset, Math::max);
+    }
+
+    // Unlike commit, this can move the position backwards. Meant for resetting the group before its
+    // consumers start, since a poll already in progress will still commit past it.
+    public void seek(TopicPartition topicPartition, long offset){
+        committedOffsets.put(topicPartition, offset);
+    }
+
+    public Topic getTopic(String topicName){
+        synchronized (this) {
+            return topics.get(topicName);
+        }
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs consumer polling without a thread per subscription. The bounded mode multiplexes all
+// consumers over a fixed pool: each poll is one task, re-queued straight away if it found data
+// and after a short back-off if not. The virtual-thread mode gives every consumer its own cheap
+// thread running the blocking Consumer.run loop.
+public class ConsumerScheduler{
+    private final ScheduledExecutorService pollers;
+    private final ExecutorService virtualThreads;
+
+    private ConsumerScheduler(ScheduledExecutorService pollers, ExecutorService virtualThreads) {
+        this.pollers = pollers;
+        this.virtualThreads = virtualThreads;
+    }
+
+    public static ConsumerScheduler bounded(int threads){
+        AtomicInteger threadIds = new AtomicInteger();
+        return new ConsumerScheduler(Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "consumer-poller-" + threadIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }), null);
+    }
+
+    public static ConsumerScheduler virtualThreads(){
+        return new ConsumerScheduler(null, Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    // Cancelling the returned future stops scheduling the consumer. A pooled poll already under way
+    // finishes; a virtual thread is interrupted if the cancel asks for it.
+    public Future<?> start(Consumer consumer){
+        if(virtualThreads != null){
+            return virtualThreads.submit(consumer);
+        }
+        CompletableFuture<Void> polling = new CompletableFuture<>();
+        pollers.execute(() -> pollOnce(consumer, polling));
+        return polling;
+    }
+
+    private void pollOnce(Consumer consumer, Future<?> polling){
+        if(polling.isCancelled()){
+            return;
+        }
+        int handled = 0;
+        try {
+            handled = consumer.poll();
+        } catch (RuntimeException e) {
+            consumer.recordPollError();
+        }
+        try {
+            if(polling.isCancelled()){
+                return;
+            }
+            if(handled > 0){
+                pollers.execute(() -> pollOnce(consumer, polling));
+            } else {
+                pollers.schedule(() -> pollOnce(consumer, polling), Consumer.IDLE_BACKOFF_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // Scheduler is shutting down
+        }
+    }
+
+    public void shutdown() throws InterruptedException {
+        ExecutorService executor = virtualThreads != null ? virtualThreads : pollers;
+        executor.shutdownNow();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,58 @@
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Raw deflate via java.util.zip. Compresses repetitive text harder than LZ4 at several times the CPU.
+// Deflater and Inflater hold native state, so each thread keeps one of each and resets it per batch.
+public class DeflateCodec implements CompressionCodec{
+    static final int ID = 1;
+
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters;
+
+    public DeflateCodec(int level) {
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+        this.inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    // zlib's compressBound, plus a little for the final empty block of a raw stream
+    @Override
+    public int maxCompressedLength(int length) {
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 16;
+    }
+
+    @Override
+    public void compress(ByteBuffer src, ByteBuffer dst) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(src);
+        deflater.finish();
+        while(!deflater.finished()){
+            if(deflater.deflate(dst) == 0 && !dst.hasRemaining()){
+                throw new IllegalArgumentException("Compressed batch does not fit in " + dst.capacity() + " bytes");
+            }
+        }
+    }
+
+    @Override
+    public void decompress(ByteBuffer src, ByteBuffer dst) {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(src);
+        try {
+            while(dst.hasRemaining()){
+                if(inflater.inflate(dst) == 0 && (inflater.finished() || inflater.needsInput())){
+                    throw new IllegalStateException("Compressed batch ended " + dst.remaining() + " bytes short");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt deflate batch", e);
+        }
+    }
+}
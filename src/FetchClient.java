@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Blocking client for FetchServer. The response buffer is reused across fetches and only grows
+// when a single record is larger than anything fetched before.
+public class FetchClient implements AutoCloseable{
+    private final SocketChannel channel;
+    private final ByteBuffer request;
+    private final ByteBuffer header;
+    private final RecordView view;
+    private final BatchDecompressor decompressor;
+    private ByteBuffer records;
+    private short lastErrorCode;
+    private long lastLogStartOffset;
+    private long lastLogEndOffset;
+    private long lastHighWatermark;
+
+    public FetchClient(String host, int port) throws IOException {
+        this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        this.request = ByteBuffer.allocate(Short.BYTES + Short.MAX_VALUE + FetchProtocol.REQUEST_FIXED_BYTES);
+        this.header = ByteBuffer.allocate(FetchProtocol.RESPONSE_HEADER_BYTES);
+        this.view = new RecordView();
+        this.decompressor = new BatchDecompressor();
+        this.records = ByteBuffer.allocateDirect(64 * 1024);
+    }
+
+    // Returns the fetched messages, with compressed batches expanded; the offset to fetch next is one
+    // past the last message's offset.
+    public List<Message> fetch(String topicName, int partition, long offset, int maxBytes) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        fetch(topicName, partition, offset, maxBytes, decompressor.collect(offset, Integer.MAX_VALUE, messages));
+        return messages;
+    }
+
+    // Hands each fetched record to handler through the client's reusable view; returns the number fetched.
+    // Records arrive as stored, so a compressed batch comes as one record for a BatchDecompressor to expand.
+    public int fetch(String topicName, int partition, long offset, int maxBytes, RecordHandler handler) throws IOException {
+        return fetch(topicName, partition, offset, maxBytes, FetchProtocol.CONSUMER_REPLICA_ID, handler);
+    }
+
+    // Fetch on behalf of follower replicaId, which reads past the high watermark and reports its
+    // progress to the leader. The response's offsets are available from the getLast* methods.
+    public int fetch(String topicName, int partition, long offset, int maxBytes, int replicaId, RecordHandler handler) throws IOException {
+        byte[] topicBytes = topicName.getBytes(StandardCharsets.UTF_8);
+        request.clear();
+        request.putShort((short) topicBytes.length).put(topicBytes).putInt(partition).putLong(offset).putInt(maxBytes)
+                .putInt(replicaId);
+        FetchProtocol.writeFully(channel, request.flip());
+
+        header.clear();
+        FetchProtocol.readFully(channel, header);
+        header.flip();
+        lastErrorCode = header.getShort();
+        lastLogStartOffset = header.getLong();
+        lastLogEndOffset = header.getLong();
+        lastHighWatermark = header.getLong();
+        int size = header.getInt();
+        if(lastErrorCode == FetchProtocol.UNKNOWN_TOPIC_OR_PARTITION){
+            throw new IllegalArgumentException("Unknown topic partition " + topicName + "-" + partition);
+        }
+        if(lastErrorCode == FetchProtocol.OFFSET_OUT_OF_RANGE){
+            throw new IllegalArgumentException("Offset " + offset + " is outside [" + lastLogStartOffset + ", " + lastLogEndOffset + "]");
+        }
+        if(lastErrorCode == FetchProtocol.NOT_LEADER_FOR_PARTITION){
+            throw new IllegalStateException("Server is not the leader of " + topicName + "-" + partition);
+        }
+        if(records.capacity() < size){
+            records = ByteBuffer.allocateDirect(size);
+        }
+        records.clear().limit(size);
+        FetchProtocol.readFully(channel, records);
+
+        int count = 0;
+        int position = 0;
+        while(position < size){
+            view.wrap(records, position);
+            if(!view.isValid()){
+                throw new IOException("Corrupt record at offset " + view.offset());
+            }
+            handler.onRecord(view);
+            position += view.sizeInBytes();
+            count++;
+        }
+        return count;
+    }
+
+    public short getLastErrorCode() {
+        return lastErrorCode;
+    }
+
+    public long getLastLogStartOffset() {
+        return lastLogStartOffset;
+    }
+
+    public long getLastLogEndOffset() {
+        return lastLogEndOffset;
+    }
+
+    public long getLastHighWatermark() {
+        return lastHighWatermark;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
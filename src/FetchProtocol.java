@@ -0,0 +1,35 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// Wire format shared by FetchServer and FetchClient.
+// Request:  [short topicLength][topic][int partition][long offset][int maxBytes][int replicaId]
+// Response: [short errorCode][long logStartOffset][long logEndOffset][long highWatermark][int size][size bytes of records]
+// Consumers send replicaId -1 and only see records below the high watermark; followers send their
+// node id, which also tells the leader how far they have replicated.
+public class FetchProtocol{
+    static final short NONE = 0;
+    static final short UNKNOWN_TOPIC_OR_PARTITION = 1;
+    static final short OFFSET_OUT_OF_RANGE = 2;
+    static final short NOT_LEADER_FOR_PARTITION = 3;
+    static final int CONSUMER_REPLICA_ID = -1;
+    static final int REQUEST_FIXED_BYTES = 20;
+    static final int RESPONSE_HEADER_BYTES = 30;
+
+    private FetchProtocol() {}
+
+    static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer) < 0){
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+
+    static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+
+// Serves fetch requests for remote consumers. Record bytes are sent straight from the
+// partition's segment file with FileChannel.transferTo; only the small headers pass through the heap.
+public class FetchServer{
+    private final QueueSystem queueSystem;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService executorService;
+
+    public FetchServer(QueueSystem queueSystem, int port, ExecutorService executorService) throws IOException {
+        this.queueSystem = queueSystem;
+        this.executorService = executorService;
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+    }
+
+    public void start(){
+        executorService.submit(() -> {
+            while(serverChannel.isOpen()){
+                try {
+                    SocketChannel client = serverChannel.accept();
+                    executorService.submit(() -> serve(client));
+                } catch (IOException e) {
+                    if(serverChannel.isOpen()){
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    private void serve(SocketChannel client){
+        ByteBuffer request = ByteBuffer.allocate(Short.BYTES + Short.MAX_VALUE + FetchProtocol.REQUEST_FIXED_BYTES);
+        ByteBuffer header = ByteBuffer.allocate(FetchProtocol.RESPONSE_HEADER_BYTES);
+        try (client) {
+            client.socket().setTcpNoDelay(true);
+            while(!Thread.currentThread().isInterrupted()){
+                request.clear().limit(Short.BYTES);
+                FetchProtocol.readFully(client, request);
+                int topicLength = request.getShort(0);
+                if(topicLength < 0){
+                    // No client sends this; the rest of the stream cannot be framed, so hang up
+                    return;
+                }
+                request.limit(Short.BYTES + topicLength + FetchProtocol.REQUEST_FIXED_BYTES);
+                FetchProtocol.readFully(client, request);
+                request.flip().position(Short.BYTES);
+                byte[] topicBytes = new byte[topicLength];
+                request.get(topicBytes);
+                String topicName = new String(topicBytes, StandardCharsets.UTF_8);
+                int partition = request.getInt();
+                long offset = request.getLong();
+                int maxBytes = request.getInt();
+                int replicaId = request.getInt();
+                handleFetch(client, header, topicName, partition, offset, maxBytes, replicaId);
+            }
+        } catch (EOFException | ClosedChannelException e) {
+            // Consumer disconnected or the server is shutting down
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handleFetch(SocketChannel client, ByteBuffer header, String topicName,
+                             int partition, long offset, int maxBytes, int replicaId) throws IOException {
+        Topic topic = queueSystem.getTopic(topicName);
+        header.clear();
+        if(topic == null || partition < 0 || partition >= topic.getPartitionCount()){
+            writeError(client, header, FetchProtocol.UNKNOWN_TOPIC_OR_PARTITION, -1, -1, -1);
+            return;
+        }
+        boolean follower = replicaId != FetchProtocol.CONSUMER_REPLICA_ID;
+        if(follower && !topic.recordFollowerFetch(partition, replicaId, offset)){
+            writeError(client, header, FetchProtocol.NOT_LEADER_FOR_PARTITION, -1, -1, -1);
+            return;
+        }
+        long logStartOffset = topic.getLogStartOffset(partition);
+        long logEndOffset = topic.getLogEndOffset(partition);
+        long highWatermark = topic.getHighWatermark(partition);
+        // Followers copy everything the leader has; consumers only what is committed
+        long endOffset = follower ? logEndOffset : highWatermark;
+        if(offset < logStartOffset || offset > endOffset){
+            writeError(client, header, FetchProtocol.OFFSET_OUT_OF_RANGE, logStartOffset, endOffset, highWatermark);
+            return;
+        }
+        LogSlice slice;
+        try {
+            slice = topic.slice(partition, offset, endOffset, maxBytes);
+        } catch (IllegalStateException e) {
+            // The segment was closed between the range check and the slice; the client refetches
+            // from the new log start
+            writeError(client, header, FetchProtocol.OFFSET_OUT_OF_RANGE, topic.getLogStartOffset(partition), endOffset, highWatermark);
+            return;
+        }
+        try {
+            header.putShort(FetchProtocol.NONE).putLong(logStartOffset).putLong(logEndOffset).putLong(highWatermark)
+                    .putInt(slice.sizeInBytes());
+            FetchProtocol.writeFully(client, header.flip());
+            slice.transferTo(client);
+        } finally {
+            slice.release();
+        }
+    }
+
+    private static void writeError(SocketChannel client, ByteBuffer header, short errorCode, long logStartOffset,
+                                   long logEndOffset, long highWatermark) throws IOException {
+        header.putShort(errorCode).putLong(logStartOffset).putLong(logEndOffset).putLong(highWatermark).putInt(0);
+        FetchProtocol.writeFully(client, header.flip());
+    }
+
+    public int getPort(){
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void close(){
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class FileLogSlice implements LogSlice{
+    private final LogSegment segment;
+    private final FileChannel channel;
+    private final long position;
+    private final int size;
+
+    public FileLogSlice(LogSegment segment, FileChannel channel, long position, int size) {
+        this.segment = segment;
+        this.channel = channel;
+        this.position = position;
+        this.size = size;
+    }
+
+    @Override
+    public int sizeInBytes() {
+        return size;
+    }
+
+    @Override
+    public void transferTo(WritableByteChannel target) throws IOException {
+        long sent = 0;
+        while(sent < size){
+            sent += channel.transferTo(position + sent, size - sent, target);
+        }
+    }
+
+    @Override
+    public void release() {
+        segment.releaseSlice();
+    }
+}
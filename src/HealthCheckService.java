@@ -0,0 +1,7 @@
+// Built into every RPCServer under a reserved service id, so clients can probe a server without
+// knowing what it serves. ping answers with the nonce it was sent.
+public interface HealthCheckService {
+    int SERVICE_ID = ServiceDescriptor.MAX_SERVICE_ID;
+
+    int ping(int nonce);
+}
@@ -0,0 +1,11 @@
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Marks a service method whose result depends only on its arguments, and which has no side effects
+// a caller relies on, so a result can be reused for the same arguments: by CachingRPCCaller on the
+// client, and by an RPCServer with a result cache.
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent {}
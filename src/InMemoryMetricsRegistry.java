@@ -0,0 +1,65 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public class InMemoryMetricsRegistry implements MetricsRegistry{
+    private final ConcurrentHashMap<MetricName, Object> metrics = new ConcurrentHashMap<>();
+
+    @Override
+    public LongAdder counter(MetricName name) {
+        return getOrRegister(name, LongAdder.class, new LongAdder());
+    }
+
+    @Override
+    public LatencyHistogram histogram(MetricName name) {
+        return getOrRegister(name, LatencyHistogram.class, new LatencyHistogram());
+    }
+
+    // A gauge registered again replaces the old one, e.g. when a topic is recreated.
+    @Override
+    public void gauge(MetricName name, LongSupplier value) {
+        remove(name);
+        if(metrics.putIfAbsent(name, value) == null){
+            onRegistered(name, value);
+        }
+    }
+
+    private <T> T getOrRegister(MetricName name, Class<T> type, T created){
+        Object existing = metrics.putIfAbsent(name, created);
+        if(existing == null){
+            onRegistered(name, created);
+            return created;
+        }
+        if(!type.isInstance(existing)){
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + existing.getClass().getSimpleName());
+        }
+        return type.cast(existing);
+    }
+
+    @Override
+    public void remove(MetricName name) {
+        if(metrics.remove(name) != null){
+            onRemoved(name);
+        }
+    }
+
+    @Override
+    public Map<MetricName, Object> getMetrics() {
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    @Override
+    public void close() {
+        for(MetricName name: metrics.keySet()){
+            remove(name);
+        }
+    }
+
+    protected void onRegistered(MetricName name, Object metric){
+    }
+
+    protected void onRemoved(MetricName name){
+    }
+}
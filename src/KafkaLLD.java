@@ -1,152 +1,569 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-
-class Message{
-    private final String content;
-    private final String producerId;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+// Publishes every metric as an MBean named <domain>:type=<group>,<tags>,name=<name>, so the
+// numbers show up in JConsole/VisualVM or any JMX exporter without extra wiring.
+class JmxMetricsRegistry extends InMemoryMetricsRegistry{
+    private final MBeanServer server;
+    private final String domain;
+
+    public JmxMetricsRegistry(String domain) {
+        this(ManagementFactory.getPlatformMBeanServer(), domain);
+    }
 
-    public Message(String content, String producerId) {
-        this.content = content;
-        this.producerId = producerId;
+    public JmxMetricsRegistry(MBeanServer server, String domain) {
+        this.server = server;
+        this.domain = domain;
     }
 
-    public String getProducerId() {
-        return producerId;
+    @Override
+    protected void onRegistered(MetricName name, Object metric) {
+        try {
+            server.registerMBean(new MetricMBean(name, metric), objectName(name));
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register " + name + " with JMX", e);
+        }
     }
 
-    public String getContent() {
-        return content;
+    @Override
+    protected void onRemoved(MetricName name) {
+        try {
+            server.unregisterMBean(objectName(name));
+        } catch (JMException e) {
+            // Already unregistered
+        }
     }
-}
 
-class Topic{
-    private final String name;
-    private final BlockingQueue<Message> messages;
-    private final List<Consumer> subscribers;
+    private ObjectName objectName(MetricName name) throws MalformedObjectNameException {
+        StringBuilder builder = new StringBuilder(domain).append(":type=").append(name.getGroup());
+        for(Map.Entry<String, String> tag: name.getTags().entrySet()){
+            builder.append(',').append(tag.getKey()).append('=').append(quoteIfNeeded(tag.getValue()));
+        }
+        return new ObjectName(builder.append(",name=").append(name.getName()).toString());
+    }
 
-    public Topic(String name) {
-        this.name = name;
-        this.messages = new LinkedBlockingQueue<>();
-        this.subscribers = new ArrayList<>();
+    private static String quoteIfNeeded(String value){
+        for(char c: value.toCharArray()){
+            if(c == ',' || c == '=' || c == ':' || c == '"' || c == '*' || c == '?' || c == '\\' || c == '\n'){
+                return ObjectName.quote(value);
+            }
+        }
+        return value;
     }
+}
 
-    public void subscribe(Consumer consumer){
-        subscribers.add(consumer);
+// Read-only view of one counter, gauge or histogram for JMX.
+class MetricMBean implements DynamicMBean{
+    private static final String[] HISTOGRAM_ATTRIBUTES = {"Count", "Mean", "Max", "P50", "P99", "P999"};
+
+    private final Object metric;
+    private final MBeanInfo info;
+
+    public MetricMBean(MetricName name, Object metric) {
+        this.metric = metric;
+        String[] attributes = metric instanceof LatencyHistogram ? HISTOGRAM_ATTRIBUTES
+                : new String[]{metric instanceof LongAdder ? "Count" : "Value"};
+        MBeanAttributeInfo[] attributeInfos = new MBeanAttributeInfo[attributes.length];
+        for(int i = 0; i < attributes.length; i++){
+            String type = attributes[i].equals("Mean") ? "double" : "long";
+            attributeInfos[i] = new MBeanAttributeInfo(attributes[i], type, attributes[i], true, false, false);
+        }
+        this.info = new MBeanInfo(MetricMBean.class.getName(), name.toString(), attributeInfos, null, null, null);
     }
 
-    public void addMessage(Message message){
-        boolean isOffer = messages.offer(message);
-        if(isOffer) {
-            notifySubscribers();
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if(metric instanceof LongAdder && attribute.equals("Count")){
+            return ((LongAdder) metric).sum();
+        }
+        if(metric instanceof LongSupplier && attribute.equals("Value")){
+            return ((LongSupplier) metric).getAsLong();
         }
+        if(metric instanceof LatencyHistogram){
+            LatencyHistogram histogram = (LatencyHistogram) metric;
+            switch (attribute) {
+                case "Count": return histogram.getCount();
+                case "Mean": return histogram.getMean();
+                case "Max": return histogram.getMax();
+                case "P50": return histogram.getValueAtPercentile(50);
+                case "P99": return histogram.getValueAtPercentile(99);
+                case "P999": return histogram.getValueAtPercentile(99.9);
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
     }
 
-    private void notifySubscribers() {
-        try {
-            Message message = takeMessage();
-            for(Consumer subscriber: subscribers){
-                subscriber.onMessageAvailable(message, this);
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for(String attribute: attributes){
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Skipped, as the DynamicMBean contract allows
             }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
         }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metric attributes are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
     }
 
-    public String getName() {
-        return name;
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+        throw new MBeanException(new UnsupportedOperationException(actionName));
     }
 
-    private Message takeMessage() throws InterruptedException {
-        return messages.take();
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return info;
     }
 }
 
-class Consumer implements Runnable {
-    private final String id;
-    private final QueueSystem queueSystem;
+// Which records ParallelConsumer must hand to the handler one at a time, in offset order.
+enum ProcessingOrder {
+    KEY,        // records with the same key; different keys run in parallel
+    PARTITION,  // records of the same partition, like a plain Consumer
+    UNORDERED   // no ordering, every record may run in parallel
+}
 
-    public Consumer(String id, QueueSystem queueSystem) {
-        this.id = id;
-        this.queueSystem = queueSystem;
+class ParallelConsumerConfig{
+    private final int concurrency;
+    private final int maxInFlight;
+    private final ProcessingOrder ordering;
+    private final int maxAttempts;
+    private final long retryBackoffMs;
+    private final String deadLetterTopic;
+
+    private ParallelConsumerConfig(Builder builder) {
+        this.concurrency = builder.concurrency;
+        this.maxInFlight = builder.maxInFlight;
+        this.ordering = builder.ordering;
+        this.maxAttempts = builder.maxAttempts;
+        this.retryBackoffMs = builder.retryBackoffMs;
+        this.deadLetterTopic = builder.deadLetterTopic;
     }
 
-    public void subscribe(String topicName) {
-        queueSystem.subscribeConsumer(topicName, this);
+    public int getConcurrency() { return concurrency; }
+    public int getMaxInFlight() { return maxInFlight; }
+    public ProcessingOrder getOrdering() { return ordering; }
+    public int getMaxAttempts() { return maxAttempts; }
+    public long getRetryBackoffMs() { return retryBackoffMs; }
+    public String getDeadLetterTopic() { return deadLetterTopic; }
+
+    public static class Builder {
+        private int concurrency = 4;
+        private int maxInFlight = 1000;
+        private ProcessingOrder ordering = ProcessingOrder.KEY;
+        private int maxAttempts = 5;
+        private long retryBackoffMs = 100;
+        private String deadLetterTopic;
+
+        // Worker threads running the handler
+        public Builder concurrency(int concurrency) {
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        // Records fetched ahead but not yet processed, across all assigned partitions
+        public Builder maxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        public Builder ordering(ProcessingOrder ordering) {
+            this.ordering = ordering;
+            return this;
+        }
+
+        // Times the handler runs for one record before the record is given up on
+        public Builder maxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        // Pause between attempts; the record's lane waits with it
+        public Builder retryBackoffMs(long retryBackoffMs) {
+            this.retryBackoffMs = retryBackoffMs;
+            return this;
+        }
+
+        // Where records that used up their attempts are published, unchanged; without one they are
+        // skipped. The topic must exist when the ParallelConsumer is created. A publish that fails
+        // is retried up to maxAttempts times as well, then the record is skipped.
+        public Builder deadLetterTopic(String deadLetterTopic) {
+            this.deadLetterTopic = deadLetterTopic;
+            return this;
+        }
+
+        public ParallelConsumerConfig build() {
+            if(concurrency <= 0 || maxInFlight <= 0){
+                throw new IllegalArgumentException("concurrency and maxInFlight must be > 0");
+            }
+            if(maxAttempts <= 0 || retryBackoffMs < 0){
+                throw new IllegalArgumentException("maxAttempts must be > 0 and retryBackoffMs >= 0");
+            }
+            return new ParallelConsumerConfig(this);
+        }
     }
+}
 
-    public void onMessageAvailable(Message message, Topic topic){
-        System.out.println(id + " received " + message.getContent() + " on topic " + topic.getName());
+// Tracks the records of one partition that were dispatched but have not completed. Records
+// complete in any order, but the commit position only moves past the contiguous completed prefix,
+// so a crash re-delivers everything that was not finished. Dispatched offsets are increasing, which
+// keeps them sorted in the ring; compaction gaps are fine since completions are found by binary search.
+class OffsetTracker{
+    private final long[] offsets;
+    private final boolean[] completed;
+    private int head;
+    private int size;
+    private long nextOffset;
+
+    public OffsetTracker(long startOffset, int capacity) {
+        this.offsets = new long[capacity];
+        this.completed = new boolean[capacity];
+        this.nextOffset = startOffset;
     }
 
-    @Override
-    public void run() {
-        while(!Thread.currentThread().isInterrupted()){
-            try{
-                Thread.sleep(100);
-            } catch (InterruptedException e){
-                Thread.currentThread().interrupt();
+    public synchronized void track(long offset){
+        if(size == offsets.length){
+            throw new IllegalStateException("More than " + offsets.length + " records in flight");
+        }
+        int index = (head + size) % offsets.length;
+        offsets[index] = offset;
+        completed[index] = false;
+        size++;
+        nextOffset = offset + 1;
+    }
+
+    // Returns the offset that can now be committed.
+    public synchronized long complete(long offset){
+        int low = 0;
+        int high = size - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            long midOffset = offsets[(head + mid) % offsets.length];
+            if(midOffset < offset){
+                low = mid + 1;
+            } else if(midOffset > offset){
+                high = mid - 1;
+            } else {
+                completed[(head + mid) % offsets.length] = true;
+                break;
             }
         }
+        while(size > 0 && completed[head]){
+            head = (head + 1) % offsets.length;
+            size--;
+        }
+        return getCommittableOffset();
+    }
+
+    public synchronized long getCommittableOffset(){
+        return size == 0 ? nextOffset : offsets[head];
+    }
+
+    // Completed records behind a pending one still hold their slot until the prefix catches up
+    public synchronized int getRemainingCapacity(){
+        return offsets.length - size;
+    }
+
+    // Next offset to fetch
+    public synchronized long getNextOffset(){
+        return nextOffset;
+    }
+
+    // Retention deleted records that were never fetched
+    public synchronized void skipTo(long offset){
+        nextOffset = Math.max(nextOffset, offset);
     }
 }
 
-class Producer{
-    private final String id;
-    private final QueueSystem queueSystem;
+// Consumer that fetches ahead of processing and runs the handler on a worker pool. Records are
+// queued on lanes that each run one record at a time, and the lane is picked by key, partition or
+// round-robin depending on ProcessingOrder, so ordering holds where it is asked for and everything
+// else runs concurrently. A handler that throws is retried in place, holding back its lane and the
+// partition's commit position, up to maxAttempts times. The record is then dead-lettered or skipped
+// so one poison record cannot stall its partition; failures, skips and dead letters are counted
+// in the metrics registry.
+class ParallelConsumer extends Consumer {
+    private static final int LANES_PER_WORKER = 4;
+    private static final int MAX_TASKS_PER_LANE_RUN = 64;
 
-    public Producer(String id, QueueSystem queueSystem) {
-        this.id = id;
+    private final QueueSystem queueSystem;
+    private final ParallelConsumerConfig config;
+    private final RecordView recordView;
+    private final BatchDecompressor decompressor;
+    private final ConcurrentHashMap<TopicPartition, OffsetTracker> trackers;
+    private final AtomicInteger inFlight;
+    private final AtomicInteger nextLane;
+    private final ExecutorService workers;
+    private final Lane[] lanes;
+    private final LongAdder processingErrors;
+    private final LongAdder recordsSkipped;
+    private final LongAdder recordsDeadLettered;
+    private volatile boolean closed;
+
+    public ParallelConsumer(String id, String groupId, QueueSystem queueSystem, ParallelConsumerConfig config) {
+        super(id, groupId, queueSystem);
+        if(config.getDeadLetterTopic() != null && queueSystem.getTopic(config.getDeadLetterTopic()) == null){
+            throw new IllegalArgumentException("Dead-letter topic " + config.getDeadLetterTopic() + " does not exist");
+        }
         this.queueSystem = queueSystem;
+        this.config = config;
+        MetricsRegistry metrics = queueSystem.getMetrics();
+        this.processingErrors = metrics.counter(MetricName.of("consumer", "processing-errors", "group", groupId, "consumer", id));
+        this.recordsSkipped = metrics.counter(MetricName.of("consumer", "records-skipped", "group", groupId, "consumer", id));
+        this.recordsDeadLettered = metrics.counter(MetricName.of("consumer", "records-dead-lettered", "group", groupId, "consumer", id));
+        this.recordView = new RecordView();
+        this.decompressor = new BatchDecompressor();
+        this.trackers = new ConcurrentHashMap<>();
+        this.inFlight = new AtomicInteger();
+        this.nextLane = new AtomicInteger();
+        AtomicInteger threadIds = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(config.getConcurrency(), runnable -> {
+            Thread thread = new Thread(runnable, "consumer-" + id + "-worker-" + threadIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.lanes = new Lane[config.getConcurrency() * LANES_PER_WORKER];
+        for(int i = 0; i < lanes.length; i++){
+            lanes[i] = new Lane();
+        }
     }
 
-    public void publish(String topicName, String messageContent){
-        Message message = new Message(messageContent, id);
-        queueSystem.publishMessage(topicName, message);
+    // Fetches from each assigned partition until maxInFlight records are outstanding and returns
+    // the number dispatched. Commits happen as records complete, not here.
+    @Override
+    public int poll(){
+        ConsumerGroup group = queueSystem.getConsumerGroup(getGroupId());
+        if(group == null || closed){
+            return 0;
+        }
+        List<TopicPartition> assignment = group.getAssignment(this);
+        // Records still running on a revoked partition commit through their old tracker; commits
+        // only move forward, so that cannot rewind the new owner
+        trackers.keySet().retainAll(assignment);
+        int dispatched = 0;
+        for(TopicPartition topicPartition: assignment){
+            int room = config.getMaxInFlight() - inFlight.get();
+            if(room <= 0){
+                break;
+            }
+            Topic topic = group.getTopic(topicPartition.getTopic());
+            int partition = topicPartition.getPartition();
+            OffsetTracker tracker = trackers.computeIfAbsent(topicPartition,
+                    tp -> new OffsetTracker(group.getCommittedOffset(tp), config.getMaxInFlight()));
+            tracker.skipTo(topic.getLogStartOffset(partition));
+            int maxRecords = Math.min(Math.min(room, tracker.getRemainingCapacity()), MAX_POLL_MESSAGES);
+            if(maxRecords == 0){
+                continue;
+            }
+            long fetchOffset = tracker.getNextOffset();
+            int[] taken = new int[1];
+            // A compressed batch can hold more records than there is room for; the rest are read
+            // again from the next offset on the following poll
+            RecordHandler handler = record -> {
+                if(taken[0] < maxRecords){
+                    dispatch(group, topic, topicPartition, tracker, record.toMessage());
+                    taken[0]++;
+                }
+            };
+            topic.read(partition, fetchOffset, maxRecords, recordView, record -> decompressor.forEach(record, fetchOffset, handler));
+            dispatched += taken[0];
+        }
+        return dispatched;
     }
-}
 
-class QueueSystem {
-    private ConcurrentHashMap<String, Topic> topics;
-    private ExecutorService executorService;
+    private void dispatch(ConsumerGroup group, Topic topic, TopicPartition topicPartition, OffsetTracker tracker, Message message){
+        tracker.track(message.getOffset());
+        inFlight.incrementAndGet();
+        Runnable task = () -> process(group, topic, topicPartition, tracker, message);
+        switch (config.getOrdering()) {
+            case KEY:
+                int hash = message.getKey() == null ? nextLane.getAndIncrement() : message.getKey().hashCode();
+                lanes[Math.floorMod(hash, lanes.length)].submit(task);
+                break;
+            case PARTITION:
+                lanes[Math.floorMod(topicPartition.hashCode(), lanes.length)].submit(task);
+                break;
+            default:
+                workers.execute(task);
+        }
+    }
 
-    public QueueSystem() {
-        this.topics = new ConcurrentHashMap<>();
-        this.executorService = Executors.newCachedThreadPool();
+    private void process(ConsumerGroup group, Topic topic, TopicPartition topicPartition, OffsetTracker tracker, Message message){
+        try {
+            int attempts = 0;
+            int deadLetterAttempts = 0;
+            while(!closed){
+                long start = System.nanoTime();
+                try {
+                    if(attempts < config.getMaxAttempts()){
+                        attempts++;
+                        onMessageAvailable(message, topic);
+                        recordProcessed(message.getTimestamp(), System.nanoTime() - start);
+                    } else if(config.getDeadLetterTopic() != null && deadLetterAttempts < config.getMaxAttempts()){
+                        deadLetterAttempts++;
+                        deadLetter(message);
+                    } else {
+                        recordsSkipped.increment();
+                    }
+                } catch (RuntimeException e) {
+                    // Dead-letter publishes get as many attempts as the handler did
+                    processingErrors.increment();
+                    Thread.sleep(config.getRetryBackoffMs());
+                    continue;
+                }
+                group.commit(topicPartition, tracker.complete(message.getOffset()));
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void deadLetter(Message message){
+        String deadLetterTopic = config.getDeadLetterTopic();
+        if(queueSystem.publishMessage(deadLetterTopic, new Message(message.getKey(), message.getContent(), message.getProducerId())) < 0){
+            throw new IllegalStateException("Dead-letter topic " + deadLetterTopic + " does not exist");
+        }
+        recordsDeadLettered.increment();
     }
 
-    public void createTopic(String topicName){
-        topics.putIfAbsent(topicName, new Topic(topicName));
+    public int getInFlightCount(){
+        return inFlight.get();
     }
 
-    public void publishMessage(String topicName, Message message){
-        Topic topic = topics.get(topicName);
-        if(topic!= null){
-            topic.addMessage(message);
+    // Leaves the group and waits briefly for in-flight records; anything unfinished stays
+    // uncommitted and is re-delivered to the next owner.
+    public void close() throws InterruptedException {
+        queueSystem.unsubscribeConsumer(this);
+        long deadline = System.currentTimeMillis() + 1000;
+        while(inFlight.get() > 0 && System.currentTimeMillis() < deadline){
+            Thread.sleep(IDLE_BACKOFF_MS);
         }
+        closed = true;
+        workers.shutdownNow();
+        workers.awaitTermination(1, TimeUnit.SECONDS);
     }
 
-    public void subscribeConsumer(String topicName, Consumer consumer){
-        Topic topic = topics.get(topicName);
-        if (topic!= null){
-            topic.subscribe(consumer);
-            executorService.submit(consumer);
+    // Runs its tasks one at a time on the shared workers, in submission order, and gives the worker
+    // back after a bounded number of tasks so one busy lane cannot starve the others.
+    private class Lane implements Runnable {
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void submit(Runnable task){
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule(){
+            if(!tasks.isEmpty() && scheduled.compareAndSet(false, true)){
+                try {
+                    workers.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Consumer is closed
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            for(int i = 0; i < MAX_TASKS_PER_LANE_RUN && (task = tasks.poll()) != null; i++){
+                task.run();
+            }
+            scheduled.set(false);
+            schedule();
         }
     }
+}
 
-    public void shutdown(){
-        executorService.shutdown();
+class BusySpinWaitStrategy implements WaitStrategy{
+    @Override
+    public void idle(int attempt) {
+        Thread.onSpinWait();
+    }
+}
+
+class YieldingWaitStrategy implements WaitStrategy{
+    private static final int SPIN_TRIES = 100;
+
+    @Override
+    public void idle(int attempt) {
+        if(attempt < SPIN_TRIES){
+            Thread.onSpinWait();
+        } else {
+            Thread.yield();
+        }
+    }
+}
+
+class ParkingWaitStrategy implements WaitStrategy{
+    private static final int SPIN_TRIES = 100;
+    private final long parkNanos;
+
+    public ParkingWaitStrategy(long parkNanos) {
+        this.parkNanos = parkNanos;
+    }
+
+    @Override
+    public void idle(int attempt) {
+        if(attempt < SPIN_TRIES){
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(parkNanos);
+        }
     }
 }
 
 public class KafkaLLD {
     public static void main(String[] args) {
         QueueSystem qs = new QueueSystem();
-        qs.createTopic("topic1");
+        qs.createTopic("topic1", 3);
         qs.createTopic("topic2");
 
         Producer producer1 = new Producer("producer1", qs);
@@ -168,9 +585,15 @@ public class KafkaLLD {
         consumer3.subscribe("topic2");
         consumer4.subscribe("topic2");
 
-        producer1.publish("topic1", "Message 1");
-        producer1.publish("topic1", "Message 2");
-        producer2.publish("topic1", "Message 3");
+        // Two members of the same group split topic1's partitions between them
+        Consumer analytics1 = new Consumer("analytics1", "analytics", qs);
+        Consumer analytics2 = new Consumer("analytics2", "analytics", qs);
+        analytics1.subscribe("topic1");
+        analytics2.subscribe("topic1");
+
+        producer1.publish("topic1", "user-1", "Message 1");
+        producer1.publish("topic1", "user-2", "Message 2");
+        producer2.publish("topic1", "user-1", "Message 3");
         producer1.publish("topic2", "Message 4");
         producer2.publish("topic2", "Message 5");
 
@@ -181,8 +604,425 @@ public class KafkaLLD {
             e.printStackTrace();
         }
 
+        // Messages stay in the log after delivery, so a partition can be replayed from any offset
+        for(int partition = 0; partition < 3; partition++){
+            for(Message message: qs.readMessages("topic1", partition, 0, 10)){
+                System.out.println("replay topic1-" + partition + ": " + message.getContent());
+            }
+        }
+
+        qs.shutdown();
+
+        batchedProducerDemo();
+        backpressureDemo();
+        compactionDemo();
+        ringBufferDemo();
+        durableTopicDemo();
+        metricsDemo();
+        parallelConsumerDemo();
+        replicationDemo();
+        timestampSeekDemo();
+        compressionDemo();
+    }
+
+    private static void replicationDemo(){
+        ReplicationController controller = new ReplicationController(500);
+        List<QueueSystem> nodes = new ArrayList<>();
+        for(int nodeId = 0; nodeId < 3; nodeId++){
+            QueueSystem node = new QueueSystem();
+            node.joinCluster(controller, nodeId);
+            nodes.add(node);
+        }
+        nodes.get(0).createTopic("accounts", new TopicConfig.Builder()
+                .partitions(1)
+                .replicationFactor(3)
+                .minInSyncReplicas(2)
+                .replicaLagTimeMs(1000)
+                .build());
+        ProducerConfig acksAll = new ProducerConfig.Builder().acks(Acks.ALL).build();
+
+        LeaderAndIsr before = controller.getPartitionState("accounts", 0);
+        Producer producer = new Producer("producer1", nodes.get(1), acksAll);
+        for(int i = 0; i < 500; i++){
+            producer.publish("accounts", "account-" + (i % 10), "Deposit " + i);
+        }
+        System.out.println("accounts-0 leader " + before.getLeader() + ", isr " + before.getIsr()
+                + ", high watermark " + nodes.get(before.getLeader()).getTopic("accounts").getHighWatermark(0));
+
+        // Take the leader down; the controller notices the missed heartbeats and elects from the ISR
+        nodes.get(before.getLeader()).shutdown();
+        LeaderAndIsr after = before;
+        while(after.getLeaderEpoch() == before.getLeaderEpoch()){
+            sleepQuietly(50);
+            after = controller.getPartitionState("accounts", 0);
+        }
+        QueueSystem survivor = nodes.get(after.getLeader());
+        producer = new Producer("producer2", survivor, acksAll);
+        int retries = 0;
+        for(int i = 500; i < 1000; i++){
+            try {
+                producer.publish("accounts", "account-" + (i % 10), "Deposit " + i);
+            } catch (IllegalStateException e) {
+                // Not leader yet, or ISR below min.insync.replicas; back off and retry
+                retries++;
+                i--;
+                sleepQuietly(10);
+            }
+        }
+        System.out.println("Failed over to leader " + after.getLeader() + " (epoch " + after.getLeaderEpoch()
+                + ", isr " + after.getIsr() + "), 1000 acknowledged writes with " + retries + " retries");
+
+        for(QueueSystem node: nodes){
+            if(node != nodes.get(before.getLeader()) && node != survivor){
+                Topic follower = node.getTopic("accounts");
+                while(follower.getHighWatermark(0) < 1000){
+                    sleepQuietly(10);
+                }
+                System.out.println("Follower read accounts-0 offset 999 = "
+                        + node.readMessages("accounts", 0, 999, 1).get(0).getContent());
+            }
+        }
+        for(QueueSystem node: nodes){
+            node.shutdown();
+        }
+        controller.close();
+    }
+
+    private static void sleepQuietly(long millis){
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void timestampSeekDemo(){
+        QueueSystem qs = new QueueSystem();
+        qs.createTopic("audit", new TopicConfig.Builder()
+                .partitions(2)
+                .segmentBytes(64 * 1024)
+                .build());
+        Producer producer = new Producer("producer1", qs);
+        for(int i = 0; i < 20000; i++){
+            producer.publish("audit", "user-" + (i % 50), "Event " + i);
+        }
+        sleepQuietly(5);
+        long incidentStart = System.currentTimeMillis();
+        for(int i = 20000; i < 20100; i++){
+            producer.publish("audit", "user-" + (i % 50), "Event " + i);
+        }
+
+        long start = System.nanoTime();
+        long offset = qs.getTopic("audit").offsetForTimestamp(0, incidentStart);
+        System.out.println("audit-0 offset for the incident start: " + offset + " of "
+                + qs.getTopic("audit").getLogEndOffset(0) + ", found in "
+                + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) + " us");
+
+        // A consumer restarting after the incident replays only what was appended since it began
+        AtomicInteger replayed = new AtomicInteger();
+        Consumer consumer = new Consumer("investigator", qs) {
+            @Override
+            public void onMessageAvailable(Message message, Topic topic) {
+                replayed.incrementAndGet();
+            }
+        };
+        consumer.seekToTimestamp("audit", incidentStart);
+        consumer.subscribe("audit");
+        while(qs.getConsumerGroup("investigator").getTotalLag("audit") > 0){
+            sleepQuietly(10);
+        }
+        System.out.println("Replayed " + replayed.get() + " events appended since the incident start");
+        qs.shutdown();
+    }
+
+    private static void compressionDemo(){
+        QueueSystem qs = new QueueSystem();
+        FetchServer fetchServer = qs.startFetchServer(0);
+        Map<String, CompressionCodec> codecs = new LinkedHashMap<>();
+        codecs.put("none", null);
+        codecs.put("lz4", CompressionCodecs.LZ4);
+        codecs.put("deflate", CompressionCodecs.DEFLATE);
+        for(Map.Entry<String, CompressionCodec> codec: codecs.entrySet()){
+            String topicName = "page-views-" + codec.getKey();
+            qs.createTopic(topicName, new TopicConfig.Builder().partitions(1).build());
+            Producer producer = new Producer("producer1", qs, new ProducerConfig.Builder()
+                    .compression(codec.getValue())
+                    .build());
+            for(int i = 0; i < 20000; i++){
+                producer.send(topicName, "user-" + (i % 100), "{\"user\":\"user-" + (i % 100)
+                        + "\",\"page\":\"/products/" + (i % 40) + "\",\"referrer\":\"https://example.com/search\",\"durationMs\":" + (i % 5000) + "}");
+            }
+            producer.close();
+
+            // Bytes as a remote consumer receives them, which is also what the log holds
+            long[] bytes = new long[1];
+            long offset = 0;
+            try (FetchClient client = new FetchClient("localhost", fetchServer.getPort())) {
+                long[] next = {0};
+                while(offset < qs.getTopic(topicName).getLogEndOffset(0)){
+                    client.fetch(topicName, 0, offset, 256 * 1024, record -> {
+                        bytes[0] += record.sizeInBytes();
+                        next[0] = record.offset() + 1;
+                    });
+                    offset = next[0];
+                }
+                List<Message> sample = client.fetch(topicName, 0, 12345, 1024);
+                System.out.printf("compression=%s: %.1f bytes per message on the wire, offset 12345 = %s%n",
+                        codec.getKey(), (double) bytes[0] / offset, sample.get(0).getContent());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        qs.shutdown();
+    }
+
+    private static void backpressureDemo(){
+        QueueSystem qs = new QueueSystem(null, ConsumerScheduler.virtualThreads());
+        qs.createTopic("bounded", new TopicConfig.Builder()
+                .segmentBytes(4096)
+                .maxBytes(4 * 4096)
+                .overflowPolicy(OverflowPolicy.FAIL_FAST)
+                .build());
+        Producer producer = new Producer("producer1", qs);
+        int accepted = 0;
+        try {
+            while(true){
+                producer.publish("bounded", "Message " + accepted);
+                accepted++;
+            }
+        } catch (IllegalStateException e) {
+            System.out.println("Fail-fast topic rejected a publish after " + accepted + " messages: " + e.getMessage());
+        }
+
+        qs.createTopic("lossy", new TopicConfig.Builder()
+                .segmentBytes(4096)
+                .maxBytes(4 * 4096)
+                .overflowPolicy(OverflowPolicy.DROP_OLDEST)
+                .build());
+        for(int i = 0; i < 10_000; i++){
+            producer.publish("lossy", "Message " + i);
+        }
+        Topic lossy = qs.getTopic("lossy");
+        System.out.println("Drop-oldest topic keeps offsets [" + lossy.getLogStartOffset(0) + ", "
+                + lossy.getLogEndOffset(0) + ") in at most 4 segments");
+        qs.shutdown();
+    }
+
+    private static void compactionDemo(){
+        QueueSystem qs = new QueueSystem();
+        qs.createTopic("user-profiles", new TopicConfig.Builder()
+                .segmentBytes(8 * 1024)
+                .cleanupPolicy(CleanupPolicy.COMPACT)
+                .tombstoneRetentionMs(0)
+                .build());
+        Producer producer = new Producer("producer1", qs);
+        for(int i = 0; i < 5000; i++){
+            producer.publish("user-profiles", "user-" + (i % 20), "profile version " + i);
+        }
+        producer.publishTombstone("user-profiles", "user-0");
+        for(int i = 0; i < 200; i++){
+            producer.publish("user-profiles", "filler", "roll the active segment " + i);
+        }
+        try {
+            Thread.sleep(3000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Message> compacted = qs.readMessages("user-profiles", 0, 0, Integer.MAX_VALUE);
+        System.out.println("Compaction kept " + compacted.size() + " of 5201 records, first: "
+                + compacted.get(0).getKey() + " = " + compacted.get(0).getContent());
+        qs.shutdown();
+    }
+
+    private static void ringBufferDemo(){
+        QueueSystem qs = new QueueSystem();
+        qs.createRingBufferTopic("ticks", 1024, 128, new YieldingWaitStrategy());
+        int count = 100_000;
+        long[] latencies = new long[count];
+        AtomicInteger received = new AtomicInteger();
+        qs.subscribeToRingBuffer("ticks", record -> {
+            long sentAt = record.buffer().getLong(record.valuePosition());
+            latencies[received.getAndIncrement()] = System.nanoTime() - sentAt;
+        });
+
+        Producer producer = new Producer("producer1", qs);
+        ByteBuffer value = ByteBuffer.allocateDirect(Long.BYTES);
+        for(int i = 0; i < count; i++){
+            producer.publish("ticks", null, value.putLong(0, System.nanoTime()));
+        }
+        while(received.get() < count){
+            Thread.onSpinWait();
+        }
+        Arrays.sort(latencies);
+        System.out.println("Ring buffer hand-off over " + count + " records: median " + latencies[count / 2]
+                + " ns, p99 " + latencies[count * 99 / 100] + " ns");
+        qs.shutdown();
+    }
+
+    private static void batchedProducerDemo(){
+        QueueSystem qs = new QueueSystem();
+        qs.createTopic("clicks", 4);
+        Producer producer = new Producer("producer1", qs, new ProducerConfig.Builder()
+                .lingerMs(5)
+                .batchSize(32 * 1024)
+                .build());
+        List<CompletableFuture<Long>> offsets = new ArrayList<>();
+        for(int i = 0; i < 100_000; i++){
+            offsets.add(producer.send("clicks", "user-" + (i % 100), "click " + i));
+        }
+        producer.flush();
+        System.out.println("Batched 100000 clicks, first offsets " + offsets.get(0).join() + ", "
+                + offsets.get(1).join() + ", last offset " + offsets.get(offsets.size() - 1).join());
+        producer.close();
+        qs.shutdown();
+    }
+
+    private static void metricsDemo(){
+        QueueSystem qs = new QueueSystem(null, ConsumerScheduler.virtualThreads(), new JmxMetricsRegistry("kafkalld"));
+        qs.createTopic("orders", 2);
+        Consumer fast = new Consumer("fast", qs) {
+            @Override
+            public void onRecord(RecordView record, Topic topic) {
+            }
+        };
+        Consumer slow = new Consumer("slow", qs) {
+            @Override
+            public void onRecord(RecordView record, Topic topic) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        fast.subscribe("orders");
+        slow.subscribe("orders");
+        Producer producer = new Producer("producer1", qs);
+        for(int i = 0; i < 2000; i++){
+            producer.publish("orders", "order " + i);
+        }
+        // Lag shows which group is falling behind while the fast one is already caught up
+        while(qs.getConsumerGroup("fast").getTotalLag("orders") > 0){
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for(String group: List.of("fast", "slow")){
+            LatencyHistogram processing = qs.getMetrics().histogram(
+                    MetricName.of("consumer", "processing-latency-ns", "group", group, "consumer", group));
+            System.out.println("Group " + group + " lag " + qs.getConsumerGroup(group).getTotalLag("orders")
+                    + ", processing p99 " + processing.getValueAtPercentile(99) + " ns");
+        }
+        try {
+            Object appended = ManagementFactory.getPlatformMBeanServer().getAttribute(
+                    new ObjectName("kafkalld:type=topic,topic=orders,partition=0,name=messages-in"), "Count");
+            System.out.println("JMX kafkalld:type=topic,topic=orders,partition=0,name=messages-in Count = " + appended);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        qs.shutdown();
+    }
+
+    private static void parallelConsumerDemo(){
+        QueueSystem qs = new QueueSystem();
+        qs.createTopic("payments");
+        Map<String, Integer> lastSeen = new ConcurrentHashMap<>();
+        AtomicInteger outOfOrder = new AtomicInteger();
+        ParallelConsumer consumer = new ParallelConsumer("ledger", "ledger", qs, new ParallelConsumerConfig.Builder()
+                .concurrency(8)
+                .ordering(ProcessingOrder.KEY)
+                .build()) {
+            @Override
+            public void onMessageAvailable(Message message, Topic topic) {
+                try {
+                    // A slow handler, e.g. a call to another service
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                Integer previous = lastSeen.put(message.getKey(), Integer.parseInt(message.getContent()));
+                if(previous != null && previous > Integer.parseInt(message.getContent())){
+                    outOfOrder.incrementAndGet();
+                }
+            }
+        };
+        consumer.subscribe("payments");
+        Producer producer = new Producer("producer1", qs);
+        long start = System.nanoTime();
+        for(int i = 0; i < 1000; i++){
+            producer.publish("payments", "account-" + (i % 32), String.valueOf(i));
+        }
+        ConsumerGroup group = qs.getConsumerGroup("ledger");
+        while(group.getTotalLag("payments") > 0){
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        System.out.println("Parallel consumer handled 1000 slow records from one partition in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, committed offset "
+                + group.getCommittedOffset(new TopicPartition("payments", 0)) + ", out-of-order per key: " + outOfOrder.get());
+        try {
+            consumer.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        qs.shutdown();
+    }
+
+    private static void durableTopicDemo(){
+        Path dataDir;
+        try {
+            dataDir = Files.createTempDirectory("kafkalld");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        TopicConfig config = new TopicConfig.Builder()
+                .partitions(2)
+                .durable(true)
+                .segmentBytes(64 * 1024)
+                .flushIntervalMessages(100)
+                .build();
+
+        QueueSystem qs = new QueueSystem(dataDir);
+        qs.createTopic("orders", config);
+        Producer producer = new Producer("producer1", qs);
+        for(int i = 0; i < 5000; i++){
+            producer.publish("orders", "order-" + (i % 10), "Order event " + i);
+        }
         qs.shutdown();
 
+        // A fresh QueueSystem over the same directory recovers the segments written above
+        QueueSystem restarted = new QueueSystem(dataDir);
+        restarted.createTopic("orders", config);
+        for(int partition = 0; partition < 2; partition++){
+            List<Message> tail = restarted.readMessages("orders", partition, 2000, 1);
+            System.out.println("orders-" + partition + " recovered up to offset "
+                    + restarted.getTopic("orders").getLogEndOffset(partition)
+                    + ", offset 2000 = " + tail.get(0).getContent());
+        }
+
+        // Remote consumers fetch byte ranges that are sent straight from the segment files
+        FetchServer fetchServer = restarted.startFetchServer(0);
+        try (FetchClient client = new FetchClient("localhost", fetchServer.getPort())) {
+            long offset = 0;
+            long endOffset = restarted.getTopic("orders").getLogEndOffset(0);
+            int fetches = 0;
+            while(offset < endOffset){
+                List<Message> messages = client.fetch("orders", 0, offset, 16 * 1024);
+                offset = messages.get(messages.size() - 1).getOffset() + 1;
+                fetches++;
+            }
+            System.out.println("Fetched orders-0 up to offset " + offset + " in " + fetches + " remote fetches");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        restarted.shutdown();
     }
 }
 
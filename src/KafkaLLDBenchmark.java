@@ -0,0 +1,293 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Benchmark driver for the KafkaLLD publish -> consume path. Runs every combination of message size,
+// subscriber count, partition count and producer threads, with warmup iterations discarded, and
+// reports publish throughput, end-to-end throughput and publish-to-delivery latency percentiles.
+//
+// Results can be written to a CSV file and compared against an earlier run, which makes it usable
+// as a regression gate for changes to QueueSystem/Topic:
+//   java KafkaLLDBenchmark --out=current.csv --baseline=baseline.csv --tolerance=0.10
+// exits with status 1 if any scenario's end-to-end throughput dropped by more than the tolerance.
+// Scenarios are matched on every key column, including the consumer api (--api=record|message),
+// so runs of the two APIs are never compared with each other.
+public class KafkaLLDBenchmark {
+    private static final String TOPIC = "bench";
+    private static final String DEFAULT_API = "record";
+
+    // One subscriber in its own group, so every subscriber sees every message. The send time is
+    // carried in the first 8 bytes of the value.
+    private static class LatencyRecordingConsumer extends Consumer {
+        private final long[] latencies;
+        private final CountDownLatch done;
+        private final boolean messageApi;
+        private int received;
+
+        LatencyRecordingConsumer(String id, QueueSystem queueSystem, int expected, CountDownLatch done, boolean messageApi) {
+            super(id, queueSystem);
+            this.latencies = new long[expected];
+            this.done = done;
+            this.messageApi = messageApi;
+        }
+
+        @Override
+        public void onRecord(RecordView record, Topic topic) {
+            if(messageApi){
+                super.onRecord(record, topic);
+                return;
+            }
+            record(System.nanoTime() - record.buffer().getLong(record.valuePosition()));
+        }
+
+        @Override
+        public void onMessageAvailable(Message message, Topic topic) {
+            String content = message.getContent();
+            record(System.nanoTime() - Long.parseLong(content.substring(0, content.indexOf(' '))));
+        }
+
+        private void record(long latencyNanos){
+            if(received < latencies.length){
+                latencies[received++] = latencyNanos;
+                if(received == latencies.length){
+                    done.countDown();
+                }
+            }
+        }
+    }
+
+    private static class Scenario {
+        final int messageSize;
+        final int subscribers;
+        final int partitions;
+        final int producers;
+        final String api;
+
+        Scenario(int messageSize, int subscribers, int partitions, int producers, String api) {
+            this.messageSize = messageSize;
+            this.subscribers = subscribers;
+            this.partitions = partitions;
+            this.producers = producers;
+            this.api = api;
+        }
+
+        String key(){
+            return messageSize + "," + subscribers + "," + partitions + "," + producers + "," + api;
+        }
+    }
+
+    private static class Result {
+        final double publishPerSecond;
+        final double deliveredPerSecond;
+        final long p50Nanos;
+        final long p99Nanos;
+        final long p999Nanos;
+        final long maxNanos;
+
+        Result(double publishPerSecond, double deliveredPerSecond, long[] sortedLatencies) {
+            this.publishPerSecond = publishPerSecond;
+            this.deliveredPerSecond = deliveredPerSecond;
+            this.p50Nanos = percentile(sortedLatencies, 0.50);
+            this.p99Nanos = percentile(sortedLatencies, 0.99);
+            this.p999Nanos = percentile(sortedLatencies, 0.999);
+            this.maxNanos = sortedLatencies[sortedLatencies.length - 1];
+        }
+
+        private static long percentile(long[] sorted, double quantile){
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int messages = Integer.parseInt(options.getOrDefault("messages", "100000"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "1"));
+        int iterations = Integer.parseInt(options.getOrDefault("iterations", "3"));
+        String api = options.getOrDefault("api", DEFAULT_API);
+        if(!api.equals("record") && !api.equals("message")){
+            throw new IllegalArgumentException("--api must be record or message but was " + api);
+        }
+        boolean messageApi = api.equals("message");
+        int[] sizes = parseList(options.getOrDefault("sizes", "100,1024"));
+        int[] subscriberCounts = parseList(options.getOrDefault("subscribers", "1,4"));
+        int[] partitionCounts = parseList(options.getOrDefault("partitions", "1,4"));
+        int[] producerCounts = parseList(options.getOrDefault("producers", "1,4"));
+
+        List<String> csv = new ArrayList<>();
+        csv.add("size,subscribers,partitions,producers,api,publish_per_sec,delivered_per_sec,p50_us,p99_us,p999_us,max_us");
+        Map<String, Double> throughputByScenario = new HashMap<>();
+        System.out.printf("%6s %5s %5s %5s %7s %14s %14s %10s %10s %10s %10s%n",
+                "size", "subs", "parts", "prods", "api", "publish/s", "delivered/s", "p50 us", "p99 us", "p99.9 us", "max us");
+        for(int size: sizes){
+            for(int subscribers: subscriberCounts){
+                for(int partitions: partitionCounts){
+                    for(int producers: producerCounts){
+                        Scenario scenario = new Scenario(size, subscribers, partitions, producers, api);
+                        for(int i = 0; i < warmup; i++){
+                            runOnce(scenario, messages, messageApi);
+                        }
+                        Result best = null;
+                        for(int i = 0; i < iterations; i++){
+                            Result result = runOnce(scenario, messages, messageApi);
+                            if(best == null || result.deliveredPerSecond > best.deliveredPerSecond){
+                                best = result;
+                            }
+                        }
+                        print(scenario, best, csv);
+                        throughputByScenario.put(scenario.key(), best.deliveredPerSecond);
+                    }
+                }
+            }
+        }
+
+        if(options.containsKey("out")){
+            Files.write(Paths.get(options.get("out")), csv);
+        }
+        if(options.containsKey("baseline")){
+            double tolerance = Double.parseDouble(options.getOrDefault("tolerance", "0.10"));
+            if(!compareWithBaseline(Paths.get(options.get("baseline")), throughputByScenario, tolerance)){
+                System.exit(1);
+            }
+        }
+    }
+
+    private static Result runOnce(Scenario scenario, int messages, boolean messageApi) throws InterruptedException {
+        QueueSystem qs = new QueueSystem();
+        qs.createTopic(TOPIC, new TopicConfig.Builder()
+                .partitions(scenario.partitions)
+                .segmentBytes(8 * 1024 * 1024)
+                .build());
+        CountDownLatch delivered = new CountDownLatch(scenario.subscribers);
+        List<LatencyRecordingConsumer> consumers = new ArrayList<>();
+        for(int i = 0; i < scenario.subscribers; i++){
+            LatencyRecordingConsumer consumer = new LatencyRecordingConsumer("bench-consumer-" + i, qs, messages, delivered, messageApi);
+            consumer.subscribe(TOPIC);
+            consumers.add(consumer);
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch published = new CountDownLatch(scenario.producers);
+        AtomicInteger keys = new AtomicInteger();
+        int perProducer = messages / scenario.producers;
+        for(int p = 0; p < scenario.producers; p++){
+            int count = p == scenario.producers - 1 ? messages - perProducer * (scenario.producers - 1) : perProducer;
+            Thread producerThread = new Thread(() -> {
+                Producer producer = new Producer("bench-producer-" + keys.incrementAndGet(), qs);
+                ByteBuffer key = ByteBuffer.allocate(Integer.BYTES);
+                ByteBuffer value = ByteBuffer.allocateDirect(Math.max(Long.BYTES, scenario.messageSize));
+                String padding = "x".repeat(Math.max(0, scenario.messageSize - 20));
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for(int i = 0; i < count; i++){
+                    if(messageApi){
+                        producer.publish(TOPIC, System.nanoTime() + " " + padding);
+                    } else {
+                        key.putInt(0, i);
+                        value.putLong(0, System.nanoTime());
+                        producer.publish(TOPIC, key, value);
+                    }
+                }
+                published.countDown();
+            });
+            producerThread.start();
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        published.await();
+        long publishNanos = System.nanoTime() - startNanos;
+        delivered.await();
+        long deliverNanos = System.nanoTime() - startNanos;
+        qs.shutdown();
+
+        long[] latencies = new long[messages * scenario.subscribers];
+        for(int i = 0; i < consumers.size(); i++){
+            System.arraycopy(consumers.get(i).latencies, 0, latencies, i * messages, messages);
+        }
+        Arrays.sort(latencies);
+        return new Result(messages * 1e9 / publishNanos, messages * 1e9 / deliverNanos, latencies);
+    }
+
+    private static void print(Scenario scenario, Result result, List<String> csv){
+        System.out.printf("%6d %5d %5d %5d %7s %14.0f %14.0f %10.1f %10.1f %10.1f %10.1f%n",
+                scenario.messageSize, scenario.subscribers, scenario.partitions, scenario.producers, scenario.api,
+                result.publishPerSecond, result.deliveredPerSecond,
+                result.p50Nanos / 1e3, result.p99Nanos / 1e3, result.p999Nanos / 1e3, result.maxNanos / 1e3);
+        csv.add(String.format("%s,%.0f,%.0f,%.1f,%.1f,%.1f,%.1f", scenario.key(),
+                result.publishPerSecond, result.deliveredPerSecond,
+                result.p50Nanos / 1e3, result.p99Nanos / 1e3, result.p999Nanos / 1e3, result.maxNanos / 1e3));
+    }
+
+    private static boolean compareWithBaseline(Path baselineFile, Map<String, Double> current, double tolerance) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(baselineFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // The key is every column before the measurements. Baselines without an api column are
+        // taken to be of the default api.
+        List<String> header = Arrays.asList(lines.get(0).split(","));
+        int keyColumns = header.indexOf("publish_per_sec");
+        int delivered = header.indexOf("delivered_per_sec");
+        if(keyColumns < 0 || delivered < 0){
+            throw new IllegalArgumentException("Not a benchmark CSV: " + baselineFile);
+        }
+        String legacyApi = "";
+        if(!header.contains("api")){
+            legacyApi = "," + DEFAULT_API;
+            System.out.println(baselineFile + " has no api column; comparing it as --api=" + DEFAULT_API);
+        }
+        boolean passed = true;
+        int compared = 0;
+        for(String line: lines.subList(1, lines.size())){
+            String[] columns = line.split(",");
+            String key = String.join(",", Arrays.copyOfRange(columns, 0, keyColumns)) + legacyApi;
+            double baseline = Double.parseDouble(columns[delivered]);
+            Double measured = current.get(key);
+            if(measured == null){
+                continue;
+            }
+            compared++;
+            if(measured < baseline * (1 - tolerance)){
+                System.out.printf("REGRESSION [%s]: %.0f msg/s vs baseline %.0f msg/s%n", key, measured, baseline);
+                passed = false;
+            }
+        }
+        if(compared == 0){
+            System.out.println("No scenario of this run appears in " + baselineFile + "; nothing was compared");
+            return true;
+        }
+        System.out.println(passed ? "No regressions against " + baselineFile : "Throughput regressed against " + baselineFile);
+        return passed;
+    }
+
+    private static Map<String, String> parseOptions(String[] args){
+        Map<String, String> options = new HashMap<>();
+        for(String arg: args){
+            if(!arg.startsWith("--") || !arg.contains("=")){
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+
+    private static int[] parseList(String values){
+        return Arrays.stream(values.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+}
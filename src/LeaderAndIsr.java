@@ -0,0 +1,43 @@
+import java.util.List;
+
+// Leader, leader epoch and in-sync replicas of one partition as decided by the ReplicationController.
+// The epoch changes with every new leader; the version changes with every decision, so nodes can
+// ignore updates that arrive out of order.
+public class LeaderAndIsr{
+    private final TopicPartition topicPartition;
+    private final int leader;
+    private final int leaderEpoch;
+    private final List<Integer> replicas;
+    private final List<Integer> isr;
+    private final int version;
+
+    public LeaderAndIsr(TopicPartition topicPartition, int leader, int leaderEpoch, List<Integer> replicas, List<Integer> isr, int version) {
+        this.topicPartition = topicPartition;
+        this.leader = leader;
+        this.leaderEpoch = leaderEpoch;
+        this.replicas = List.copyOf(replicas);
+        this.isr = List.copyOf(isr);
+        this.version = version;
+    }
+
+    public LeaderAndIsr withLeader(int newLeader, List<Integer> newIsr){
+        return new LeaderAndIsr(topicPartition, newLeader, leaderEpoch + 1, replicas, newIsr, version + 1);
+    }
+
+    public LeaderAndIsr withIsr(List<Integer> newIsr){
+        return new LeaderAndIsr(topicPartition, leader, leaderEpoch, replicas, newIsr, version + 1);
+    }
+
+    public TopicPartition getTopicPartition() { return topicPartition; }
+    // -1 while no in-sync replica is alive to take over
+    public int getLeader() { return leader; }
+    public int getLeaderEpoch() { return leaderEpoch; }
+    public List<Integer> getReplicas() { return replicas; }
+    public List<Integer> getIsr() { return isr; }
+    public int getVersion() { return version; }
+
+    @Override
+    public String toString() {
+        return topicPartition + " leader=" + leader + " epoch=" + leaderEpoch + " isr=" + isr;
+    }
+}
@@ -0,0 +1,431 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+// A fixed-size segment of encoded records (see RecordFormat) with a sparse index that maps
+// every indexIntervalBytes worth of records to their position. Durable segments are memory-mapped
+// files with the index mirrored to a mapped index file; in-memory segments use a pooled direct buffer.
+public class LogSegment{
+    static final int RECORD_HEADER_BYTES = 12;
+    // [int relativeOffset][int position][long timestamp]
+    private static final int INDEX_ENTRY_BYTES = 16;
+
+    private final long baseOffset;
+    private final Path logFile;
+    private final Path indexFile;
+    private final FileChannel channel;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer indexBuffer;
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final ByteBuffer crcView;
+    private final CRC32C crc;
+    private final int indexIntervalBytes;
+    private final int[] indexOffsets;
+    private final int[] indexPositions;
+    // Append timestamps never go backwards within a partition, so the offset index doubles as a
+    // sparse time index
+    private final long[] indexTimestamps;
+    private int indexEntries;
+    private int bytesSinceLastIndexEntry;
+    private int position;
+    private long nextOffset;
+    private long maxTimestamp;
+    private long lastAppendMs;
+    // Slices handed out and not yet released; the last release finishes a close that arrived meanwhile
+    private int openSlices;
+    private boolean closed;
+
+    private LogSegment(Path dir, BufferPool pool, long baseOffset, int segmentBytes, int indexIntervalBytes) throws IOException {
+        this.baseOffset = baseOffset;
+        this.indexIntervalBytes = indexIntervalBytes;
+        this.pool = pool;
+        int maxIndexEntries = segmentBytes / indexIntervalBytes + 1;
+        boolean existed = false;
+        if(dir != null){
+            this.logFile = dir.resolve(String.format("%020d.log", baseOffset));
+            this.indexFile = dir.resolve(String.format("%020d.index", baseOffset));
+            existed = Files.exists(logFile);
+            this.channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            this.indexBuffer = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) maxIndexEntries * INDEX_ENTRY_BYTES);
+        } else {
+            this.logFile = null;
+            this.indexFile = null;
+            this.channel = null;
+            this.indexChannel = null;
+            this.buffer = pool != null ? pool.acquire() : ByteBuffer.allocateDirect(segmentBytes);
+            this.indexBuffer = null;
+        }
+        this.crcView = buffer.duplicate();
+        this.crc = new CRC32C();
+        this.indexOffsets = new int[maxIndexEntries];
+        this.indexPositions = new int[maxIndexEntries];
+        this.indexTimestamps = new long[maxIndexEntries];
+        this.nextOffset = baseOffset;
+        this.maxTimestamp = -1;
+        this.lastAppendMs = existed ? Files.getLastModifiedTime(logFile).toMillis() : System.currentTimeMillis();
+        if(existed){
+            recover();
+        }
+    }
+
+    public static LogSegment openFile(Path dir, long baseOffset, TopicConfig config){
+        return openFile(dir, baseOffset, config, config.getSegmentBytes());
+    }
+
+    // For segments that are never appended to again, such as the output of the log cleaner, which
+    // only needs room for the records it keeps.
+    public static LogSegment openFile(Path dir, long baseOffset, TopicConfig config, int capacity){
+        try {
+            return new LogSegment(dir, null, baseOffset, capacity, config.getIndexIntervalBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Opens an existing closed segment at the size it was written with.
+    public static LogSegment openClosedFile(Path dir, long baseOffset, TopicConfig config){
+        try {
+            long size = Files.size(dir.resolve(String.format("%020d.log", baseOffset)));
+            return openFile(dir, baseOffset, config, (int) size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Without a pool the buffer is freshly allocated and left to the GC once the segment is deleted.
+    public static LogSegment allocate(BufferPool pool, long baseOffset, TopicConfig config){
+        try {
+            return new LogSegment(null, pool, baseOffset, config.getSegmentBytes(), config.getIndexIntervalBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // An unpooled in-memory segment of the given capacity.
+    public static LogSegment allocate(long baseOffset, TopicConfig config, int capacity){
+        try {
+            return new LogSegment(null, null, baseOffset, capacity, config.getIndexIntervalBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Reloads the index, then scans forward from the last indexed record to find the end of the log,
+    // re-indexing as it goes so a missing or stale index file is rebuilt.
+    private void recover(){
+        while(indexEntries < indexOffsets.length){
+            int relativeOffset = indexBuffer.getInt(indexEntries * INDEX_ENTRY_BYTES);
+            int indexedPosition = indexBuffer.getInt(indexEntries * INDEX_ENTRY_BYTES + 4);
+            if(indexEntries > 0 && relativeOffset == 0 && indexedPosition == 0){
+                break;
+            }
+            indexOffsets[indexEntries] = relativeOffset;
+            indexPositions[indexEntries] = indexedPosition;
+            indexTimestamps[indexEntries] = indexBuffer.getLong(indexEntries * INDEX_ENTRY_BYTES + 8);
+            indexEntries++;
+        }
+        position = indexEntries == 0 ? 0 : indexPositions[indexEntries - 1];
+        while(position + RECORD_HEADER_BYTES <= buffer.capacity()){
+            int length = buffer.getInt(position);
+            if(length <= 0){
+                break;
+            }
+            long offset = buffer.getLong(position + 4);
+            long timestamp = buffer.getLong(position + RecordFormat.TIMESTAMP_POSITION);
+            if(indexEntries == 0 || bytesSinceLastIndexEntry >= indexIntervalBytes){
+                addIndexEntry(offset, timestamp);
+            }
+            nextOffset = offset + 1;
+            maxTimestamp = timestamp;
+            bytesSinceLastIndexEntry += Integer.BYTES + length;
+            position += Integer.BYTES + length;
+        }
+    }
+
+    public boolean hasRoomFor(int recordBytes){
+        return position + recordBytes <= buffer.capacity();
+    }
+
+    public void append(long offset, long timestamp, ByteBuffer key, ByteBuffer value, ByteBuffer headers){
+        append(offset, timestamp, (byte) 0, key, value, headers);
+    }
+
+    public void append(long offset, long timestamp, byte attributes, ByteBuffer key, ByteBuffer value, ByteBuffer headers){
+        if(indexEntries == 0 || bytesSinceLastIndexEntry >= indexIntervalBytes){
+            addIndexEntry(offset, timestamp);
+        }
+        int recordBytes = RecordFormat.write(buffer, position, offset, timestamp, attributes, key, value, headers, crcView, crc);
+        position += recordBytes;
+        bytesSinceLastIndexEntry += recordBytes;
+        nextOffset = offset + 1;
+        maxTimestamp = timestamp;
+        lastAppendMs = System.currentTimeMillis();
+    }
+
+    // Copies an already encoded record verbatim, keeping its offset, timestamp and CRC.
+    public void appendRaw(RecordView record){
+        if(indexEntries == 0 || bytesSinceLastIndexEntry >= indexIntervalBytes){
+            addIndexEntry(record.offset(), record.timestamp());
+        }
+        int recordBytes = record.sizeInBytes();
+        buffer.put(position, record.buffer(), record.position(), recordBytes);
+        position += recordBytes;
+        bytesSinceLastIndexEntry += recordBytes;
+        nextOffset = record.offset() + 1;
+        maxTimestamp = Math.max(maxTimestamp, record.timestamp());
+    }
+
+    // Like appendRaw, for a record whose timestamp was filled in after it was encoded: the inner
+    // records of a compressed batch, which the cleaner writes out one by one.
+    public void appendRewritten(RecordView record){
+        int start = position;
+        appendRaw(record);
+        crcView.clear().position(start + RecordFormat.TIMESTAMP_POSITION).limit(position);
+        crc.reset();
+        crc.update(crcView);
+        buffer.putInt(start + RecordFormat.CRC_POSITION, (int) crc.getValue());
+    }
+
+    private void addIndexEntry(long offset, long timestamp){
+        int relativeOffset = (int) (offset - baseOffset);
+        indexOffsets[indexEntries] = relativeOffset;
+        indexPositions[indexEntries] = position;
+        indexTimestamps[indexEntries] = timestamp;
+        if(indexBuffer != null){
+            indexBuffer.putInt(indexEntries * INDEX_ENTRY_BYTES, relativeOffset);
+            indexBuffer.putInt(indexEntries * INDEX_ENTRY_BYTES + 4, position);
+            indexBuffer.putLong(indexEntries * INDEX_ENTRY_BYTES + 8, timestamp);
+        }
+        indexEntries++;
+        bytesSinceLastIndexEntry = 0;
+    }
+
+    // Position of the first record at or after offset: binary search on the sparse index,
+    // then a short scan of at most indexIntervalBytes.
+    public int positionOf(long offset){
+        int relativeOffset = (int) (offset - baseOffset);
+        int low = 0;
+        int high = indexEntries - 1;
+        int floor = 0;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            if(indexOffsets[mid] <= relativeOffset){
+                floor = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int scan = indexEntries == 0 ? 0 : indexPositions[floor];
+        while(scan < position && buffer.getLong(scan + 4) < offset){
+            scan += Integer.BYTES + buffer.getInt(scan);
+        }
+        return scan;
+    }
+
+    // Offset of the first record with a timestamp at or after the given one, or -1 if every record
+    // is older. Same shape as positionOf: binary search on the index, then a short scan.
+    public long offsetForTimestamp(long timestamp){
+        int low = 0;
+        int high = indexEntries - 1;
+        int floor = 0;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            if(indexTimestamps[mid] < timestamp){
+                floor = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int scan = indexEntries == 0 ? 0 : indexPositions[floor];
+        while(scan < position && buffer.getLong(scan + RecordFormat.TIMESTAMP_POSITION) < timestamp){
+            scan += Integer.BYTES + buffer.getInt(scan);
+        }
+        // Records in a compressed batch share its timestamp, so the answer is the batch's first record
+        return scan < position ? CompressedBatch.baseOffset(new RecordView().wrap(buffer, scan)) : -1;
+    }
+
+    // Reads records in [offset, endOffset), at most maxRecords of them.
+    public int read(long offset, long endOffset, int maxRecords, RecordView view, RecordHandler handler){
+        int read = 0;
+        int scan = positionOf(offset);
+        while(scan < position && read < maxRecords && buffer.getLong(scan + 4) < endOffset){
+            handler.onRecord(view.wrap(buffer, scan));
+            scan += Integer.BYTES + buffer.getInt(scan);
+            read++;
+        }
+        return read;
+    }
+
+    // Locates the records read would deliver without handing them out, so the partition can decode
+    // them after releasing its lock. The slice pins the segment until released.
+    public BufferLogSlice sliceRecords(long offset, long endOffset, int maxRecords){
+        int start = positionOf(offset);
+        int end = start;
+        int records = 0;
+        while(end < position && records < maxRecords && buffer.getLong(end + 4) < endOffset){
+            end += Integer.BYTES + buffer.getInt(end);
+            records++;
+        }
+        if(records == 0){
+            return BufferLogSlice.EMPTY;
+        }
+        retainSlice();
+        return new BufferLogSlice(this, buffer.duplicate().limit(end).position(start), records);
+    }
+
+    public LogSlice slice(long offset, long endOffset, int maxBytes){
+        int start = positionOf(offset);
+        int end = start;
+        int records = 0;
+        while(end < position && buffer.getLong(end + 4) < endOffset){
+            int recordBytes = Integer.BYTES + buffer.getInt(end);
+            if(end > start && end - start + recordBytes > maxBytes){
+                break;
+            }
+            end += recordBytes;
+            records++;
+        }
+        if(records == 0){
+            return BufferLogSlice.EMPTY;
+        }
+        retainSlice();
+        if(channel != null){
+            return new FileLogSlice(this, channel, start, end - start);
+        }
+        return new BufferLogSlice(this, buffer.duplicate().limit(end).position(start), records);
+    }
+
+    private synchronized void retainSlice(){
+        if(closed){
+            throw new IllegalStateException("Segment " + baseOffset + " is closed");
+        }
+        openSlices++;
+    }
+
+    synchronized void releaseSlice(){
+        if(--openSlices == 0 && closed){
+            closeNow();
+        }
+    }
+
+    // Drops every record from offset onwards. The freed bytes and index entries are zeroed so that
+    // recovery after a restart stops at the new end instead of finding the old records.
+    public void truncateTo(long offset){
+        int newPosition = positionOf(offset);
+        if(newPosition >= position){
+            return;
+        }
+        for(int i = newPosition; i < position; i++){
+            buffer.put(i, (byte) 0);
+        }
+        while(indexEntries > 0 && indexPositions[indexEntries - 1] >= newPosition){
+            indexEntries--;
+            if(indexBuffer != null){
+                indexBuffer.putLong(indexEntries * INDEX_ENTRY_BYTES, 0);
+                indexBuffer.putLong(indexEntries * INDEX_ENTRY_BYTES + 8, 0);
+            }
+        }
+        bytesSinceLastIndexEntry = indexEntries == 0 ? 0 : newPosition - indexPositions[indexEntries - 1];
+        maxTimestamp = -1;
+        for(int scan = indexEntries == 0 ? 0 : indexPositions[indexEntries - 1]; scan < newPosition; scan += Integer.BYTES + buffer.getInt(scan)){
+            maxTimestamp = buffer.getLong(scan + RecordFormat.TIMESTAMP_POSITION);
+        }
+        position = newPosition;
+        nextOffset = offset;
+    }
+
+    public void flush(){
+        if(channel != null){
+            ((MappedByteBuffer) buffer).force();
+            indexBuffer.force();
+        }
+    }
+
+    // Deferred while a slice is being sent. The files can still be deleted or replaced in the
+    // meantime: an open channel keeps reading the old file.
+    public synchronized void close(){
+        if(closed){
+            return;
+        }
+        closed = true;
+        if(openSlices == 0){
+            closeNow();
+        }
+    }
+
+    private void closeNow(){
+        if(channel == null){
+            if(pool != null){
+                pool.release(buffer);
+            }
+            return;
+        }
+        try {
+            channel.close();
+            indexChannel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void delete(){
+        close();
+        if(channel == null){
+            return;
+        }
+        try {
+            Files.deleteIfExists(logFile);
+            Files.deleteIfExists(indexFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+
+    public boolean isEmpty() {
+        return position == 0;
+    }
+
+    public Path getLogFile() {
+        return logFile;
+    }
+
+    public Path getIndexFile() {
+        return indexFile;
+    }
+
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    public int getSizeInBytes() {
+        return position;
+    }
+
+    public int getCapacity() {
+        return buffer.capacity();
+    }
+
+    // -1 while the segment is empty
+    public long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    public long getLastAppendMs() {
+        return lastAppendMs;
+    }
+}
@@ -0,0 +1,12 @@
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+// A run of encoded records that can be written to a channel. File-backed slices go through
+// FileChannel.transferTo so the bytes move from the page cache to the socket without touching the heap.
+// A slice pins its segment open until released, so retention cannot close the file or recycle the
+// buffer while the bytes are still being sent.
+public interface LogSlice{
+    int sizeInBytes();
+    void transferTo(WritableByteChannel target) throws IOException;
+    void release();
+}
@@ -0,0 +1,148 @@
+import java.nio.ByteBuffer;
+
+// The LZ4 block format in plain Java: greedy matching on a 4-byte hash, no entropy coding. Each
+// sequence is [token][literal length bytes][literals][short offset][match length bytes], the token
+// holding 4 bits each of literal length and match length - 4, with 15 meaning more bytes follow.
+// Far cheaper than deflate and still several-fold on repetitive JSON.
+public class Lz4Codec implements CompressionCodec{
+    static final int ID = 2;
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int MAX_DISTANCE = 65535;
+    // As in LZ4, the last match starts 12 bytes before the end and the last 5 bytes are literals
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+    // Every 64 misses in a row the search steps one byte further, so incompressible input stays fast
+    private static final int SKIP_TRIGGER = 6;
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    @Override
+    public void compress(ByteBuffer src, ByteBuffer dst) {
+        int start = src.position();
+        int end = src.limit();
+        int out = dst.position();
+        int anchor = start;
+        if(end - start > MATCH_FIND_LIMIT){
+            // Positions are stored + 1 so that 0 means empty
+            int[] table = new int[1 << HASH_LOG];
+            int matchFindLimit = end - MATCH_FIND_LIMIT;
+            int matchLimit = end - LAST_LITERALS;
+            int position = start;
+            int misses = 0;
+            while(position < matchFindLimit){
+                int sequence = src.getInt(position);
+                int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int candidate = table[hash] - 1;
+                table[hash] = position + 1;
+                if(candidate < 0 || position - candidate > MAX_DISTANCE || src.getInt(candidate) != sequence){
+                    position += 1 + (misses++ >> SKIP_TRIGGER);
+                    continue;
+                }
+                int matchLength = MIN_MATCH;
+                while(position + matchLength < matchLimit && src.get(candidate + matchLength) == src.get(position + matchLength)){
+                    matchLength++;
+                }
+                out = writeSequence(src, anchor, position - anchor, dst, out, position - candidate, matchLength);
+                position += matchLength;
+                anchor = position;
+                misses = 0;
+            }
+        }
+        out = writeSequence(src, anchor, end - anchor, dst, out, 0, 0);
+        src.position(end);
+        dst.position(out);
+    }
+
+    // A matchLength of 0 writes the final, literals-only sequence.
+    private static int writeSequence(ByteBuffer src, int literals, int literalLength, ByteBuffer dst, int out,
+                                     int distance, int matchLength){
+        int token = out++;
+        int literalNibble = Math.min(literalLength, 15);
+        int matchNibble = matchLength == 0 ? 0 : Math.min(matchLength - MIN_MATCH, 15);
+        dst.put(token, (byte) (literalNibble << 4 | matchNibble));
+        if(literalNibble == 15){
+            out = writeLength(dst, out, literalLength - 15);
+        }
+        dst.put(out, src, literals, literalLength);
+        out += literalLength;
+        if(matchLength == 0){
+            return out;
+        }
+        dst.put(out++, (byte) distance);
+        dst.put(out++, (byte) (distance >>> 8));
+        if(matchNibble == 15){
+            out = writeLength(dst, out, matchLength - MIN_MATCH - 15);
+        }
+        return out;
+    }
+
+    private static int writeLength(ByteBuffer dst, int out, int length){
+        while(length >= 255){
+            dst.put(out++, (byte) 255);
+            length -= 255;
+        }
+        dst.put(out++, (byte) length);
+        return out;
+    }
+
+    @Override
+    public void decompress(ByteBuffer src, ByteBuffer dst) {
+        int in = src.position();
+        int end = src.limit();
+        int start = dst.position();
+        int out = start;
+        while(in < end){
+            int token = src.get(in++) & 0xFF;
+            int literalLength = token >>> 4;
+            if(literalLength == 15){
+                int next;
+                do {
+                    next = src.get(in++) & 0xFF;
+                    literalLength += next;
+                } while(next == 255);
+            }
+            dst.put(out, src, in, literalLength);
+            in += literalLength;
+            out += literalLength;
+            if(in == end){
+                break;
+            }
+            int distance = (src.get(in) & 0xFF) | (src.get(in + 1) & 0xFF) << 8;
+            in += 2;
+            int matchLength = (token & 0x0F) + MIN_MATCH;
+            if((token & 0x0F) == 15){
+                int next;
+                do {
+                    next = src.get(in++) & 0xFF;
+                    matchLength += next;
+                } while(next == 255);
+            }
+            if(distance == 0 || distance > out - start){
+                throw new IllegalStateException("Corrupt LZ4 batch: match " + distance + " bytes back at " + (out - start));
+            }
+            if(distance >= matchLength){
+                dst.put(out, dst, out - distance, matchLength);
+            } else {
+                // Overlapping match, e.g. a run of one byte: copy forwards so it repeats
+                for(int i = 0; i < matchLength; i++){
+                    dst.put(out + i, dst.get(out - distance + i));
+                }
+            }
+            out += matchLength;
+        }
+        if(out != dst.limit()){
+            throw new IllegalStateException("Compressed batch expanded to " + (out - start) + " bytes, expected " + (dst.limit() - start));
+        }
+        src.position(end);
+        dst.position(out);
+    }
+}
@@ -0,0 +1,57 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class Message{
+    private final String key;
+    private final String content;
+    private final String producerId;
+    private final long offset;
+    private final long timestamp;
+
+    public Message(String content, String producerId) {
+        this(null, content, producerId);
+    }
+
+    public Message(String key, String content, String producerId) {
+        this(key, content, producerId, -1, -1);
+    }
+
+    public Message(String key, String content, String producerId, long offset, long timestamp) {
+        this.key = key;
+        this.content = content;
+        this.producerId = producerId;
+        this.offset = offset;
+        this.timestamp = timestamp;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getProducerId() {
+        return producerId;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    // -1 until the message has been read back from a log
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    // Rough in-memory footprint used for batching decisions, not the exact encoded size.
+    public int estimatedSizeInBytes(){
+        return RecordFormat.FIXED_BYTES + (key == null ? 0 : key.length()) + (content == null ? 0 : content.length())
+                + producerId.length();
+    }
+
+    static ByteBuffer utf8(String value){
+        return value == null ? null : ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// Identifies a metric by group, name and ordered tags, e.g. topic/messages-in{topic=orders,partition=0}.
+public class MetricName{
+    private final String group;
+    private final String name;
+    private final Map<String, String> tags;
+
+    private MetricName(String group, String name, Map<String, String> tags) {
+        this.group = group;
+        this.name = name;
+        this.tags = tags;
+    }
+
+    public static MetricName of(String group, String name, String... tagKeysAndValues){
+        if(tagKeysAndValues.length % 2 != 0){
+            throw new IllegalArgumentException("Tags must be given as key/value pairs");
+        }
+        Map<String, String> tags = new LinkedHashMap<>();
+        for(int i = 0; i < tagKeysAndValues.length; i += 2){
+            tags.put(tagKeysAndValues[i], tagKeysAndValues[i + 1]);
+        }
+        return new MetricName(group, name, Collections.unmodifiableMap(tags));
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof MetricName)) return false;
+        MetricName that = (MetricName) o;
+        return group.equals(that.group) && name.equals(that.name) && tags.equals(that.tags);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(group, name, tags);
+    }
+
+    @Override
+    public String toString() {
+        return group + "/" + name + tags;
+    }
+}
@@ -0,0 +1,19 @@
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Where QueueSystem, topics and consumers register their metrics. Counters and histograms are
+// created on first use and shared by later callers with the same name; gauges are read on demand.
+public interface MetricsRegistry{
+    LongAdder counter(MetricName name);
+
+    LatencyHistogram histogram(MetricName name);
+
+    void gauge(MetricName name, LongSupplier value);
+
+    void remove(MetricName name);
+
+    Map<MetricName, Object> getMetrics();
+
+    void close();
+}
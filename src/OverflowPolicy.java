@@ -0,0 +1,9 @@
+// What a producer append does when the partition has used up its share of the topic's maxBytes.
+public enum OverflowPolicy {
+    // Wait (up to maxBlockMs) for consumer groups to move past the oldest segment so it can be freed
+    BLOCK,
+    // Reject the append straight away
+    FAIL_FAST,
+    // Delete the oldest segment, whether or not it has been consumed
+    DROP_OLDEST
+}
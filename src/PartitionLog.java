@@ -0,0 +1,32 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public interface PartitionLog{
+    // Null key or value are allowed; the buffers are read but not consumed.
+    long append(ByteBuffer key, ByteBuffer value, ByteBuffer headers);
+    long append(Message message);
+    // Appends all messages under a single lock acquisition and returns the offset of the first.
+    long appendBatch(List<Message> messages);
+    // Appends a CompressedBatch value as one record and returns the offset of its first inner record.
+    long appendCompressedBatch(CompressionCodec codec, int recordCount, ByteBuffer batch);
+    // Copies a record fetched from the partition's leader, keeping its offset and timestamp.
+    void appendReplica(RecordView record);
+    // Points view at each record in [offset, endOffset) and hands it to handler; returns the number read.
+    int read(long offset, long endOffset, int maxRecords, RecordView view, RecordHandler handler);
+    List<Message> read(long offset, int maxMessages);
+    long getLogStartOffset();
+    long getLogEndOffset();
+    // Whole records in [offset, endOffset), in the segment file format, up to maxBytes (at least one record).
+    LogSlice slice(long offset, long endOffset, int maxBytes);
+    // Offset of the first record appended at or after timestamp (epoch ms), or the log end offset if none was.
+    long offsetForTimestamp(long timestamp);
+    // Removes every record from offset onwards, e.g. uncommitted records of a deposed leader.
+    void truncateTo(long offset);
+    // Empties the log and continues from offset, for a follower that fell behind the leader's retention.
+    void truncateFullyAndStartAt(long offset);
+    // Periodic housekeeping: time-based flushes and retention.
+    void maintain();
+    // One incremental compaction step for compacted topics; a no-op otherwise.
+    void compact();
+    void close();
+}
@@ -0,0 +1,181 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Replication state of one partition on one node. The leader tracks how far each follower has
+// fetched, derives the high watermark from the in-sync replicas and asks the controller to shrink
+// or expand the ISR. A follower only keeps the high watermark its leader last reported.
+public class PartitionReplica{
+    private final TopicPartition topicPartition;
+    private final int localNodeId;
+    private final PartitionLog log;
+    private final TopicConfig config;
+    private final ReplicationController controller;
+    private final Map<Integer, Long> followerEndOffsets;
+    private final Map<Integer, Long> leaderEndOffsetsAtLastFetch;
+    private final Map<Integer, Long> followerCaughtUpMs;
+    private LeaderAndIsr state;
+    private long highWatermark;
+
+    public PartitionReplica(TopicPartition topicPartition, int localNodeId, PartitionLog log, TopicConfig config,
+                            ReplicationController controller) {
+        this.topicPartition = topicPartition;
+        this.localNodeId = localNodeId;
+        this.log = log;
+        this.config = config;
+        this.controller = controller;
+        this.followerEndOffsets = new HashMap<>();
+        this.leaderEndOffsetsAtLastFetch = new HashMap<>();
+        this.followerCaughtUpMs = new HashMap<>();
+    }
+
+    // Returns true when this node has just become a follower of a new leader and must start fetching.
+    public synchronized boolean apply(LeaderAndIsr newState){
+        if(state != null && newState.getVersion() <= state.getVersion()){
+            return false;
+        }
+        boolean newLeader = state == null || state.getLeaderEpoch() != newState.getLeaderEpoch();
+        state = newState;
+        notifyAll();
+        if(!newLeader || !newState.getReplicas().contains(localNodeId)){
+            return false;
+        }
+        followerEndOffsets.clear();
+        leaderEndOffsetsAtLastFetch.clear();
+        followerCaughtUpMs.clear();
+        if(newState.getLeader() == localNodeId){
+            // Followers get a full lag interval to show up before they can be dropped from the ISR
+            long now = System.currentTimeMillis();
+            for(int replica: newState.getReplicas()){
+                followerCaughtUpMs.put(replica, now);
+            }
+            return false;
+        }
+        // Records past the high watermark were never committed and may not exist on the new leader
+        log.truncateTo(highWatermark);
+        return newState.getLeader() >= 0;
+    }
+
+    public synchronized boolean isLeader(){
+        return state != null && state.getLeader() == localNodeId;
+    }
+
+    public synchronized boolean isFollowing(int leaderEpoch){
+        return state != null && state.getLeaderEpoch() == leaderEpoch && state.getLeader() >= 0
+                && state.getLeader() != localNodeId;
+    }
+
+    public synchronized LeaderAndIsr getState(){
+        return state;
+    }
+
+    // On the leader: the log end offset of the slowest in-sync replica. It never moves backwards,
+    // even when a new leader has not heard from its followers yet.
+    public synchronized long getHighWatermark(){
+        if(isLeader()){
+            long newHighWatermark = log.getLogEndOffset();
+            for(int replica: state.getIsr()){
+                if(replica != localNodeId){
+                    newHighWatermark = Math.min(newHighWatermark, followerEndOffsets.getOrDefault(replica, highWatermark));
+                }
+            }
+            highWatermark = Math.max(highWatermark, newHighWatermark);
+        }
+        return highWatermark;
+    }
+
+    public synchronized void updateFollowerHighWatermark(long leaderHighWatermark){
+        highWatermark = Math.max(highWatermark, Math.min(leaderHighWatermark, log.getLogEndOffset()));
+    }
+
+    // A follower's fetch offset is its log end offset. It counts as caught up when it has everything
+    // the leader had at its previous fetch, so a follower keeping pace under constant load stays in sync.
+    // Returns false if this node is not the leader.
+    public boolean recordFollowerFetch(int replicaId, long fetchOffset){
+        LeaderAndIsr current;
+        List<Integer> expandedIsr = null;
+        synchronized (this) {
+            if(!isLeader() || !state.getReplicas().contains(replicaId)){
+                return false;
+            }
+            long leaderEndOffset = log.getLogEndOffset();
+            Long previousLeaderEndOffset = leaderEndOffsetsAtLastFetch.put(replicaId, leaderEndOffset);
+            followerEndOffsets.put(replicaId, fetchOffset);
+            if(fetchOffset >= leaderEndOffset || (previousLeaderEndOffset != null && fetchOffset >= previousLeaderEndOffset)){
+                followerCaughtUpMs.put(replicaId, System.currentTimeMillis());
+            }
+            if(!state.getIsr().contains(replicaId) && fetchOffset >= getHighWatermark()){
+                expandedIsr = new ArrayList<>(state.getIsr());
+                expandedIsr.add(replicaId);
+            }
+            current = state;
+            notifyAll();
+        }
+        if(expandedIsr != null){
+            alterIsr(current, expandedIsr);
+        }
+        return true;
+    }
+
+    // Run periodically on the leader.
+    public void maybeShrinkIsr(){
+        LeaderAndIsr current;
+        List<Integer> shrunkIsr = new ArrayList<>();
+        synchronized (this) {
+            if(!isLeader()){
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for(int replica: state.getIsr()){
+                if(replica == localNodeId || now - followerCaughtUpMs.getOrDefault(replica, now) <= config.getReplicaLagTimeMs()){
+                    shrunkIsr.add(replica);
+                }
+            }
+            if(shrunkIsr.size() == state.getIsr().size()){
+                return;
+            }
+            current = state;
+        }
+        alterIsr(current, shrunkIsr);
+    }
+
+    // Called outside the replica lock, since the controller pushes the result to every replica.
+    private void alterIsr(LeaderAndIsr current, List<Integer> isr){
+        LeaderAndIsr updated = controller.alterIsr(current, isr);
+        if(updated != null){
+            apply(updated);
+        }
+    }
+
+    public synchronized void checkAppend(Acks acks){
+        if(!isLeader()){
+            throw new IllegalStateException("Node " + localNodeId + " is not the leader of " + topicPartition);
+        }
+        if(acks == Acks.ALL && state.getIsr().size() < config.getMinInSyncReplicas()){
+            throw new IllegalStateException("Only " + state.getIsr().size() + " in-sync replicas for " + topicPartition
+                    + ", need " + config.getMinInSyncReplicas());
+        }
+    }
+
+    // For acks=all: waits until every in-sync replica has the offset. A follower that cannot keep
+    // up is dropped from the ISR after replicaLagTimeMs, so the wait is bounded by about that long.
+    public synchronized void awaitReplication(long offset){
+        long deadline = System.currentTimeMillis() + 2 * config.getReplicaLagTimeMs();
+        while(getHighWatermark() <= offset){
+            if(!isLeader()){
+                throw new IllegalStateException("Leadership of " + topicPartition + " moved before offset " + offset + " was replicated");
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0){
+                throw new IllegalStateException("Offset " + offset + " of " + topicPartition + " was not replicated in time");
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for replication", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class Producer{
+    private final String id;
+    private final QueueSystem queueSystem;
+    private final ProducerConfig config;
+    private final Map<TopicPartition, RecordBatch> openBatches;
+    private final ByteBuffer headers;
+    private ScheduledExecutorService sender;
+
+    public Producer(String id, QueueSystem queueSystem) {
+        this(id, queueSystem, ProducerConfig.defaults());
+    }
+
+    public Producer(String id, QueueSystem queueSystem, ProducerConfig config) {
+        this.id = id;
+        this.queueSystem = queueSystem;
+        this.config = config;
+        this.openBatches = new HashMap<>();
+        this.headers = new RecordHeaders().add(RecordHeaders.PRODUCER_ID, id).encode();
+    }
+
+    public long publish(String topicName, String messageContent){
+        return publish(topicName, null, messageContent);
+    }
+
+    public long publish(String topicName, String key, String messageContent){
+        Message message = new Message(key, messageContent, id);
+        return queueSystem.publishMessage(topicName, message, config.getAcks());
+    }
+
+    // A null value marks the key as deleted on compacted topics.
+    public long publishTombstone(String topicName, String key){
+        return publish(topicName, key, null);
+    }
+
+    // Allocation-free publish: key and value are copied straight into the partition's segment
+    // together with this producer's pre-encoded headers. Key may be null.
+    public long publish(String topicName, ByteBuffer key, ByteBuffer value){
+        return queueSystem.publishRecord(topicName, key, value, headers, config.getAcks());
+    }
+
+    // Asynchronous publish: the record joins the open batch for its partition, which is appended
+    // to the log in one go once it reaches batch.size or has waited linger.ms.
+    // The future completes with the offset the record was assigned.
+    public CompletableFuture<Long> send(String topicName, String key, String messageContent){
+        Topic topic = queueSystem.getTopic(topicName);
+        if(topic == null){
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Unknown topic " + topicName));
+        }
+        TopicPartition topicPartition = new TopicPartition(topicName, topic.partitionFor(key));
+        Message message = new Message(key, messageContent, id);
+        RecordBatch full = null;
+        CompletableFuture<Long> future;
+        synchronized (openBatches) {
+            RecordBatch batch = openBatches.get(topicPartition);
+            if(batch == null){
+                batch = new RecordBatch(topicPartition);
+                openBatches.put(topicPartition, batch);
+                RecordBatch lingering = batch;
+                getSender().schedule(() -> sendIfOpen(lingering), config.getLingerMs(), TimeUnit.MILLISECONDS);
+            }
+            future = batch.add(message);
+            if(batch.getSizeInBytes() >= config.getBatchSize()){
+                openBatches.remove(topicPartition);
+                full = batch;
+            }
+        }
+        if(full != null){
+            RecordBatch ready = full;
+            getSender().execute(() -> sendBatch(ready));
+        }
+        return future;
+    }
+
+    private void sendIfOpen(RecordBatch batch){
+        synchronized (openBatches) {
+            if(!openBatches.remove(batch.getTopicPartition(), batch)){
+                return;
+            }
+        }
+        sendBatch(batch);
+    }
+
+    // Runs on the single sender thread, so batches for a partition reach the log in send order.
+    private void sendBatch(RecordBatch batch){
+        TopicPartition topicPartition = batch.getTopicPartition();
+        try {
+            long baseOffset;
+            CompressionCodec codec = config.getCompression();
+            if(codec == null){
+                baseOffset = queueSystem.publishBatch(topicPartition.getTopic(), topicPartition.getPartition(),
+                        batch.getMessages(), config.getAcks());
+            } else {
+                baseOffset = queueSystem.publishCompressedBatch(topicPartition.getTopic(), topicPartition.getPartition(),
+                        codec, batch.getMessages().size(), CompressedBatch.encode(batch.getMessages(), codec), config.getAcks());
+            }
+            batch.complete(baseOffset);
+        } catch (RuntimeException e) {
+            batch.fail(e);
+        }
+    }
+
+    // Sends every open batch now and waits until all of them have been appended.
+    public void flush(){
+        List<RecordBatch> pending;
+        synchronized (openBatches) {
+            pending = new ArrayList<>(openBatches.values());
+            openBatches.clear();
+        }
+        for(RecordBatch batch: pending){
+            getSender().execute(() -> sendBatch(batch));
+        }
+        for(RecordBatch batch: pending){
+            batch.whenDone().exceptionally(e -> null).join();
+        }
+    }
+
+    public void close(){
+        flush();
+        synchronized (this) {
+            if(sender != null){
+                sender.shutdown();
+            }
+        }
+    }
+
+    private synchronized ScheduledExecutorService getSender(){
+        if(sender == null){
+            sender = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "producer-" + id + "-sender");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sender;
+    }
+}
@@ -0,0 +1,60 @@
+public class ProducerConfig{
+    private final long lingerMs;
+    private final int batchSize;
+    private final Acks acks;
+    private final CompressionCodec compression;
+
+    private ProducerConfig(Builder builder) {
+        this.lingerMs = builder.lingerMs;
+        this.batchSize = builder.batchSize;
+        this.acks = builder.acks;
+        this.compression = builder.compression;
+    }
+
+    public static ProducerConfig defaults(){
+        return new Builder().build();
+    }
+
+    public long getLingerMs() { return lingerMs; }
+    public int getBatchSize() { return batchSize; }
+    public Acks getAcks() { return acks; }
+    public CompressionCodec getCompression() { return compression; }
+
+    public static class Builder {
+        private long lingerMs = 5;
+        private int batchSize = 16 * 1024;
+        private Acks acks = Acks.LEADER;
+        private CompressionCodec compression;
+
+        // How long a batch may wait for more records before it is sent anyway
+        public Builder lingerMs(long lingerMs) {
+            this.lingerMs = lingerMs;
+            return this;
+        }
+
+        // Approximate bytes of records after which a batch is sent without waiting for the linger
+        public Builder batchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder acks(Acks acks) {
+            this.acks = acks;
+            return this;
+        }
+
+        // Codec for batches built by send(), e.g. CompressionCodecs.LZ4; null (the default) sends them
+        // uncompressed. Records published one at a time are never compressed.
+        public Builder compression(CompressionCodec compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public ProducerConfig build() {
+            if(lingerMs < 0 || batchSize <= 0){
+                throw new IllegalArgumentException("linger.ms must be >= 0 and batch.size > 0");
+            }
+            return new ProducerConfig(this);
+        }
+    }
+}
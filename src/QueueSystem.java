@@ -0,0 +1,383 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class QueueSystem {
+    private static final int DEFAULT_PARTITIONS = 1;
+    private static final long MAINTENANCE_INTERVAL_MS = 100;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final long COMPACTION_INTERVAL_MS = 1000;
+
+    private final Path dataDir;
+    private ConcurrentHashMap<String, Topic> topics;
+    private ConcurrentHashMap<String, RingBufferTopic> ringBufferTopics;
+    private ConcurrentHashMap<Integer, BufferPool> bufferPools;
+    private ConcurrentHashMap<String, ConsumerGroup> consumerGroups;
+    // Each running consumer's handle from ConsumerScheduler.start
+    private ConcurrentHashMap<Consumer, Future<?>> runningConsumers;
+    private final ConsumerScheduler consumerScheduler;
+    private final MetricsRegistry metrics;
+    // Long-lived loops that must not share the bounded consumer pool: ring buffer cursors and fetch connections
+    private ExecutorService executorService;
+    private ScheduledExecutorService maintenanceExecutor;
+    private ScheduledExecutorService logCleanerExecutor;
+    private volatile FetchServer fetchServer;
+    private volatile ReplicationController controller;
+    private volatile int nodeId = -1;
+    private volatile boolean shutDown;
+
+    public QueueSystem() {
+        this(null);
+    }
+
+    // With a data directory, topics created as durable keep their partitions in segment files
+    // under dataDir and pick up existing segments when they are created again after a restart.
+    public QueueSystem(Path dataDir) {
+        this(dataDir, ConsumerScheduler.bounded(Math.max(2, Runtime.getRuntime().availableProcessors())));
+    }
+
+    public QueueSystem(Path dataDir, ConsumerScheduler consumerScheduler) {
+        this(dataDir, consumerScheduler, new InMemoryMetricsRegistry());
+    }
+
+    public QueueSystem(Path dataDir, ConsumerScheduler consumerScheduler, MetricsRegistry metrics) {
+        this.dataDir = dataDir;
+        this.consumerScheduler = consumerScheduler;
+        this.metrics = metrics;
+        this.topics = new ConcurrentHashMap<>();
+        this.ringBufferTopics = new ConcurrentHashMap<>();
+        this.bufferPools = new ConcurrentHashMap<>();
+        this.consumerGroups = new ConcurrentHashMap<>();
+        this.runningConsumers = new ConcurrentHashMap<>();
+        this.executorService = Executors.newCachedThreadPool();
+        this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor();
+        maintenanceExecutor.scheduleWithFixedDelay(this::maintainTopics,
+                MAINTENANCE_INTERVAL_MS, MAINTENANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        // Compaction gets its own thread so a long rewrite never delays flushes and retention
+        this.logCleanerExecutor = Executors.newSingleThreadScheduledExecutor();
+        logCleanerExecutor.scheduleWithFixedDelay(this::compactTopics,
+                COMPACTION_INTERVAL_MS, COMPACTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void createTopic(String topicName){
+        createTopic(topicName, DEFAULT_PARTITIONS);
+    }
+
+    public void createTopic(String topicName, int partitions){
+        createTopic(topicName, TopicConfig.ofPartitions(partitions));
+    }
+
+    // Replicated topics are created through the cluster's controller, which places the replicas
+    // and creates the topic on every node.
+    public void createTopic(String topicName, TopicConfig config){
+        if(config.getReplicationFactor() > 1){
+            if(controller == null){
+                throw new IllegalStateException("Replicated topics need a QueueSystem that joined a ReplicationController");
+            }
+            controller.createTopic(topicName, config);
+            return;
+        }
+        createLocalTopic(topicName, config);
+    }
+
+    void createLocalTopic(String topicName, TopicConfig config){
+        if(ringBufferTopics.containsKey(topicName)){
+            throw new IllegalArgumentException("Topic " + topicName + " already exists as a ring buffer topic");
+        }
+        BufferPool pool = bufferPools.computeIfAbsent(config.getSegmentBytes(), size -> new BufferPool(size, MAX_POOLED_BUFFERS));
+        topics.computeIfAbsent(topicName, name -> new Topic(name, config, dataDir, pool, metrics, controller, nodeId));
+    }
+
+    // Makes this QueueSystem node nodeId of the controller's cluster. Its fetch server is started on
+    // an ephemeral port so followers on other nodes (or processes) can replicate from it.
+    public void joinCluster(ReplicationController controller, int nodeId){
+        if(this.controller != null){
+            throw new IllegalStateException("Already node " + this.nodeId + " of a cluster");
+        }
+        FetchServer server = startFetchServer(0);
+        this.nodeId = nodeId;
+        this.controller = controller;
+        controller.registerNode(nodeId, this, new InetSocketAddress("localhost", server.getPort()));
+    }
+
+    // Called by the controller with every leadership or ISR change of a partition this node replicates.
+    void applyLeaderAndIsr(LeaderAndIsr state){
+        Topic topic = topics.get(state.getTopicPartition().getTopic());
+        if(topic == null || shutDown){
+            return;
+        }
+        int partition = state.getTopicPartition().getPartition();
+        PartitionReplica replica = topic.getReplica(partition);
+        if(replica != null && replica.apply(state)){
+            InetSocketAddress leaderAddress = controller.getNodeAddress(state.getLeader());
+            try {
+                executorService.submit(new ReplicaFetcher(topic, partition, replica, state.getLeaderEpoch(), nodeId, leaderAddress));
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        }
+    }
+
+    // The topic object to append to: this node's own unless the partition is replicated and led elsewhere.
+    private Topic leaderTopic(Topic topic, int partition){
+        if(topic.isLeader(partition)){
+            return topic;
+        }
+        QueueSystem leader = controller.getLeaderNode(topic.getName(), partition);
+        Topic leaderTopic = leader == null ? null : leader.getTopic(topic.getName());
+        if(leaderTopic == null){
+            throw new IllegalStateException("No live leader for " + topic.getName() + "-" + partition);
+        }
+        return leaderTopic;
+    }
+
+    // Applies acks once the records [offset, offset + count) are on the leader.
+    private static long acknowledge(Topic leaderTopic, int partition, long offset, int count, Acks acks){
+        if(acks == Acks.ALL){
+            leaderTopic.awaitReplication(partition, offset + count - 1);
+        }
+        return acks == Acks.NONE ? -1 : offset;
+    }
+
+    // Low-latency alternative to a log-backed topic: no partitions, offsets or replay, just a
+    // bounded ring of capacity slots of slotBytes each that producers hand records through.
+    public RingBufferTopic createRingBufferTopic(String topicName, int capacity, int slotBytes, WaitStrategy waitStrategy){
+        if(topics.containsKey(topicName)){
+            throw new IllegalArgumentException("Topic " + topicName + " already exists as a log topic");
+        }
+        return ringBufferTopics.computeIfAbsent(topicName, name -> new RingBufferTopic(name, capacity, slotBytes, waitStrategy));
+    }
+
+    public RingBufferConsumer subscribeToRingBuffer(String topicName, RecordHandler handler){
+        RingBufferTopic ringBuffer = ringBufferTopics.get(topicName);
+        if(ringBuffer == null){
+            throw new IllegalArgumentException("Unknown ring buffer topic " + topicName);
+        }
+        RingBufferConsumer consumer = ringBuffer.subscribe(handler);
+        executorService.submit(consumer);
+        return consumer;
+    }
+
+    // A scheduled task that throws is never run again, so failures are only logged.
+    private void maintainTopics(){
+        if(controller != null){
+            controller.heartbeat(nodeId);
+        }
+        for(Topic topic: topics.values()){
+            try {
+                topic.maintain();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void compactTopics(){
+        for(Topic topic: topics.values()){
+            try {
+                topic.compact();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Returns the offset assigned to the message, or -1 if the topic does not exist.
+    public long publishMessage(String topicName, Message message){
+        return publishMessage(topicName, message, Acks.LEADER);
+    }
+
+    // Partitions of replicated topics are appended on their current leader, whichever node that is.
+    // With Acks.NONE the offset is not reported and neither are failures; the append itself is
+    // still synchronous (see Acks).
+    public long publishMessage(String topicName, Message message, Acks acks){
+        Topic topic = topics.get(topicName);
+        if(topic == null){
+            return -1;
+        }
+        int partition = topic.partitionFor(message.getKey());
+        try {
+            Topic leaderTopic = leaderTopic(topic, partition);
+            leaderTopic.checkAppend(partition, acks);
+            return acknowledge(leaderTopic, partition, leaderTopic.addMessage(partition, message), 1, acks);
+        } catch (RuntimeException e) {
+            if(acks == Acks.NONE){
+                return -1;
+            }
+            throw e;
+        }
+    }
+
+    public long publishRecord(String topicName, ByteBuffer key, ByteBuffer value, ByteBuffer headers){
+        return publishRecord(topicName, key, value, headers, Acks.LEADER);
+    }
+
+    public long publishRecord(String topicName, ByteBuffer key, ByteBuffer value, ByteBuffer headers, Acks acks){
+        Topic topic = topics.get(topicName);
+        if(topic == null){
+            RingBufferTopic ringBuffer = ringBufferTopics.get(topicName);
+            return ringBuffer == null ? -1 : ringBuffer.publish(key, value, headers);
+        }
+        int partition = topic.partitionFor(key);
+        try {
+            Topic leaderTopic = leaderTopic(topic, partition);
+            leaderTopic.checkAppend(partition, acks);
+            return acknowledge(leaderTopic, partition, leaderTopic.addRecord(partition, key, value, headers), 1, acks);
+        } catch (RuntimeException e) {
+            if(acks == Acks.NONE){
+                return -1;
+            }
+            throw e;
+        }
+    }
+
+    public long publishBatch(String topicName, int partition, List<Message> messages){
+        return publishBatch(topicName, partition, messages, Acks.LEADER);
+    }
+
+    public long publishBatch(String topicName, int partition, List<Message> messages, Acks acks){
+        Topic topic = topics.get(topicName);
+        if(topic == null){
+            throw new IllegalArgumentException("Unknown topic " + topicName);
+        }
+        try {
+            Topic leaderTopic = leaderTopic(topic, partition);
+            leaderTopic.checkAppend(partition, acks);
+            return acknowledge(leaderTopic, partition, leaderTopic.addMessages(partition, messages), messages.size(), acks);
+        } catch (RuntimeException e) {
+            if(acks == Acks.NONE){
+                return -1;
+            }
+            throw e;
+        }
+    }
+
+    // A batch compressed by the producer with CompressedBatch.encode, appended without being expanded.
+    public long publishCompressedBatch(String topicName, int partition, CompressionCodec codec, int recordCount,
+                                       ByteBuffer batch, Acks acks){
+        Topic topic = topics.get(topicName);
+        if(topic == null){
+            throw new IllegalArgumentException("Unknown topic " + topicName);
+        }
+        try {
+            Topic leaderTopic = leaderTopic(topic, partition);
+            leaderTopic.checkAppend(partition, acks);
+            return acknowledge(leaderTopic, partition, leaderTopic.addCompressedBatch(partition, codec, recordCount, batch),
+                    recordCount, acks);
+        } catch (RuntimeException e) {
+            if(acks == Acks.NONE){
+                return -1;
+            }
+            throw e;
+        }
+    }
+
+    public List<Message> readMessages(String topicName, int partition, long offset, int maxMessages){
+        Topic topic = topics.get(topicName);
+        if(topic == null){
+            return Collections.emptyList();
+        }
+        return topic.read(partition, offset, maxMessages);
+    }
+
+    // Points the group at the first record of each partition appended at or after timestamp (epoch ms),
+    // or at the log end where there is none, e.g. to replay from the start of an incident.
+    public void seekToTimestamp(String groupId, String topicName, long timestamp){
+        Topic topic = topics.get(topicName);
+        if(topic == null){
+            throw new IllegalArgumentException("Unknown topic " + topicName);
+        }
+        ConsumerGroup group = consumerGroups.computeIfAbsent(groupId, id -> new ConsumerGroup(id, metrics));
+        for(int partition = 0; partition < topic.getPartitionCount(); partition++){
+            group.seek(new TopicPartition(topicName, partition), topic.offsetForTimestamp(partition, timestamp));
+        }
+    }
+
+    // Joining a group triggers a rebalance; each consumer is scheduled once however many topics it joins.
+    public void subscribeConsumer(String topicName, Consumer consumer){
+        Topic topic = topics.get(topicName);
+        if (topic!= null){
+            consumerGroups.computeIfAbsent(consumer.getGroupId(), groupId -> new ConsumerGroup(groupId, metrics))
+                    .join(consumer, topic);
+            runningConsumers.computeIfAbsent(consumer, running -> {
+                running.setRunning(true);
+                return consumerScheduler.start(running);
+            });
+        }
+    }
+
+    // Stops the consumer's poll loop as well as taking it out of its group
+    public void unsubscribeConsumer(Consumer consumer){
+        Future<?> polling = runningConsumers.remove(consumer);
+        if(polling != null){
+            consumer.setRunning(false);
+            polling.cancel(true);
+        }
+        ConsumerGroup group = consumerGroups.get(consumer.getGroupId());
+        if(group != null){
+            group.leave(consumer);
+        }
+    }
+
+    public Topic getTopic(String topicName){
+        return topics.get(topicName);
+    }
+
+    public ConsumerGroup getConsumerGroup(String groupId){
+        return consumerGroups.get(groupId);
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    // Lets remote consumers fetch (topic, partition, offset, maxBytes) ranges over a socket.
+    // Pass port 0 to bind an ephemeral port.
+    public synchronized FetchServer startFetchServer(int port){
+        if(fetchServer == null){
+            try {
+                fetchServer = new FetchServer(this, port, executorService);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            fetchServer.start();
+        }
+        return fetchServer;
+    }
+
+    // A cluster node that shuts down simply stops heartbeating; the controller moves its partitions
+    // once the session times out.
+    public void shutdown(){
+        shutDown = true;
+        if(fetchServer != null){
+            fetchServer.close();
+        }
+        executorService.shutdownNow();
+        maintenanceExecutor.shutdownNow();
+        logCleanerExecutor.shutdownNow();
+        try {
+            consumerScheduler.shutdown();
+            executorService.awaitTermination(1, TimeUnit.SECONDS);
+            maintenanceExecutor.awaitTermination(1, TimeUnit.SECONDS);
+            logCleanerExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for(Topic topic: topics.values()){
+            topic.close();
+        }
+        topics.clear();
+        metrics.close();
+    }
+}
@@ -0,0 +1,22 @@
+public class RPCBatchRequest {
+    private final int requestId;
+    private final int methodId;
+    private final RPCDeadline deadline;
+    private final long traceId;
+    private final int[][] columns;
+
+    public RPCBatchRequest(int requestId, int methodId, RPCDeadline deadline, long traceId, int[][] columns) {
+        this.requestId = requestId;
+        this.methodId = methodId;
+        this.deadline = deadline;
+        this.traceId = traceId;
+        this.columns = columns;
+    }
+
+    public int getRequestId() { return requestId; }
+    public int getMethodId() { return methodId; }
+    public RPCDeadline getDeadline() { return deadline; }
+    public long getTraceId() { return traceId; }
+    public int[][] getColumns() { return columns; }
+    public int getRowCount() { return columns[0].length; }
+}
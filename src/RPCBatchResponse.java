@@ -0,0 +1,18 @@
+public class RPCBatchResponse {
+    private final int requestId;
+    private final byte status;
+    private final int[] results;
+    private final int[] failedRows;
+
+    public RPCBatchResponse(int requestId, byte status, int[] results, int[] failedRows) {
+        this.requestId = requestId;
+        this.status = status;
+        this.results = results;
+        this.failedRows = failedRows;
+    }
+
+    public int getRequestId() { return requestId; }
+    public byte getStatus() { return status; }
+    public int[] getResults() { return results; }
+    public int[] getFailedRows() { return failedRows; }
+}
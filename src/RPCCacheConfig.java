@@ -0,0 +1,55 @@
+import java.util.concurrent.TimeUnit;
+
+public class RPCCacheConfig {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final RPCMetricsRegistry metrics;
+
+    private RPCCacheConfig(Builder builder) {
+        this.maxEntries = builder.maxEntries;
+        this.ttlNanos = builder.ttlNanos;
+        this.metrics = builder.metrics;
+    }
+
+    public static RPCCacheConfig defaults() {
+        return new Builder().build();
+    }
+
+    public int getMaxEntries() { return maxEntries; }
+    // 0 if entries never expire
+    public long getTtlNanos() { return ttlNanos; }
+    // Null if the cache's metrics are only available from the cache itself
+    public RPCMetricsRegistry getMetrics() { return metrics; }
+
+    public static class Builder {
+        private int maxEntries = 10_000;
+        private long ttlNanos;
+        private RPCMetricsRegistry metrics;
+
+        public Builder maxEntries(int maxEntries) {
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        // How long a result may be reused once it is known; by default until it is evicted
+        public Builder ttl(long ttl, TimeUnit unit) {
+            this.ttlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        public Builder metrics(RPCMetricsRegistry metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public RPCCacheConfig build() {
+            if (maxEntries <= 0) {
+                throw new IllegalArgumentException("A cache needs room for at least one entry");
+            }
+            if (ttlNanos < 0) {
+                throw new IllegalArgumentException("TTL must not be negative");
+            }
+            return new RPCCacheConfig(this);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+import java.nio.ByteBuffer;
+
+// Binary wire format. Every frame starts with its length so a non-blocking reader can tell where
+// it ends:
+// Request:  [int length][byte REQUEST][varint requestId][varint methodId][varint timeoutMillis]
+//           [trace][varint paramCount][zigzag varint param]...
+// Response: [int length][byte RESPONSE][varint requestId][byte status][zigzag varint result]
+// A batch calls one method once per row of columnar operands, column after column:
+// Batch request:  [int length][byte BATCH_REQUEST][varint requestId][varint methodId][varint timeoutMillis]
+//                 [trace][varint columnCount][varint rowCount][zigzag varint value]...
+// Batch response: [int length][byte BATCH_RESPONSE][varint requestId][byte status][varint rowCount]
+//                 [zigzag varint result]...[varint failedCount][varint failedRow]...
+// Varints are LEB128, and signed values are zigzag-encoded first so small negatives stay short too.
+// timeoutMillis is how long the caller will still wait for the reply, 0 for as long as it takes;
+// it is sent as a duration since the two ends' clocks have nothing in common. trace is a byte 0 for
+// a call that is not part of a trace, else a byte 1 and the long trace id: ids are random, so a
+// varint would only make them longer.
+// add(5, 3) is 12 bytes and its reply 8, where Java serialization took hundreds, and decoding only
+// ever reads ints, never instantiates whatever class the peer names.
+public class RPCCodec {
+    static final byte REQUEST = 1;
+    static final byte RESPONSE = 2;
+    static final byte BATCH_REQUEST = 3;
+    static final byte BATCH_RESPONSE = 4;
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_UNKNOWN_METHOD = 1;
+    static final byte STATUS_BAD_REQUEST = 2;
+    static final byte STATUS_ERROR = 3;
+    static final byte STATUS_OVERLOADED = 4;
+    static final byte STATUS_DEADLINE_EXCEEDED = 5;
+    static final int MAX_FRAME_BYTES = 1 << 20;
+    static final int MAX_VARINT_BYTES = 5;
+    static final int MAX_TRACE_BYTES = 1 + Long.BYTES;
+    static final int MAX_RESPONSE_BYTES = Integer.BYTES + 2 + 2 * MAX_VARINT_BYTES;
+
+    private RPCCodec() {}
+
+    static int maxRequestBytes(int paramCount) {
+        return Integer.BYTES + 1 + (4 + paramCount) * MAX_VARINT_BYTES + MAX_TRACE_BYTES;
+    }
+
+    // Most rows a batch frame may carry, so that the request and a response that fails every row
+    // both stay under MAX_FRAME_BYTES
+    static int maxBatchRows(int columnCount) {
+        return (MAX_FRAME_BYTES - 64) / (MAX_VARINT_BYTES * Math.max(2, columnCount));
+    }
+
+    static int maxBatchRequestBytes(int columnCount, int rowCount) {
+        return Integer.BYTES + 1 + (5 + columnCount * rowCount) * MAX_VARINT_BYTES + MAX_TRACE_BYTES;
+    }
+
+    static int maxBatchResponseBytes(int rowCount, int failedCount) {
+        return Integer.BYTES + 2 + (3 + rowCount + failedCount) * MAX_VARINT_BYTES;
+    }
+
+    // dst must have maxRequestBytes(params.length) remaining
+    static void writeRequest(ByteBuffer dst, int requestId, int methodId, int timeoutMillis, long traceId, int[] params) {
+        int start = dst.position();
+        dst.position(start + Integer.BYTES);
+        dst.put(REQUEST);
+        writeVarint(dst, requestId);
+        writeVarint(dst, methodId);
+        writeVarint(dst, timeoutMillis);
+        writeTrace(dst, traceId);
+        writeVarint(dst, params.length);
+        for (int param : params) {
+            writeVarint(dst, zigzag(param));
+        }
+        dst.putInt(start, dst.position() - start - Integer.BYTES);
+    }
+
+    // dst must have MAX_RESPONSE_BYTES remaining
+    static void writeResponse(ByteBuffer dst, int requestId, byte status, int result) {
+        int start = dst.position();
+        dst.position(start + Integer.BYTES);
+        dst.put(RESPONSE);
+        writeVarint(dst, requestId);
+        dst.put(status);
+        writeVarint(dst, zigzag(result));
+        dst.putInt(start, dst.position() - start - Integer.BYTES);
+    }
+
+    // Rows from..to-1 of the columns; dst must have maxBatchRequestBytes(columns.length, to - from) remaining
+    static void writeBatchRequest(ByteBuffer dst, int requestId, int methodId, int timeoutMillis, long traceId,
+                                  int[][] columns, int from, int to) {
+        int start = dst.position();
+        dst.position(start + Integer.BYTES);
+        dst.put(BATCH_REQUEST);
+        writeVarint(dst, requestId);
+        writeVarint(dst, methodId);
+        writeVarint(dst, timeoutMillis);
+        writeTrace(dst, traceId);
+        writeVarint(dst, columns.length);
+        writeVarint(dst, to - from);
+        for (int[] column : columns) {
+            for (int row = from; row < to; row++) {
+                writeVarint(dst, zigzag(column[row]));
+            }
+        }
+        dst.putInt(start, dst.position() - start - Integer.BYTES);
+    }
+
+    // dst must have maxBatchResponseBytes(results.length, failedRows.length) remaining
+    static void writeBatchResponse(ByteBuffer dst, int requestId, byte status, int[] results, int[] failedRows) {
+        int start = dst.position();
+        dst.position(start + Integer.BYTES);
+        dst.put(BATCH_RESPONSE);
+        writeVarint(dst, requestId);
+        dst.put(status);
+        writeVarint(dst, results.length);
+        for (int result : results) {
+            writeVarint(dst, zigzag(result));
+        }
+        writeVarint(dst, failedRows.length);
+        for (int failedRow : failedRows) {
+            writeVarint(dst, failedRow);
+        }
+        dst.putInt(start, dst.position() - start - Integer.BYTES);
+    }
+
+    // Type of the frame whose body starts at src's position
+    static byte frameType(ByteBuffer src) {
+        return src.get(src.position());
+    }
+
+    // The frame body runs from src's position to its limit. Throws IllegalArgumentException (or
+    // BufferUnderflowException for a truncated frame) on anything malformed. The request's deadline
+    // is counted from when it is read.
+    static RPCRequest readRequest(ByteBuffer src) {
+        if (src.get() != REQUEST) {
+            throw new IllegalArgumentException("Not a request frame");
+        }
+        int requestId = readVarint(src);
+        int methodId = readVarint(src);
+        RPCDeadline deadline = RPCDeadline.fromTimeoutMillis(readVarint(src));
+        long traceId = readTrace(src);
+        int paramCount = readVarint(src);
+        // Every param takes at least a byte, which stops a bogus count from allocating a huge array
+        if (paramCount < 0 || paramCount > src.remaining()) {
+            throw new IllegalArgumentException("Bad parameter count " + paramCount);
+        }
+        int[] params = new int[paramCount];
+        for (int i = 0; i < paramCount; i++) {
+            params[i] = unzigzag(readVarint(src));
+        }
+        return new RPCRequest(requestId, methodId, deadline, traceId, params);
+    }
+
+    static RPCBatchRequest readBatchRequest(ByteBuffer src) {
+        if (src.get() != BATCH_REQUEST) {
+            throw new IllegalArgumentException("Not a batch request frame");
+        }
+        int requestId = readVarint(src);
+        int methodId = readVarint(src);
+        RPCDeadline deadline = RPCDeadline.fromTimeoutMillis(readVarint(src));
+        long traceId = readTrace(src);
+        int columnCount = readVarint(src);
+        int rowCount = readVarint(src);
+        if (columnCount <= 0 || rowCount < 0 || rowCount > maxBatchRows(columnCount) || (long) columnCount * rowCount > src.remaining()) {
+            throw new IllegalArgumentException("Bad batch of " + columnCount + " columns by " + rowCount + " rows");
+        }
+        int[][] columns = new int[columnCount][rowCount];
+        for (int[] column : columns) {
+            for (int row = 0; row < rowCount; row++) {
+                column[row] = unzigzag(readVarint(src));
+            }
+        }
+        return new RPCBatchRequest(requestId, methodId, deadline, traceId, columns);
+    }
+
+    static RPCResponse readResponse(ByteBuffer src) {
+        if (src.get() != RESPONSE) {
+            throw new IllegalArgumentException("Not a response frame");
+        }
+        int requestId = readVarint(src);
+        byte status = src.get();
+        return new RPCResponse(requestId, status, unzigzag(readVarint(src)));
+    }
+
+    static RPCBatchResponse readBatchResponse(ByteBuffer src) {
+        if (src.get() != BATCH_RESPONSE) {
+            throw new IllegalArgumentException("Not a batch response frame");
+        }
+        int requestId = readVarint(src);
+        byte status = src.get();
+        int rowCount = readVarint(src);
+        if (rowCount < 0 || rowCount > src.remaining()) {
+            throw new IllegalArgumentException("Bad row count " + rowCount);
+        }
+        int[] results = new int[rowCount];
+        for (int row = 0; row < rowCount; row++) {
+            results[row] = unzigzag(readVarint(src));
+        }
+        int failedCount = readVarint(src);
+        if (failedCount < 0 || failedCount > src.remaining()) {
+            throw new IllegalArgumentException("Bad failed row count " + failedCount);
+        }
+        int[] failedRows = new int[failedCount];
+        for (int i = 0; i < failedCount; i++) {
+            failedRows[i] = readVarint(src);
+        }
+        return new RPCBatchResponse(requestId, status, results, failedRows);
+    }
+
+    static void writeVarint(ByteBuffer dst, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    static int readVarint(ByteBuffer src) {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_BYTES; shift += 7) {
+            byte b = src.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint longer than " + MAX_VARINT_BYTES + " bytes");
+    }
+
+    static void writeTrace(ByteBuffer dst, long traceId) {
+        if (traceId == 0) {
+            dst.put((byte) 0);
+        } else {
+            dst.put((byte) 1).putLong(traceId);
+        }
+    }
+
+    static long readTrace(ByteBuffer src) {
+        byte traced = src.get();
+        if (traced == 0) {
+            return 0;
+        }
+        if (traced != 1) {
+            throw new IllegalArgumentException("Trace flag " + traced);
+        }
+        return src.getLong();
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static String statusName(byte status) {
+        switch (status) {
+            case STATUS_OK: return "OK";
+            case STATUS_UNKNOWN_METHOD: return "UNKNOWN_METHOD";
+            case STATUS_BAD_REQUEST: return "BAD_REQUEST";
+            case STATUS_ERROR: return "ERROR";
+            case STATUS_OVERLOADED: return "OVERLOADED";
+            case STATUS_DEADLINE_EXCEEDED: return "DEADLINE_EXCEEDED";
+            default: return "status " + status;
+        }
+    }
+}
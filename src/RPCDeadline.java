@@ -0,0 +1,56 @@
+import java.util.concurrent.TimeUnit;
+
+// The System.nanoTime() after which nobody is waiting for a call's result any more. NONE waits
+// for as long as the call takes.
+public class RPCDeadline {
+    static final RPCDeadline NONE = new RPCDeadline(0);
+
+    private final long deadlineNanos;
+
+    private RPCDeadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    public static RPCDeadline after(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative timeout " + timeout);
+        }
+        return new RPCDeadline(System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    // As sent on the wire, 0 being no deadline
+    static RPCDeadline fromTimeoutMillis(int timeoutMillis) {
+        return timeoutMillis == 0 ? NONE : after(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // The later of two deadlines, e.g. for one request carrying calls that each have their own
+    public static RPCDeadline latest(RPCDeadline a, RPCDeadline b) {
+        if (a == NONE || b == NONE) {
+            return NONE;
+        }
+        return a.deadlineNanos - b.deadlineNanos >= 0 ? a : b;
+    }
+
+    public boolean isExpired() {
+        return this != NONE && remainingNanos() <= 0;
+    }
+
+    // Long.MAX_VALUE for NONE
+    public long remainingNanos() {
+        return this == NONE ? Long.MAX_VALUE : deadlineNanos - System.nanoTime();
+    }
+
+    // Rounded up, so a deadline that has not passed is never sent as 0
+    int timeoutMillis() {
+        if (this == NONE) {
+            return 0;
+        }
+        long remaining = remainingNanos();
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (remaining + 999_999) / 1_000_000));
+    }
+
+    @Override
+    public String toString() {
+        return this == NONE ? "no deadline" : "deadline in " + remainingNanos() / 1000 + " us";
+    }
+}
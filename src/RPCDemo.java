@@ -1,185 +1,1653 @@
 // First, let's create a simple RPC server
 
 import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
-// Interface defining the remote procedures
-interface CalculatorService {
-    int add(int a, int b);
-    int subtract(int a, int b);
-    int multiply(int a, int b);
+// Something calls can be sent through: a single connection (RPCClient) or a pool of them
+// (PooledRPCClient). Implementations provide callAsync; blocking calls and stubs build on it.
+// A call given a deadline fails with a TimeoutException once it passes, and the server skips it if
+// it is still queued there by then.
+interface RPCCaller {
+    // methodId comes from ServiceDescriptor.methodId
+    CompletableFuture<Integer> callAsync(RPCDeadline deadline, int methodId, int... params);
+
+    // Calls the method once per row of the columns, one column per parameter, in a single request
+    // instead of one round trip per row. If some rows fail, the future fails with an RPCBatchException
+    // that still carries the other rows' results.
+    CompletableFuture<int[]> callBatchAsync(RPCDeadline deadline, int methodId, int[]... columns);
+
+    default CompletableFuture<Integer> callAsync(int methodId, int... params) {
+        return callAsync(RPCDeadline.NONE, methodId, params);
+    }
+
+    default CompletableFuture<int[]> callBatchAsync(int methodId, int[]... columns) {
+        return callBatchAsync(RPCDeadline.NONE, methodId, columns);
+    }
+
+    // The same caller, except that calls made without a deadline get one timeout from when they are
+    // made. Stubs from it time out the same way: caller.withTimeout(50, TimeUnit.MILLISECONDS).stub(...)
+    default RPCCaller withTimeout(long timeout, TimeUnit unit) {
+        RPCCaller caller = this;
+        return new RPCCaller() {
+            @Override
+            public CompletableFuture<Integer> callAsync(RPCDeadline deadline, int methodId, int... params) {
+                return caller.callAsync(deadline, methodId, params);
+            }
+
+            @Override
+            public CompletableFuture<int[]> callBatchAsync(RPCDeadline deadline, int methodId, int[]... columns) {
+                return caller.callBatchAsync(deadline, methodId, columns);
+            }
+
+            @Override
+            public CompletableFuture<Integer> callAsync(int methodId, int... params) {
+                return caller.callAsync(RPCDeadline.after(timeout, unit), methodId, params);
+            }
+
+            @Override
+            public CompletableFuture<int[]> callBatchAsync(int methodId, int[]... columns) {
+                return caller.callBatchAsync(RPCDeadline.after(timeout, unit), methodId, columns);
+            }
+        };
+    }
+
+    // An implementation of serviceInterface whose methods are calls to the server. Calls block for
+    // their result, and I/O failures surface as UncheckedIOException since the interface cannot
+    // declare IOException. Method ids are resolved from a table built here, not by name per call.
+    default <T> T stub(Class<T> serviceInterface) {
+        return stub(0, serviceInterface);
+    }
+
+    default <T> T stub(int serviceId, Class<T> serviceInterface) {
+        ServiceDescriptor<T> descriptor = ServiceDescriptor.of(serviceId, serviceInterface);
+        InvocationHandler handler = (proxy, method, args) -> {
+            int methodId = descriptor.methodId(method);
+            if (methodId < 0) {
+                return invokeObjectMethod(proxy, method, args, serviceInterface);
+            }
+            int[] params = new int[args == null ? 0 : args.length];
+            for (int i = 0; i < params.length; i++) {
+                params[i] = (Integer) args[i];
+            }
+            try {
+                return call(methodId, params);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        return serviceInterface.cast(Proxy.newProxyInstance(serviceInterface.getClassLoader(), new Class<?>[]{serviceInterface}, handler));
+    }
+
+    private static Object invokeObjectMethod(Object proxy, Method method, Object[] args, Class<?> serviceInterface) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            default:
+                return serviceInterface.getSimpleName() + " stub";
+        }
+    }
+
+    // Blocking call, for callers that want one result at a time. A call that times out throws
+    // SocketTimeoutException.
+    default int call(int methodId, int... params) throws IOException {
+        return await(callAsync(methodId, params), methodId);
+    }
+
+    default int[] callBatch(int methodId, int[]... columns) throws IOException {
+        return await(callBatchAsync(methodId, columns), methodId);
+    }
+
+    private static <T> T await(CompletableFuture<T> future, int methodId) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for method " + methodId);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof TimeoutException) {
+                throw new SocketTimeoutException("No reply to method " + methodId + " before its deadline");
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
 }
 
-// Server implementation of the calculator service
-class CalculatorServiceImpl implements CalculatorService {
-    @Override
-    public int add(int a, int b) {
-        return a + b;
+// RPC Client implementation. Calls are tagged with a request id and pipelined over one connection:
+// callAsync returns as soon as the request is queued, and a reader thread matches each response to
+// its future by id, in whatever order the server answers. Throughput is then bounded by the server
+// and the socket rather than by one round trip per call. maxInFlight caps outstanding calls, and
+// callers block once it is reached, though no longer than their deadline. A call that times out or
+// is cancelled frees its slot straight away, and a reply that still turns up for it is dropped.
+// Futures complete on the reader thread, so dependent stages should be quick or use the *Async variants.
+// Every call carries the caller's RPCTrace id, as adjusted by the interceptors, and with a metrics
+// registry the client keeps RPCMetrics under rpc-client.
+class RPCClient implements RPCCaller {
+    private static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final AtomicInteger CLIENT_IDS = new AtomicInteger();
+
+    private final SocketChannel channel;
+    private final ConcurrentHashMap<Integer, CompletableFuture<Integer>> pendingCalls;
+    private final ConcurrentHashMap<Integer, CompletableFuture<int[]>> pendingBatches;
+    private final Semaphore inFlight;
+    private final AtomicInteger nextRequestId;
+    private final Object writeLock;
+    private final Thread reader;
+    // Requests encoded but not yet written, and the buffer the current writer is draining; the two
+    // are swapped so callers can keep encoding while a write is in progress
+    private ByteBuffer queuedRequests;
+    private ByteBuffer writingRequests;
+    private boolean writing;
+    private volatile IOException failure;
+    // Null without a metrics registry
+    private final RPCMetrics metrics;
+    private final RPCInterceptor[] interceptors;
+
+    public RPCClient(String host, int port) throws IOException {
+        this(host, port, DEFAULT_MAX_IN_FLIGHT);
     }
 
-    @Override
-    public int subtract(int a, int b) {
-        return a - b;
+    public RPCClient(String host, int port, int maxInFlight) throws IOException {
+        this(host, port, maxInFlight, RPCInstrumentation.NONE);
+    }
+
+    public RPCClient(String host, int port, int maxInFlight, RPCInstrumentation instrumentation) throws IOException {
+        this(host, port, maxInFlight, instrumentation, 0);
+    }
+
+    // A connect that takes longer than connectTimeoutMillis fails; 0 waits as long as the OS does
+    public RPCClient(String host, int port, int maxInFlight, RPCInstrumentation instrumentation,
+                     int connectTimeoutMillis) throws IOException {
+        metrics = instrumentation.getMetrics() == null ? null : new RPCMetrics(instrumentation.getMetrics(), "rpc-client",
+                instrumentation.getLatencySampleEvery(), instrumentation::methodName);
+        interceptors = instrumentation.getInterceptors();
+        channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        pendingCalls = new ConcurrentHashMap<>();
+        pendingBatches = new ConcurrentHashMap<>();
+        inFlight = new Semaphore(maxInFlight);
+        nextRequestId = new AtomicInteger();
+        writeLock = new Object();
+        queuedRequests = ByteBuffer.allocate(4096);
+        writingRequests = ByteBuffer.allocate(4096);
+        // A virtual thread, so holding many connections does not mean as many platform threads
+        reader = Thread.ofVirtual().name("rpc-client-reader-" + CLIENT_IDS.getAndIncrement()).start(this::readResponses);
     }
 
     @Override
-    public int multiply(int a, int b) {
-        return a * b;
+    public CompletableFuture<Integer> callAsync(RPCDeadline deadline, int methodId, int... params) {
+        long traceId = startCall(methodId);
+        boolean sampled = metrics != null && metrics.sample();
+        long queuedNanos = sampled ? System.nanoTime() : 0;
+        if (metrics != null) {
+            metrics.forMethod(methodId).calls.increment();
+        }
+        try {
+            if (!acquire(deadline)) {
+                return notSent(methodId, traceId, true, 1, new TimeoutException("Method " + methodId + " not sent before its deadline"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return notSent(methodId, traceId, true, 1, new InterruptedIOException("Interrupted waiting to send method " + methodId));
+        }
+        long sentNanos = sampled ? sent(methodId, queuedNanos) : 0;
+        int requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        pendingCalls.put(requestId, future);
+        track(requestId, future, pendingCalls, deadline, methodId, traceId, true, 1, sentNanos);
+        // The reader may have failed the connection before the call was registered
+        if (failure != null) {
+            fail(requestId, failure);
+            return future;
+        }
+        try {
+            synchronized (writeLock) {
+                long serializeStart = sampled ? System.nanoTime() : 0;
+                reserve(RPCCodec.maxRequestBytes(params.length));
+                RPCCodec.writeRequest(queuedRequests, requestId, methodId, deadline.timeoutMillis(), traceId, params);
+                if (sampled) {
+                    metrics.forMethod(methodId).serializeTime.record(System.nanoTime() - serializeStart);
+                }
+                if (writing) {
+                    return future;
+                }
+                writing = true;
+            }
+            writeQueued();
+        } catch (IOException e) {
+            failAll(e);
+        }
+        return future;
+    }
+
+    // Runs the interceptors' onCall and returns the trace id they settle on
+    private long startCall(int methodId) {
+        long traceId = RPCTrace.current();
+        for (RPCInterceptor interceptor : interceptors) {
+            traceId = interceptor.onCall(methodId, traceId);
+        }
+        return traceId;
+    }
+
+    private void completeCall(int methodId, long traceId, Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        for (RPCInterceptor interceptor : interceptors) {
+            interceptor.onCallComplete(methodId, traceId, error);
+        }
     }
-}
 
-// Server class to handle RPC requests
-class RPCServer {
-    private ServerSocket serverSocket;
-    private CalculatorService calculator;
+    // Records a sampled call's wait for a slot, and returns when it got one
+    private long sent(int methodId, long queuedNanos) {
+        long sentNanos = System.nanoTime();
+        metrics.forMethod(methodId).queueTime.record(sentNanos - queuedNanos);
+        return sentNanos;
+    }
+
+    // A chunk of a batch is not a whole call: the batch's interceptors run once all its chunks complete
+    private <T> CompletableFuture<T> notSent(int methodId, long traceId, boolean wholeCall, int rows, Throwable error) {
+        if (metrics != null) {
+            metrics.forMethod(methodId).errors.add(rows);
+        }
+        if (wholeCall) {
+            completeCall(methodId, traceId, error);
+        }
+        return CompletableFuture.failedFuture(error);
+    }
+
+    // False if the deadline passes before a slot frees up
+    private boolean acquire(RPCDeadline deadline) throws InterruptedException {
+        if (deadline == RPCDeadline.NONE) {
+            inFlight.acquire();
+            return true;
+        }
+        return inFlight.tryAcquire(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    // A call that fails other than by its reply, i.e. times out or is cancelled, leaves pending
+    // here and gives back its slot. Its rows are counted as errors unless it succeeded, its round
+    // trip timed if it was sampled (sentNanos is not 0), and interceptors told as for notSent.
+    private <T> void track(int requestId, CompletableFuture<T> future, Map<Integer, CompletableFuture<T>> pending,
+                           RPCDeadline deadline, int methodId, long traceId, boolean wholeCall, int rows, long sentNanos) {
+        if (deadline != RPCDeadline.NONE) {
+            future.orTimeout(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        }
+        future.whenComplete((result, error) -> {
+            if (error != null && pending.remove(requestId, future)) {
+                inFlight.release();
+            }
+            if (metrics != null) {
+                RPCMetrics.MethodMetrics method = metrics.forMethod(methodId);
+                if (error != null) {
+                    method.errors.add(error instanceof RPCBatchException ? ((RPCBatchException) error).getFailedRows().length : rows);
+                }
+                if (sentNanos != 0) {
+                    method.executeTime.record(System.nanoTime() - sentNanos);
+                }
+            }
+            if (wholeCall) {
+                completeCall(methodId, traceId, error);
+            }
+        });
+    }
 
-    public RPCServer(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
-        calculator = new CalculatorServiceImpl();
-        System.out.println("RPC Server started on port " + port);
+    // A batch over maxBatchRows goes out as several pipelined requests, put back together here
+    @Override
+    public CompletableFuture<int[]> callBatchAsync(RPCDeadline deadline, int methodId, int[]... columns) {
+        if (columns.length == 0) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("A batch needs at least one column"));
+        }
+        int rows = columns[0].length;
+        for (int[] column : columns) {
+            if (column.length != rows) {
+                return CompletableFuture.failedFuture(new IllegalArgumentException("Batch columns differ in length"));
+            }
+        }
+        long traceId = startCall(methodId);
+        int chunkRows = RPCCodec.maxBatchRows(columns.length);
+        CompletableFuture<int[]> future;
+        if (rows <= chunkRows) {
+            future = sendBatch(deadline, methodId, traceId, columns, 0, rows);
+        } else {
+            List<CompletableFuture<int[]>> chunks = new ArrayList<>();
+            for (int from = 0; from < rows; from += chunkRows) {
+                chunks.add(sendBatch(deadline, methodId, traceId, columns, from, Math.min(rows, from + chunkRows)));
+            }
+            future = CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0]))
+                    .handle((ignored, error) -> mergeChunks(chunks, rows, chunkRows));
+        }
+        if (interceptors.length > 0) {
+            future.whenComplete((result, error) -> completeCall(methodId, traceId, error));
+        }
+        return future;
     }
 
-    public void start() {
-        while (true) {
+    // Failed rows of every chunk are gathered into one RPCBatchException; any other failure fails the lot
+    private static int[] mergeChunks(List<CompletableFuture<int[]>> chunks, int rows, int chunkRows) {
+        int[] results = new int[rows];
+        int[] failedRows = new int[0];
+        for (int i = 0; i < chunks.size(); i++) {
+            int[] chunkResults;
+            int[] chunkFailedRows = new int[0];
             try {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(new ClientHandler(clientSocket, calculator)).start();
-            } catch (IOException e) {
-                e.printStackTrace();
+                chunkResults = chunks.get(i).join();
+            } catch (CompletionException e) {
+                if (!(e.getCause() instanceof RPCBatchException)) {
+                    throw e;
+                }
+                chunkResults = ((RPCBatchException) e.getCause()).getResults();
+                chunkFailedRows = ((RPCBatchException) e.getCause()).getFailedRows();
+            }
+            System.arraycopy(chunkResults, 0, results, i * chunkRows, chunkResults.length);
+            int failedCount = failedRows.length;
+            failedRows = Arrays.copyOf(failedRows, failedCount + chunkFailedRows.length);
+            for (int row : chunkFailedRows) {
+                failedRows[failedCount++] = i * chunkRows + row;
             }
         }
+        if (failedRows.length > 0) {
+            throw new RPCBatchException(results, failedRows);
+        }
+        return results;
     }
 
-    // Handler for each client connection
-    private static class ClientHandler implements Runnable {
-        private Socket clientSocket;
-        private CalculatorService calculator;
+    private CompletableFuture<int[]> sendBatch(RPCDeadline deadline, int methodId, long traceId, int[][] columns, int from, int to) {
+        boolean sampled = metrics != null && metrics.sample();
+        long queuedNanos = sampled ? System.nanoTime() : 0;
+        if (metrics != null) {
+            metrics.forMethod(methodId).calls.add(to - from);
+        }
+        try {
+            if (!acquire(deadline)) {
+                return notSent(methodId, traceId, false, to - from, new TimeoutException("Batch for method " + methodId + " not sent before its deadline"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return notSent(methodId, traceId, false, to - from, new InterruptedIOException("Interrupted waiting to send method " + methodId));
+        }
+        long sentNanos = sampled ? sent(methodId, queuedNanos) : 0;
+        int requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<int[]> future = new CompletableFuture<>();
+        pendingBatches.put(requestId, future);
+        track(requestId, future, pendingBatches, deadline, methodId, traceId, false, to - from, sentNanos);
+        if (failure != null) {
+            fail(requestId, failure);
+            return future;
+        }
+        try {
+            synchronized (writeLock) {
+                long serializeStart = sampled ? System.nanoTime() : 0;
+                reserve(RPCCodec.maxBatchRequestBytes(columns.length, to - from));
+                RPCCodec.writeBatchRequest(queuedRequests, requestId, methodId, deadline.timeoutMillis(), traceId, columns, from, to);
+                if (sampled) {
+                    metrics.forMethod(methodId).serializeTime.record(System.nanoTime() - serializeStart);
+                }
+                if (writing) {
+                    return future;
+                }
+                writing = true;
+            }
+            writeQueued();
+        } catch (IOException e) {
+            failAll(e);
+        }
+        return future;
+    }
 
-        public ClientHandler(Socket socket, CalculatorService calculator) {
-            this.clientSocket = socket;
-            this.calculator = calculator;
+    // Caller holds writeLock
+    private void reserve(int bytes) {
+        if (queuedRequests.remaining() < bytes) {
+            queuedRequests = ByteBuffer.allocate(Math.max(2 * queuedRequests.capacity(), queuedRequests.position() + bytes))
+                    .put(queuedRequests.flip());
         }
+    }
 
-        @Override
-        public void run() {
-            try (
-                    ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
-                    ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream())
-            ) {
-                while (true) {
-                    // Read the RPC request
-                    RPCRequest request = (RPCRequest) in.readObject();
-
-                    // Process the request
-                    int result = 0;
-                    switch (request.getMethod()) {
-                        case "add":
-                            result = calculator.add(request.getParams()[0], request.getParams()[1]);
-                            break;
-                        case "subtract":
-                            result = calculator.subtract(request.getParams()[0], request.getParams()[1]);
-                            break;
-                        case "multiply":
-                            result = calculator.multiply(request.getParams()[0], request.getParams()[1]);
-                            break;
+    // Whoever finds no write in progress becomes the writer and keeps writing until the queue is
+    // empty, so requests from concurrent callers go out together in one write.
+    private void writeQueued() throws IOException {
+        try {
+            while (true) {
+                ByteBuffer requests;
+                synchronized (writeLock) {
+                    if (queuedRequests.position() == 0) {
+                        writing = false;
+                        return;
                     }
+                    requests = queuedRequests;
+                    queuedRequests = writingRequests;
+                    writingRequests = requests;
+                }
+                requests.flip();
+                while (requests.hasRemaining()) {
+                    channel.write(requests);
+                }
+                requests.clear();
+            }
+        } catch (IOException e) {
+            synchronized (writeLock) {
+                writing = false;
+            }
+            throw e;
+        }
+    }
 
-                    // Send the response
-                    out.writeObject(new RPCResponse(result));
+    private void readResponses() {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        try {
+            while (true) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Server closed the connection");
+                }
+                buffer.flip();
+                while (buffer.remaining() >= Integer.BYTES) {
+                    int length = buffer.getInt(buffer.position());
+                    if (length <= 0 || length > RPCCodec.MAX_FRAME_BYTES) {
+                        throw new IOException("Response frame of " + length + " bytes");
+                    }
+                    if (buffer.remaining() < Integer.BYTES + length) {
+                        break;
+                    }
+                    int frameEnd = buffer.position() + Integer.BYTES + length;
+                    int limit = buffer.limit();
+                    buffer.position(buffer.position() + Integer.BYTES).limit(frameEnd);
+                    try {
+                        if (RPCCodec.frameType(buffer) == RPCCodec.BATCH_RESPONSE) {
+                            complete(RPCCodec.readBatchResponse(buffer));
+                        } else {
+                            complete(RPCCodec.readResponse(buffer));
+                        }
+                    } catch (IllegalArgumentException | BufferUnderflowException e) {
+                        throw new IOException("Malformed response", e);
+                    } finally {
+                        buffer.limit(limit).position(frameEnd);
+                    }
+                }
+                buffer.compact();
+                // Only batch responses can outgrow the buffer
+                if (buffer.position() >= Integer.BYTES && buffer.capacity() < Integer.BYTES + buffer.getInt(0)) {
+                    ByteBuffer larger = ByteBuffer.allocate(Integer.BYTES + buffer.getInt(0));
+                    larger.put(buffer.flip());
+                    buffer = larger;
                 }
-            } catch (EOFException e) {
-                // Client disconnected
-                System.out.println("Client disconnected");
-            } catch (Exception e) {
-                e.printStackTrace();
             }
+        } catch (IOException e) {
+            failAll(channel.isOpen() ? e : new IOException("Client closed", e));
         }
     }
-}
 
-// RPC Client implementation
-class RPCClient {
-    private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private void complete(RPCResponse response) {
+        CompletableFuture<Integer> future = pendingCalls.remove(response.getRequestId());
+        if (future == null) {
+            // Timed out or cancelled
+            return;
+        }
+        inFlight.release();
+        if (response.getStatus() == RPCCodec.STATUS_OK) {
+            future.complete(response.getResult());
+        } else {
+            future.completeExceptionally(new IllegalStateException("Request " + response.getRequestId() + " failed: "
+                    + RPCCodec.statusName(response.getStatus())));
+        }
+    }
 
-    public RPCClient(String host, int port) throws IOException {
-        socket = new Socket(host, port);
-        out = new ObjectOutputStream(socket.getOutputStream());
-        in = new ObjectInputStream(socket.getInputStream());
+    private void complete(RPCBatchResponse response) {
+        CompletableFuture<int[]> future = pendingBatches.remove(response.getRequestId());
+        if (future == null) {
+            return;
+        }
+        inFlight.release();
+        if (response.getStatus() != RPCCodec.STATUS_OK) {
+            future.completeExceptionally(new IllegalStateException("Batch " + response.getRequestId() + " failed: "
+                    + RPCCodec.statusName(response.getStatus())));
+        } else if (response.getFailedRows().length > 0) {
+            future.completeExceptionally(new RPCBatchException(response.getResults(), response.getFailedRows()));
+        } else {
+            future.complete(response.getResults());
+        }
+    }
+
+    // Fails every outstanding call; the connection is unusable after this.
+    private void failAll(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        closeQuietly();
+        for (Integer requestId : pendingCalls.keySet()) {
+            fail(requestId, failure);
+        }
+        for (Integer requestId : pendingBatches.keySet()) {
+            fail(requestId, failure);
+        }
     }
 
-    public int callMethod(String methodName, int... params) throws IOException, ClassNotFoundException {
-        // Create and send RPC request
-        RPCRequest request = new RPCRequest(methodName, params);
-        out.writeObject(request);
+    private void fail(int requestId, IOException e) {
+        CompletableFuture<?> future = pendingCalls.remove(requestId);
+        if (future == null) {
+            future = pendingBatches.remove(requestId);
+        }
+        if (future != null) {
+            inFlight.release();
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already failing the calls
+        }
+    }
 
-        // Receive and return response
-        RPCResponse response = (RPCResponse) in.readObject();
-        return response.getResult();
+    // False once the connection has failed or been closed
+    public boolean isConnected() {
+        return failure == null && channel.isOpen();
     }
 
+    // Outstanding calls fail with an IOException
     public void close() throws IOException {
-        socket.close();
+        channel.close();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
 
-// Request and Response classes for RPC communication
-class RPCRequest implements Serializable {
-    private String method;
-    private int[] params;
+// How PooledRPCClient picks the endpoint for a call.
+enum LoadBalancer {
+    ROUND_ROBIN,          // each healthy endpoint in turn, however loaded
+    POWER_OF_TWO_CHOICES  // the less loaded of two healthy endpoints picked at random
+}
+
+class RPCPoolConfig {
+    private final int connectionsPerEndpoint;
+    private final int maxInFlightPerConnection;
+    private final LoadBalancer loadBalancer;
+    private final long healthCheckIntervalMillis;
+    private final long healthCheckTimeoutMillis;
+    private final int ejectAfterFailures;
+    private final RPCInstrumentation instrumentation;
 
-    public RPCRequest(String method, int[] params) {
-        this.method = method;
-        this.params = params;
+    private RPCPoolConfig(Builder builder) {
+        this.connectionsPerEndpoint = builder.connectionsPerEndpoint;
+        this.maxInFlightPerConnection = builder.maxInFlightPerConnection;
+        this.loadBalancer = builder.loadBalancer;
+        this.healthCheckIntervalMillis = builder.healthCheckIntervalMillis;
+        this.healthCheckTimeoutMillis = builder.healthCheckTimeoutMillis;
+        this.ejectAfterFailures = builder.ejectAfterFailures;
+        this.instrumentation = builder.instrumentation;
     }
 
-    public String getMethod() { return method; }
-    public int[] getParams() { return params; }
+    public static RPCPoolConfig defaults() {
+        return new Builder().build();
+    }
+
+    public int getConnectionsPerEndpoint() { return connectionsPerEndpoint; }
+    public int getMaxInFlightPerConnection() { return maxInFlightPerConnection; }
+    public LoadBalancer getLoadBalancer() { return loadBalancer; }
+    public long getHealthCheckIntervalMillis() { return healthCheckIntervalMillis; }
+    public long getHealthCheckTimeoutMillis() { return healthCheckTimeoutMillis; }
+    public int getEjectAfterFailures() { return ejectAfterFailures; }
+    public RPCInstrumentation getInstrumentation() { return instrumentation; }
+
+    public static class Builder {
+        private int connectionsPerEndpoint = 2;
+        private int maxInFlightPerConnection = 1024;
+        private LoadBalancer loadBalancer = LoadBalancer.POWER_OF_TWO_CHOICES;
+        private long healthCheckIntervalMillis = 500;
+        private long healthCheckTimeoutMillis = 250;
+        private int ejectAfterFailures = 3;
+        private RPCInstrumentation instrumentation = RPCInstrumentation.NONE;
+
+        public Builder connectionsPerEndpoint(int connectionsPerEndpoint) {
+            this.connectionsPerEndpoint = connectionsPerEndpoint;
+            return this;
+        }
+
+        public Builder maxInFlightPerConnection(int maxInFlightPerConnection) {
+            this.maxInFlightPerConnection = maxInFlightPerConnection;
+            return this;
+        }
+
+        public Builder loadBalancer(LoadBalancer loadBalancer) {
+            this.loadBalancer = loadBalancer;
+            return this;
+        }
+
+        // How often every endpoint, ejected or not, is pinged
+        public Builder healthCheckIntervalMillis(long healthCheckIntervalMillis) {
+            this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+            return this;
+        }
+
+        // A ping slower than this counts as a failure, and so does a connect
+        public Builder healthCheckTimeoutMillis(long healthCheckTimeoutMillis) {
+            this.healthCheckTimeoutMillis = healthCheckTimeoutMillis;
+            return this;
+        }
+
+        // Consecutive failed calls or pings after which an endpoint gets no more calls
+        public Builder ejectAfterFailures(int ejectAfterFailures) {
+            this.ejectAfterFailures = ejectAfterFailures;
+            return this;
+        }
+
+        // Shared by every connection, so the pool's metrics add up across endpoints; health checks
+        // show up as HealthCheckService.ping
+        public Builder instrumentation(RPCInstrumentation instrumentation) {
+            this.instrumentation = instrumentation;
+            return this;
+        }
+
+        public RPCPoolConfig build() {
+            if (connectionsPerEndpoint <= 0 || maxInFlightPerConnection <= 0 || ejectAfterFailures <= 0) {
+                throw new IllegalArgumentException("Connections, in-flight limit and failure threshold must be positive");
+            }
+            if (healthCheckIntervalMillis <= 0 || healthCheckTimeoutMillis <= 0) {
+                throw new IllegalArgumentException("Health check interval and timeout must be positive");
+            }
+            return new RPCPoolConfig(this);
+        }
+    }
 }
 
-class RPCResponse implements Serializable {
-    private int result;
+// Client for a set of RPCServer endpoints, holding a few warm connections to each. With
+// POWER_OF_TWO_CHOICES a call goes to the less loaded of two random healthy endpoints, where load is
+// outstanding calls weighted by an EWMA of call latency. A backend that slows down soon loses to
+// almost any other, which keeps the tail flat, and unlike always picking the least loaded endpoint,
+// callers do not all pile onto the same one. The EWMA moves a tenth of the way per sample, so one
+// stalled call does not push a healthy backend out, and fades while the endpoint gets no calls.
+//
+// An endpoint is ejected once its calls or pings fail ejectAfterFailures times in a row, or its
+// connections are all gone. A health-check thread pings every endpoint each interval, replacing
+// broken connections first, and reinstates an ejected endpoint as soon as a ping succeeds. Pings
+// also feed the latency estimate, which is how an endpoint that was only slow gets traffic again.
+// Calls are never retried on another endpoint, since the pool cannot know whether that is safe.
+class PooledRPCClient implements RPCCaller {
+    private static final double LATENCY_WEIGHT = 0.1;
+    private static final double LATENCY_DECAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final AtomicInteger POOL_IDS = new AtomicInteger();
+    private static final int PING_METHOD_ID = ServiceDescriptor.of(HealthCheckService.SERVICE_ID, HealthCheckService.class).methodId("ping", 1);
+
+    private final RPCPoolConfig config;
+    private final Endpoint[] endpoints;
+    private final AtomicInteger nextEndpoint;
+    private final ScheduledExecutorService healthChecker;
+    // The endpoints that are not ejected; replaced as a whole when that changes
+    private volatile Endpoint[] available;
+
+    // Endpoints that cannot be reached yet start out ejected and are retried by the health check
+    public PooledRPCClient(List<InetSocketAddress> addresses, RPCPoolConfig config) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("No endpoints");
+        }
+        this.config = config;
+        this.endpoints = new Endpoint[addresses.size()];
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i] = new Endpoint(addresses.get(i));
+            endpoints[i].connect();
+            endpoints[i].ejected = endpoints[i].connection() == null;
+        }
+        this.nextEndpoint = new AtomicInteger();
+        updateAvailable();
+        int id = POOL_IDS.getAndIncrement();
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rpc-pool-" + id + "-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, config.getHealthCheckIntervalMillis(),
+                config.getHealthCheckIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public CompletableFuture<Integer> callAsync(RPCDeadline deadline, int methodId, int... params) {
+        return route(connection -> connection.callAsync(deadline, methodId, params));
+    }
+
+    // The whole batch goes to one endpoint
+    @Override
+    public CompletableFuture<int[]> callBatchAsync(RPCDeadline deadline, int methodId, int[]... columns) {
+        return route(connection -> connection.callBatchAsync(deadline, methodId, columns));
+    }
+
+    private <T> CompletableFuture<T> route(Function<RPCClient, CompletableFuture<T>> call) {
+        // An endpoint whose connections have all dropped is ejected here rather than at the next health check
+        for (int attempt = 0; attempt < endpoints.length; attempt++) {
+            Endpoint endpoint = choose();
+            if (endpoint == null) {
+                break;
+            }
+            RPCClient connection = endpoint.connection();
+            if (connection == null) {
+                eject(endpoint);
+                continue;
+            }
+            long start = System.nanoTime();
+            endpoint.outstanding.incrementAndGet();
+            return call.apply(connection).whenComplete((result, error) -> {
+                endpoint.outstanding.decrementAndGet();
+                // A status other than OK is the server answering, not the endpoint failing, and a
+                // timeout still says how slow the endpoint is
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (cause instanceof IOException) {
+                    onFailure(endpoint);
+                } else {
+                    endpoint.onSuccess(System.nanoTime() - start);
+                }
+            });
+        }
+        return CompletableFuture.failedFuture(new IOException("No healthy endpoint among " + getEndpoints()));
+    }
+
+    // Null if every endpoint is ejected
+    private Endpoint choose() {
+        Endpoint[] candidates = available;
+        if (candidates.length <= 1) {
+            return candidates.length == 0 ? null : candidates[0];
+        }
+        if (config.getLoadBalancer() == LoadBalancer.ROUND_ROBIN) {
+            return candidates[Math.floorMod(nextEndpoint.getAndIncrement(), candidates.length)];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(candidates.length);
+        int second = random.nextInt(candidates.length - 1);
+        if (second >= first) {
+            second++;
+        }
+        return candidates[first].load() <= candidates[second].load() ? candidates[first] : candidates[second];
+    }
+
+    private void onFailure(Endpoint endpoint) {
+        if (endpoint.consecutiveFailures.incrementAndGet() >= config.getEjectAfterFailures()) {
+            eject(endpoint);
+        }
+    }
 
-    public RPCResponse(int result) {
-        this.result = result;
+    private synchronized void eject(Endpoint endpoint) {
+        if (!endpoint.ejected) {
+            endpoint.ejected = true;
+            updateAvailable();
+        }
+    }
+
+    private synchronized void reinstate(Endpoint endpoint) {
+        if (endpoint.ejected) {
+            endpoint.ejected = false;
+            updateAvailable();
+        }
     }
 
-    public int getResult() { return result; }
+    private void updateAvailable() {
+        available = Arrays.stream(endpoints).filter(endpoint -> !endpoint.ejected).toArray(Endpoint[]::new);
+    }
+
+    // Runs on the health-check thread. Pings are sent to all endpoints before any answer is awaited.
+    private void checkHealth() {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.connect();
+            RPCClient connection = endpoint.connection();
+            if (connection == null) {
+                eject(endpoint);
+                continue;
+            }
+            int nonce = ThreadLocalRandom.current().nextInt();
+            long start = System.nanoTime();
+            connection.callAsync(RPCDeadline.after(config.getHealthCheckTimeoutMillis(), TimeUnit.MILLISECONDS), PING_METHOD_ID, nonce)
+                    .whenComplete((result, error) -> {
+                        if (error == null && result == nonce) {
+                            endpoint.onSuccess(System.nanoTime() - start);
+                            reinstate(endpoint);
+                        } else {
+                            onFailure(endpoint);
+                        }
+                    });
+        }
+    }
+
+    public List<InetSocketAddress> getEndpoints() {
+        return Arrays.stream(endpoints).map(endpoint -> endpoint.address).toList();
+    }
+
+    public List<InetSocketAddress> getAvailableEndpoints() {
+        return Arrays.stream(available).map(endpoint -> endpoint.address).toList();
+    }
+
+    public void close() {
+        healthChecker.shutdownNow();
+        for (Endpoint endpoint : endpoints) {
+            for (RPCClient connection : endpoint.connections) {
+                if (connection != null) {
+                    closeQuietly(connection);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(RPCClient connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // Its calls fail either way
+        }
+    }
+
+    private final class Endpoint {
+        private final InetSocketAddress address;
+        private final AtomicInteger outstanding;
+        private final AtomicInteger consecutiveFailures;
+        private final AtomicInteger nextConnection;
+        // Slots are null while the endpoint cannot be reached; replaced as a whole by connect()
+        private volatile RPCClient[] connections;
+        private volatile double latencyNanos;
+        private volatile long latencyUpdatedNanos;
+        // Guarded by the pool
+        private boolean ejected;
+
+        Endpoint(InetSocketAddress address) {
+            this.address = address;
+            this.outstanding = new AtomicInteger();
+            this.consecutiveFailures = new AtomicInteger();
+            this.nextConnection = new AtomicInteger();
+            this.connections = new RPCClient[config.getConnectionsPerEndpoint()];
+        }
+
+        // Opens connections in the empty or broken slots; only one thread calls this at a time. Connects
+        // are bounded by the health-check timeout, and the first that fails ends the attempt, so an
+        // endpoint that drops connection attempts holds up the health check for one timeout at most.
+        void connect() {
+            RPCClient[] updated = connections.clone();
+            for (int i = 0; i < updated.length; i++) {
+                if (updated[i] != null && updated[i].isConnected()) {
+                    continue;
+                }
+                if (updated[i] != null) {
+                    closeQuietly(updated[i]);
+                }
+                try {
+                    updated[i] = new RPCClient(address.getHostString(), address.getPort(), config.getMaxInFlightPerConnection(),
+                            config.getInstrumentation(), (int) Math.min(Integer.MAX_VALUE, config.getHealthCheckTimeoutMillis()));
+                } catch (IOException e) {
+                    updated[i] = null;
+                    break;
+                }
+            }
+            connections = updated;
+        }
+
+        // The next live connection in turn, or null if there is none
+        RPCClient connection() {
+            RPCClient[] current = connections;
+            int start = nextConnection.getAndIncrement();
+            for (int i = 0; i < current.length; i++) {
+                RPCClient connection = current[Math.floorMod(start + i, current.length)];
+                if (connection != null && connection.isConnected()) {
+                    return connection;
+                }
+            }
+            return null;
+        }
+
+        double load() {
+            return (outstanding.get() + 1) * (decayedLatency(System.nanoTime()) + 1);
+        }
+
+        synchronized void onSuccess(long latency) {
+            consecutiveFailures.set(0);
+            long now = System.nanoTime();
+            double decayed = decayedLatency(now);
+            latencyNanos = decayed + (latency - decayed) * LATENCY_WEIGHT;
+            latencyUpdatedNanos = now;
+        }
+
+        // The estimate fades while the endpoint gets no calls, so one that lost traffic after a
+        // slow spell is tried again before long
+        private double decayedLatency(long now) {
+            return latencyNanos * Math.exp(-(now - latencyUpdatedNanos) / LATENCY_DECAY_NANOS);
+        }
+    }
 }
 
-// Demo class to show RPC in action
-public class RPCDemo {
-    public static void main(String[] args) {
-        // Start server in a separate thread
-        new Thread(() -> {
+// Fuses single calls made close together, e.g. through one stub shared by many threads, into batch
+// requests. While a batch for a method is out, further calls to that method queue up, and all of them
+// go out as the next batch once it returns. Batches so grow with the load, and a call made while
+// nothing is queued is sent at once, with no added delay. A row that fails fails only its own call.
+// A batch carries the latest of its calls' deadlines, and calls that time out while queued are left out.
+class BatchingRPCCaller implements RPCCaller {
+    private final RPCCaller delegate;
+    private final ConcurrentHashMap<Integer, MethodQueue> queues;
+    private final LongAdder calls;
+    private final LongAdder requests;
+
+    public BatchingRPCCaller(RPCCaller delegate) {
+        this.delegate = delegate;
+        this.queues = new ConcurrentHashMap<>();
+        this.calls = new LongAdder();
+        this.requests = new LongAdder();
+    }
+
+    @Override
+    public CompletableFuture<Integer> callAsync(RPCDeadline deadline, int methodId, int... params) {
+        return queues.computeIfAbsent(methodId, MethodQueue::new).add(deadline, params);
+    }
+
+    @Override
+    public CompletableFuture<int[]> callBatchAsync(RPCDeadline deadline, int methodId, int[]... columns) {
+        return delegate.callBatchAsync(deadline, methodId, columns);
+    }
+
+    public long getCallCount() { return calls.sum(); }
+    public long getRequestCount() { return requests.sum(); }
+
+    private final class MethodQueue {
+        private final int methodId;
+        private List<int[]> queuedParams;
+        private List<RPCDeadline> queuedDeadlines;
+        // The caller's RPCTrace, which the sending thread does not have
+        private List<Long> queuedTraces;
+        private List<CompletableFuture<Integer>> queuedCalls;
+        private boolean sending;
+
+        MethodQueue(int methodId) {
+            this.methodId = methodId;
+            this.queuedParams = new ArrayList<>();
+            this.queuedDeadlines = new ArrayList<>();
+            this.queuedTraces = new ArrayList<>();
+            this.queuedCalls = new ArrayList<>();
+        }
+
+        CompletableFuture<Integer> add(RPCDeadline deadline, int[] params) {
+            CompletableFuture<Integer> future = new CompletableFuture<>();
+            if (deadline != RPCDeadline.NONE) {
+                future.orTimeout(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+            }
+            synchronized (this) {
+                queuedParams.add(params);
+                queuedDeadlines.add(deadline);
+                queuedTraces.add(RPCTrace.current());
+                queuedCalls.add(future);
+                if (sending) {
+                    return future;
+                }
+                sending = true;
+            }
+            sendQueued();
+            return future;
+        }
+
+        // Responses complete on a connection's reader thread, which must not be held up sending, so
+        // the next batch goes out from a new virtual thread
+        private void sendQueued() {
+            List<int[]> params;
+            List<RPCDeadline> deadlines;
+            List<Long> traces;
+            List<CompletableFuture<Integer>> futures;
+            synchronized (this) {
+                if (queuedParams.isEmpty()) {
+                    sending = false;
+                    return;
+                }
+                params = queuedParams;
+                deadlines = queuedDeadlines;
+                traces = queuedTraces;
+                futures = queuedCalls;
+                queuedParams = new ArrayList<>();
+                queuedDeadlines = new ArrayList<>();
+                queuedTraces = new ArrayList<>();
+                queuedCalls = new ArrayList<>();
+            }
+            // Calls that timed out or were cancelled while queued are not worth sending
+            for (int i = futures.size() - 1; i >= 0; i--) {
+                if (futures.get(i).isDone()) {
+                    params.remove(i);
+                    deadlines.remove(i);
+                    traces.remove(i);
+                    futures.remove(i);
+                }
+            }
+            calls.add(params.size());
+            CompletableFuture<?> sent = params.isEmpty() ? CompletableFuture.completedFuture(null) : send(params, deadlines, traces, futures);
+            sent.whenComplete((ignored, error) -> Thread.startVirtualThread(this::sendQueued));
+        }
+
+        // A fused batch can only carry one trace id, so it goes out as part of its first call's trace
+        private CompletableFuture<?> send(List<int[]> params, List<RPCDeadline> deadlines, List<Long> traces,
+                                          List<CompletableFuture<Integer>> futures) {
+            int columnCount = params.get(0).length;
+            if (params.size() == 1 || columnCount == 0 || !params.stream().allMatch(row -> row.length == columnCount)) {
+                // Not something one batch can carry, so the calls go out as they are
+                CompletableFuture<?>[] sent = new CompletableFuture<?>[params.size()];
+                for (int i = 0; i < sent.length; i++) {
+                    CompletableFuture<Integer> future = futures.get(i);
+                    requests.increment();
+                    CompletableFuture<Integer> call;
+                    long previousTrace = RPCTrace.swap(traces.get(i));
+                    try {
+                        call = delegate.callAsync(deadlines.get(i), methodId, params.get(i));
+                    } finally {
+                        RPCTrace.swap(previousTrace);
+                    }
+                    sent[i] = call.whenComplete((result, error) -> {
+                        if (error == null) {
+                            future.complete(result);
+                        } else {
+                            future.completeExceptionally(error);
+                        }
+                    });
+                }
+                return CompletableFuture.allOf(sent);
+            }
+            int[][] columns = new int[columnCount][params.size()];
+            RPCDeadline deadline = deadlines.get(0);
+            for (int row = 0; row < params.size(); row++) {
+                int[] rowParams = params.get(row);
+                for (int column = 0; column < columnCount; column++) {
+                    columns[column][row] = rowParams[column];
+                }
+                deadline = RPCDeadline.latest(deadline, deadlines.get(row));
+            }
+            requests.increment();
+            CompletableFuture<int[]> batch;
+            long previousTrace = RPCTrace.swap(traces.get(0));
             try {
-                RPCServer server = new RPCServer(5000);
-                server.start();
-            } catch (IOException e) {
-                e.printStackTrace();
+                batch = delegate.callBatchAsync(deadline, methodId, columns);
+            } finally {
+                RPCTrace.swap(previousTrace);
+            }
+            return batch.whenComplete((results, error) -> {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (cause instanceof RPCBatchException) {
+                    RPCBatchException failed = (RPCBatchException) cause;
+                    for (int row : failed.getFailedRows()) {
+                        futures.get(row).completeExceptionally(new IllegalStateException("Call to method " + methodId + " failed: "
+                                + RPCCodec.statusName(RPCCodec.STATUS_ERROR)));
+                    }
+                    completeAll(futures, failed.getResults());
+                } else if (cause != null) {
+                    for (CompletableFuture<Integer> future : futures) {
+                        future.completeExceptionally(cause);
+                    }
+                } else {
+                    completeAll(futures, results);
+                }
+            });
+        }
+
+        // Futures already failed are left as they are
+        private void completeAll(List<CompletableFuture<Integer>> futures, int[] results) {
+            for (int row = 0; row < results.length; row++) {
+                futures.get(row).complete(results[row]);
             }
-        }).start();
+        }
+    }
+}
+
+// Answers repeated calls to @Idempotent methods from a client-side RPCResultCache instead of the
+// network, with metrics under rpc-client-cache. What is cached is the call's future, so a call made
+// while the same one is still in flight joins it rather than going out again; it then shares that
+// call's deadline too. A call that fails is dropped from the cache so the next one goes out. The TTL
+// runs from when the reply arrives, so a slow call is not already stale when it completes. Other
+// methods, and batches, go straight to the delegate.
+class CachingRPCCaller implements RPCCaller {
+    private final RPCCaller delegate;
+    private final RPCResultCache<CompletableFuture<Integer>> cache;
+    // Method ids of the @Idempotent methods of the services given
+    private final BitSet idempotentMethods;
+
+    public CachingRPCCaller(RPCCaller delegate, RPCCacheConfig config, ServiceDescriptor<?>... services) {
+        this.delegate = delegate;
+        this.cache = new RPCResultCache<>(config, "rpc-client-cache");
+        this.idempotentMethods = new BitSet();
+        for (ServiceDescriptor<?> service : services) {
+            for (int i = 0; i < service.getMethodCount(); i++) {
+                if (service.isIdempotent(i)) {
+                    idempotentMethods.set(service.getServiceId() << 8 | i);
+                }
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Integer> callAsync(RPCDeadline deadline, int methodId, int... params) {
+        if (methodId < 0 || !idempotentMethods.get(methodId)) {
+            return delegate.callAsync(deadline, methodId, params);
+        }
+        RPCResultCache.Key key = new RPCResultCache.Key(methodId, params);
+        CompletableFuture<Integer> shared = cache.get(key);
+        if (shared == null) {
+            CompletableFuture<Integer> call = new CompletableFuture<>();
+            shared = cache.putIfAbsent(key, call);
+            if (shared == null) {
+                shared = call;
+                delegate.callAsync(deadline, methodId, params).whenComplete((result, error) -> {
+                    if (error != null) {
+                        cache.remove(key, call);
+                        call.completeExceptionally(error);
+                    } else {
+                        cache.restartTtl(key, call);
+                        call.complete(result);
+                    }
+                });
+            }
+        }
+        // Every caller gets its own future, so one that is cancelled or times out leaves the rest alone
+        CompletableFuture<Integer> future = shared.copy();
+        if (deadline != RPCDeadline.NONE && !future.isDone()) {
+            future.orTimeout(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<int[]> callBatchAsync(RPCDeadline deadline, int methodId, int[]... columns) {
+        return delegate.callBatchAsync(deadline, methodId, columns);
+    }
+
+    public long getHitCount() { return cache.getHitCount(); }
+    public long getMissCount() { return cache.getMissCount(); }
+}
+
+// A batch in which some rows failed. The other rows' results are still in getResults(); a failed
+// row's entry there is 0.
+class RPCBatchException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] results;
+    private final int[] failedRows;
+
+    public RPCBatchException(int[] results, int[] failedRows) {
+        super(failedRows.length + " of " + results.length + " rows failed");
+        this.results = results;
+        this.failedRows = failedRows;
+    }
+
+    public int[] getResults() { return results; }
+    public int[] getFailedRows() { return failedRows; }
+}
 
-        // Give server time to start
+// Demo class to show RPC in action
+public class RPCDemo {
+    public static void main(String[] args) {
+        RPCServer server;
         try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
+            server = new RPCServer(5000, 2, 4, new ServiceRegistry().register(CalculatorService.class, new CalculatorServiceImpl()));
+        } catch (IOException e) {
             e.printStackTrace();
+            return;
         }
+        server.start();
 
         // Client code
         try {
             RPCClient client = new RPCClient("localhost", 5000);
+            CalculatorService calculator = client.stub(CalculatorService.class);
 
             // Make RPC calls
-            System.out.println("Adding 5 + 3: " + client.callMethod("add", 5, 3));
-            System.out.println("Subtracting 10 - 4: " + client.callMethod("subtract", 10, 4));
-            System.out.println("Multiplying 6 * 7: " + client.callMethod("multiply", 6, 7));
+            System.out.println("Adding 5 + 3: " + calculator.add(5, 3));
+            System.out.println("Subtracting 10 - 4: " + calculator.subtract(10, 4));
+            System.out.println("Multiplying 6 * 7: " + calculator.multiply(6, 7));
+            System.out.println("Adding -7 + 2000000000: " + calculator.add(-7, 2000000000));
 
             client.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
+
+        ServiceDescriptor<CalculatorService> calculatorMethods = ServiceDescriptor.of(0, CalculatorService.class);
+        int add = calculatorMethods.methodId("add", 2);
+        int multiply = calculatorMethods.methodId("multiply", 2);
+        ByteBuffer frame = ByteBuffer.allocate(RPCCodec.maxRequestBytes(2));
+        RPCCodec.writeRequest(frame, 0, add, 0, 0, new int[]{5, 3});
+        int requestBytes = frame.position();
+        frame.clear();
+        RPCCodec.writeResponse(frame, 0, RPCCodec.STATUS_OK, 8);
+        System.out.println("add(5, 3) on the wire: " + requestBytes + " byte request, " + frame.position() + " byte response");
+
+        try {
+            RPCClient client = new RPCClient("localhost", 5000);
+            CalculatorService calculator = client.stub(CalculatorService.class);
+            int calls = 200000;
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                calculator.multiply(i, 3);
+            }
+            System.out.printf("%d sequential calls, %.1f us per round trip%n", calls, (System.nanoTime() - start) / 1e3 / calls);
+
+            // The same calls pipelined over the one connection
+            List<CompletableFuture<Integer>> results = new ArrayList<>(calls);
+            start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                results.add(client.callAsync(multiply, i, 3));
+            }
+            long mismatches = 0;
+            for (int i = 0; i < calls; i++) {
+                if (results.get(i).join() != i * 3) {
+                    mismatches++;
+                }
+            }
+            System.out.printf("%d pipelined calls, %.1f us per call, %d wrong results%n", calls,
+                    (System.nanoTime() - start) / 1e3 / calls, mismatches);
+            client.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        // Thousands of mostly idle clients are served by the same handful of server threads
+        List<RPCClient> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < 2000; i++) {
+                clients.add(new RPCClient("localhost", 5000));
+            }
+            long sum = 0;
+            for (int i = 0; i < clients.size(); i++) {
+                sum += clients.get(i).call(add, i, 1);
+            }
+            long serverThreads = Thread.getAllStackTraces().keySet().stream()
+                    .filter(thread -> thread.getName().startsWith("rpc-event-loop") || thread.getName().startsWith("rpc-worker"))
+                    .count();
+            System.out.println(clients.size() + " connections, sum of results " + sum + ", server threads " + serverThreads);
+            for (RPCClient client : clients) {
+                client.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        batchDemo(5000);
+        server.close();
+
+        poolDemo();
+        overloadDemo();
+        tracingDemo();
+        cachingDemo();
+    }
+
+    // Bulk work as one batch instead of a call per element, and calls from many threads fused into
+    // batches without the callers knowing
+    private static void batchDemo(int port) {
+        ServiceDescriptor<CalculatorService> calculatorMethods = ServiceDescriptor.of(0, CalculatorService.class);
+        int multiply = calculatorMethods.methodId("multiply", 2);
+        try {
+            RPCClient client = new RPCClient("localhost", port);
+            int rows = 100000;
+            int[] operands = new int[rows];
+            int[] threes = new int[rows];
+            for (int i = 0; i < rows; i++) {
+                operands[i] = i;
+                threes[i] = 3;
+            }
+            client.callBatch(multiply, operands, threes);
+            long start = System.nanoTime();
+            int[] products = client.callBatch(multiply, operands, threes);
+            long nanos = System.nanoTime() - start;
+            long mismatches = 0;
+            for (int i = 0; i < rows; i++) {
+                if (products[i] != i * 3) {
+                    mismatches++;
+                }
+            }
+            System.out.printf("%d multiplies in one batch: %.1f ms, %.0f ns per row, %d wrong results%n", rows, nanos / 1e6,
+                    (double) nanos / rows, mismatches);
+
+            int threads = 64;
+            int callsPerThread = 2000;
+            BatchingRPCCaller fused = new BatchingRPCCaller(client);
+            for (RPCCaller caller : List.of(client, fused)) {
+                CalculatorService calculator = caller.stub(CalculatorService.class);
+                List<Thread> callerThreads = new ArrayList<>();
+                start = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    callerThreads.add(Thread.ofVirtual().start(() -> {
+                        for (int i = 0; i < callsPerThread; i++) {
+                            calculator.multiply(i, 3);
+                        }
+                    }));
+                }
+                for (Thread callerThread : callerThreads) {
+                    callerThread.join();
+                }
+                System.out.printf("%d calls from %d threads%s: %.1f us per call%n", threads * callsPerThread, threads,
+                        caller == fused ? ", fused into " + fused.getRequestCount() + " requests" : " one request each",
+                        (System.nanoTime() - start) / 1e3 / (threads * callsPerThread));
+            }
+            client.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Three backends, one of which takes a millisecond per call. Round robin sends it a third of
+    // the calls; the power-of-two-choices pool mostly steers around it. Then a backend goes down
+    // and comes back, and the pool ejects and reinstates it.
+    private static void poolDemo() {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        RPCServer[] backends = new RPCServer[3];
+        AtomicInteger slowCalls = new AtomicInteger();
+        try {
+            for (int i = 0; i < backends.length; i++) {
+                CalculatorService calculator = i == 0 ? new SlowCalculatorService(slowCalls) : new CalculatorServiceImpl();
+                backends[i] = new RPCServer(5001 + i, 1, 4, new ServiceRegistry().register(CalculatorService.class, calculator));
+                backends[i].start();
+                addresses.add(new InetSocketAddress("localhost", 5001 + i));
+            }
+            for (LoadBalancer loadBalancer : LoadBalancer.values()) {
+                PooledRPCClient pool = new PooledRPCClient(addresses, new RPCPoolConfig.Builder().loadBalancer(loadBalancer).build());
+                CalculatorService calculator = pool.stub(CalculatorService.class);
+                int calls = 3000;
+                long[] latencies = new long[calls];
+                for (int i = 0; i < calls; i++) {
+                    calculator.add(i, 1);
+                }
+                slowCalls.set(0);
+                for (int i = 0; i < calls; i++) {
+                    long start = System.nanoTime();
+                    calculator.add(i, 1);
+                    latencies[i] = System.nanoTime() - start;
+                }
+                Arrays.sort(latencies);
+                System.out.printf("%s over 3 backends, one slow: p50 %.0f us, p99 %.0f us, %d of %d calls to the slow one%n",
+                        loadBalancer, latencies[calls / 2] / 1e3, latencies[calls * 99 / 100] / 1e3, slowCalls.get(), calls);
+                pool.close();
+            }
+
+            PooledRPCClient pool = new PooledRPCClient(addresses, new RPCPoolConfig.Builder().healthCheckIntervalMillis(100).build());
+            CalculatorService calculator = pool.stub(CalculatorService.class);
+            backends[2].close();
+            awaitAvailable(pool, 2);
+            System.out.println("Backend 5003 down, pool sends calls to " + pool.getAvailableEndpoints() + ", 6 * 7 = " + calculator.multiply(6, 7));
+            backends[2] = new RPCServer(5003, 1, 4, new ServiceRegistry().register(CalculatorService.class, new CalculatorServiceImpl()));
+            backends[2].start();
+            awaitAvailable(pool, 3);
+            System.out.println("Backend 5003 back, pool sends calls to " + pool.getAvailableEndpoints());
+            pool.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        for (RPCServer backend : backends) {
+            if (backend != null) {
+                backend.close();
+            }
+        }
     }
-}
\ No newline at end of file
+
+    // Calls arriving at least twice as fast as the server can take them. Without deadlines every call
+    // is run, however long its caller has been waiting. With deadlines alone the server skips calls
+    // that expired in its queue, but the queue stays so long that what it does run finishes too late.
+    // An adaptive limit turns the excess away on arrival and keeps the queue short enough for the
+    // calls it takes to make their deadline.
+    private static void overloadDemo() {
+        int add = ServiceDescriptor.of(0, CalculatorService.class).methodId("add", 2);
+        int calls = 8000;
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / calls;
+        long timeoutMillis = 50;
+        for (ConcurrencyLimit limit : new ConcurrencyLimit[] {null, ConcurrencyLimit.NONE, ConcurrencyLimit.AIMD, ConcurrencyLimit.GRADIENT}) {
+            AtomicInteger runs = new AtomicInteger();
+            RPCServer server = null;
+            try {
+                RPCServerConfig config = new RPCServerConfig.Builder()
+                        .eventLoops(1)
+                        .workerThreads(4)
+                        .workerQueueCapacity(2 * calls)
+                        .concurrencyLimit(limit == null ? ConcurrencyLimit.NONE : limit)
+                        .build();
+                server = new RPCServer(5004, new ServiceRegistry().register(CalculatorService.class, new SlowCalculatorService(runs)), config);
+                server.start();
+                RPCClient client = new RPCClient("localhost", 5004, 2 * calls);
+                RPCCaller caller = limit == null ? client : client.withTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+                AtomicInteger inTime = new AtomicInteger();
+                AtomicInteger turnedAway = new AtomicInteger();
+                List<CompletableFuture<Integer>> results = new ArrayList<>(calls);
+                long start = System.nanoTime();
+                for (int i = 0; i < calls; i++) {
+                    long sendAt = start + i * intervalNanos;
+                    while (System.nanoTime() < sendAt) {
+                        Thread.onSpinWait();
+                    }
+                    results.add(caller.callAsync(add, i, 1).whenComplete((result, error) -> {
+                        if (error == null && System.nanoTime() - sendAt <= TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+                            inTime.incrementAndGet();
+                        } else if (error instanceof IllegalStateException) {
+                            // OVERLOADED, or DEADLINE_EXCEEDED just before the client gave up itself
+                            turnedAway.incrementAndGet();
+                        }
+                    }));
+                }
+                for (CompletableFuture<Integer> result : results) {
+                    try {
+                        result.join();
+                    } catch (CompletionException e) {
+                        // Counted above
+                    }
+                }
+                System.out.printf("%d calls/s to 4 workers taking 1 ms each, %s: %d answered within %d ms, %d failed at once, add() run %d times%n",
+                        calls, limit == null ? "no deadlines" : limit == ConcurrencyLimit.NONE ? timeoutMillis + " ms deadlines"
+                                : timeoutMillis + " ms deadlines, " + limit + " limit at " + server.getConcurrencyLimit(),
+                        inTime.get(), timeoutMillis, turnedAway.get(), runs.get());
+                client.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    // A call through a gateway that calls a backend keeps one trace id across both hops, and the
+    // gateway keeps per-method metrics as a server and as the backend's client
+    private static void tracingDemo() {
+        ServiceDescriptor<CalculatorService> calculatorMethods = ServiceDescriptor.of(0, CalculatorService.class);
+        RPCMetricsRegistry metrics = new RPCMetricsRegistry();
+        Map<Long, List<String>> hops = new ConcurrentHashMap<>();
+        RPCServer backend = null;
+        RPCServer gateway = null;
+        try {
+            backend = new RPCServer(5006, new ServiceRegistry().register(CalculatorService.class, new CalculatorServiceImpl()),
+                    new RPCServerConfig.Builder()
+                            .instrumentation(new RPCInstrumentation.Builder().interceptor(recordHop("backend", hops)).build())
+                            .build());
+            backend.start();
+            RPCClient backendClient = new RPCClient("localhost", 5006, 1024,
+                    new RPCInstrumentation.Builder().metrics(metrics).describe(calculatorMethods).build());
+            gateway = new RPCServer(5005, new ServiceRegistry().register(CalculatorService.class,
+                    new GatewayCalculatorService(backendClient.stub(CalculatorService.class))),
+                    new RPCServerConfig.Builder()
+                            .instrumentation(new RPCInstrumentation.Builder().metrics(metrics).interceptor(recordHop("gateway", hops)).build())
+                            .build());
+            gateway.start();
+            RPCClient client = new RPCClient("localhost", 5005, 1024, new RPCInstrumentation.Builder()
+                    .describe(calculatorMethods)
+                    .interceptor(RPCInterceptor.startTraces())
+                    .interceptor(recordHop("client", hops))
+                    .build());
+            CalculatorService calculator = client.stub(CalculatorService.class);
+            for (int i = 0; i < 3; i++) {
+                calculator.multiply(i, 7);
+            }
+            for (Map.Entry<Long, List<String>> trace : hops.entrySet()) {
+                System.out.printf("trace %016x: %s%n", trace.getKey(), String.join(" -> ", trace.getValue()));
+            }
+
+            for (int i = 0; i < 20000; i++) {
+                calculator.add(i, 1);
+                if (i % 10 == 0) {
+                    calculator.subtract(i, 1);
+                }
+            }
+            for (String group : List.of("rpc-server", "rpc-client")) {
+                for (String method : List.of("CalculatorService.add", "CalculatorService.subtract")) {
+                    printMetrics(metrics, group, method);
+                }
+            }
+            client.close();
+            backendClient.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (gateway != null) {
+            gateway.close();
+        }
+        if (backend != null) {
+            backend.close();
+        }
+    }
+
+    // The same few arguments over and over to a method taking 1 ms: the server's result cache skips
+    // the work, and a client-side cache the network as well
+    private static void cachingDemo() {
+        ServiceDescriptor<CalculatorService> calculatorMethods = ServiceDescriptor.of(0, CalculatorService.class);
+        int calls = 2000;
+        int distinctArguments = 50;
+        for (String caching : List.of("no caching", "server result cache", "server and client caches")) {
+            AtomicInteger runs = new AtomicInteger();
+            RPCMetricsRegistry metrics = new RPCMetricsRegistry();
+            RPCServerConfig.Builder config = new RPCServerConfig.Builder();
+            if (!caching.equals("no caching")) {
+                config.resultCache(new RPCCacheConfig.Builder().metrics(metrics).build());
+            }
+            RPCServer server = null;
+            try {
+                server = new RPCServer(5007, new ServiceRegistry().register(CalculatorService.class, new SlowCalculatorService(runs)), config.build());
+                server.start();
+                RPCClient client = new RPCClient("localhost", 5007);
+                RPCCaller caller = client;
+                if (caching.equals("server and client caches")) {
+                    caller = new CachingRPCCaller(client, new RPCCacheConfig.Builder()
+                            .maxEntries(1000)
+                            .ttl(10, TimeUnit.SECONDS)
+                            .metrics(metrics)
+                            .build(), calculatorMethods);
+                }
+                CalculatorService calculator = caller.stub(CalculatorService.class);
+                long start = System.nanoTime();
+                for (int i = 0; i < calls; i++) {
+                    calculator.add(i % distinctArguments, 1);
+                }
+                long serverCacheCalls = metrics.counter(RPCMetricsRegistry.name("rpc-server-cache", "hits")).sum()
+                        + metrics.counter(RPCMetricsRegistry.name("rpc-server-cache", "misses")).sum();
+                System.out.printf("%d calls of add() with %d distinct arguments, %s: %.1f ms, %s, add() run %d times%n",
+                        calls, distinctArguments, caching, (System.nanoTime() - start) / 1e6,
+                        caching.equals("no caching") ? "all sent" : serverCacheCalls + " sent", runs.get());
+                client.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    // Adds where to the hops of the trace of every call it sees
+    private static RPCInterceptor recordHop(String where, Map<Long, List<String>> hops) {
+        return new RPCInterceptor() {
+            @Override
+            public long onCall(int methodId, long traceId) {
+                hops.computeIfAbsent(traceId, id -> new CopyOnWriteArrayList<>()).add(where);
+                return traceId;
+            }
+
+            @Override
+            public void onInvoke(int methodId, long traceId) {
+                hops.computeIfAbsent(traceId, id -> new CopyOnWriteArrayList<>()).add(where);
+            }
+        };
+    }
+
+    private static void printMetrics(RPCMetricsRegistry metrics, String group, String method) {
+        long calls = metrics.counter(RPCMetricsRegistry.name(group, "calls", "method", method)).sum();
+        if (calls == 0) {
+            return;
+        }
+        StringBuilder line = new StringBuilder(String.format("%-10s %-27s %6d calls %2d errors, p50/p99 us:", group, method, calls,
+                metrics.counter(RPCMetricsRegistry.name(group, "errors", "method", method)).sum()));
+        for (String latency : List.of("queue-time-ns", "execute-time-ns", "serialize-time-ns")) {
+            RPCLatencyHistogram histogram = metrics.histogram(RPCMetricsRegistry.name(group, latency, "method", method));
+            line.append(String.format(" %s %.1f/%.1f", latency.substring(0, latency.indexOf('-')),
+                    histogram.getValueAtPercentile(50) / 1e3, histogram.getValueAtPercentile(99) / 1e3));
+        }
+        System.out.println(line);
+    }
+
+    private static class GatewayCalculatorService implements CalculatorService {
+        private final CalculatorService backend;
+
+        GatewayCalculatorService(CalculatorService backend) {
+            this.backend = backend;
+        }
+
+        @Override
+        public int add(int a, int b) { return backend.add(a, b); }
+        @Override
+        public int subtract(int a, int b) { return backend.subtract(a, b); }
+        @Override
+        public int multiply(int a, int b) { return backend.multiply(a, b); }
+    }
+
+    private static void awaitAvailable(PooledRPCClient pool, int endpoints) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pool.getAvailableEndpoints().size() != endpoints && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    private static class SlowCalculatorService extends CalculatorServiceImpl {
+        private final AtomicInteger calls;
+
+        SlowCalculatorService(AtomicInteger calls) {
+            this.calls = calls;
+        }
+
+        @Override
+        public int add(int a, int b) {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.add(a, b);
+        }
+    }
+}
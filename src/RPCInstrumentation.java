@@ -0,0 +1,81 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// What a client or server records about its calls: per-method metrics in an RPCMetricsRegistry, if
+// given one, and the interceptors to run. NONE records nothing and costs nothing.
+public class RPCInstrumentation {
+    static final RPCInstrumentation NONE = new Builder().build();
+
+    private final RPCMetricsRegistry metrics;
+    private final int latencySampleEvery;
+    private final Map<Integer, String> methodNames;
+    private final RPCInterceptor[] interceptors;
+
+    private RPCInstrumentation(Builder builder) {
+        this.metrics = builder.metrics;
+        this.latencySampleEvery = builder.latencySampleEvery;
+        this.methodNames = new HashMap<>(builder.methodNames);
+        this.interceptors = builder.interceptors.toArray(new RPCInterceptor[0]);
+    }
+
+    // Null without metrics
+    public RPCMetricsRegistry getMetrics() { return metrics; }
+    public int getLatencySampleEvery() { return latencySampleEvery; }
+    public RPCInterceptor[] getInterceptors() { return interceptors.clone(); }
+
+    // Null for a method id no described service has
+    public String methodName(int methodId) {
+        return methodNames.get(methodId);
+    }
+
+    public static class Builder {
+        private RPCMetricsRegistry metrics;
+        private int latencySampleEvery = 64;
+        private final Map<Integer, String> methodNames = new HashMap<>();
+        private final List<RPCInterceptor> interceptors = new ArrayList<>();
+
+        public Builder() {
+            nameMethods(methodNames, ServiceDescriptor.of(HealthCheckService.SERVICE_ID, HealthCheckService.class));
+        }
+
+        public Builder metrics(RPCMetricsRegistry metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        // Calls are all counted, but only one in this many is timed: at a few microseconds per
+        // call, timing every one would cost several percent of the time spent calling
+        public Builder latencySampleEvery(int latencySampleEvery) {
+            this.latencySampleEvery = latencySampleEvery;
+            return this;
+        }
+
+        // Names the service's methods in client metrics; servers name methods from their registry
+        public Builder describe(ServiceDescriptor<?> service) {
+            nameMethods(methodNames, service);
+            return this;
+        }
+
+        private static void nameMethods(Map<Integer, String> methodNames, ServiceDescriptor<?> service) {
+            for (int i = 0; i < service.getMethodCount(); i++) {
+                methodNames.put(service.getServiceId() << 8 | i,
+                        service.getServiceInterface().getSimpleName() + "." + service.getMethod(i).getName());
+            }
+        }
+
+        // Interceptors run in the order added
+        public Builder interceptor(RPCInterceptor interceptor) {
+            interceptors.add(interceptor);
+            return this;
+        }
+
+        public RPCInstrumentation build() {
+            if (latencySampleEvery <= 0) {
+                throw new IllegalArgumentException("Latency sample rate must be positive");
+            }
+            return new RPCInstrumentation(this);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+// Hooks around every call, for tracing or logging. Client hooks run in RPCClient: onCall on the
+// calling thread before the request is encoded, and onCallComplete wherever the call completes
+// (reply, failure, timeout or cancellation). Server hooks run on the thread that runs the method,
+// with the call's trace id current. They run for every call, so they should be quick.
+public interface RPCInterceptor {
+    // Returns the trace id to send: traceId is the thread's current trace, or what the interceptor
+    // before this one returned, and 0 if there is none
+    default long onCall(int methodId, long traceId) {
+        return traceId;
+    }
+
+    // error is null if the call succeeded
+    default void onCallComplete(int methodId, long traceId, Throwable error) {}
+
+    default void onInvoke(int methodId, long traceId) {}
+
+    // status as sent back to the caller
+    default void onInvokeComplete(int methodId, long traceId, byte status) {}
+
+    // Gives every call made outside a trace a new trace id, so that it and everything it leads to
+    // downstream can be told apart
+    static RPCInterceptor startTraces() {
+        return new RPCInterceptor() {
+            @Override
+            public long onCall(int methodId, long traceId) {
+                return traceId != 0 ? traceId : RPCTrace.newTraceId();
+            }
+        };
+    }
+}
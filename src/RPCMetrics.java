@@ -0,0 +1,82 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+// Per-method metrics of one client or server, registered as <group>/<metric>{method=...} where
+// group is rpc-client or rpc-server:
+//   calls, errors                 every call, or every row of a batch; errors are calls that did
+//                                 not get an OK reply (or for a server, did not send one)
+//   queue-time-ns                 client: waiting for an in-flight slot; server: from the request
+//                                 being read to a worker starting it
+//   execute-time-ns               client: from getting a slot to the reply (the round trip);
+//                                 server: running the method
+//   serialize-time-ns             encoding the request (client) or reply (server)
+// Histograms sample one call in latencySampleEvery. Instances with the same registry share the
+// metrics, so the connections of a pool all add to one set.
+public class RPCMetrics {
+    private final RPCMetricsRegistry registry;
+    private final String group;
+    private final int latencySampleEvery;
+    // Null when a method id has no name; such calls go to the "unknown" metrics
+    private final IntFunction<String> methodNames;
+    private final MethodMetrics unknown;
+    // Indexed like ServiceRegistry: by service id, then method index
+    private volatile MethodMetrics[][] services = new MethodMetrics[ServiceDescriptor.MAX_SERVICE_ID + 1][];
+
+    RPCMetrics(RPCMetricsRegistry registry, String group, int latencySampleEvery, IntFunction<String> methodNames) {
+        this.registry = registry;
+        this.group = group;
+        this.latencySampleEvery = latencySampleEvery;
+        this.methodNames = methodNames;
+        this.unknown = new MethodMetrics("unknown");
+    }
+
+    boolean sample() {
+        return latencySampleEvery == 1 || ThreadLocalRandom.current().nextInt(latencySampleEvery) == 0;
+    }
+
+    MethodMetrics forMethod(int methodId) {
+        int serviceId = ServiceDescriptor.serviceIdOf(methodId);
+        if (serviceId > ServiceDescriptor.MAX_SERVICE_ID) {
+            return unknown;
+        }
+        MethodMetrics[] methods = services[serviceId];
+        MethodMetrics method = methods == null ? null : methods[ServiceDescriptor.methodIndexOf(methodId)];
+        return method != null ? method : register(methodId);
+    }
+
+    private synchronized MethodMetrics register(int methodId) {
+        int serviceId = ServiceDescriptor.serviceIdOf(methodId);
+        int index = ServiceDescriptor.methodIndexOf(methodId);
+        MethodMetrics[] methods = services[serviceId];
+        if (methods != null && methods[index] != null) {
+            return methods[index];
+        }
+        String name = methodNames.apply(methodId);
+        if (name == null) {
+            return unknown;
+        }
+        methods = methods == null ? new MethodMetrics[ServiceDescriptor.MAX_METHODS] : methods.clone();
+        methods[index] = new MethodMetrics(name);
+        MethodMetrics[][] updated = services.clone();
+        updated[serviceId] = methods;
+        services = updated;
+        return methods[index];
+    }
+
+    final class MethodMetrics {
+        final LongAdder calls;
+        final LongAdder errors;
+        final RPCLatencyHistogram queueTime;
+        final RPCLatencyHistogram executeTime;
+        final RPCLatencyHistogram serializeTime;
+
+        MethodMetrics(String method) {
+            this.calls = registry.counter(RPCMetricsRegistry.name(group, "calls", "method", method));
+            this.errors = registry.counter(RPCMetricsRegistry.name(group, "errors", "method", method));
+            this.queueTime = registry.histogram(RPCMetricsRegistry.name(group, "queue-time-ns", "method", method));
+            this.executeTime = registry.histogram(RPCMetricsRegistry.name(group, "execute-time-ns", "method", method));
+            this.serializeTime = registry.histogram(RPCMetricsRegistry.name(group, "serialize-time-ns", "method", method));
+        }
+    }
+}
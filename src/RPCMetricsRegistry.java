@@ -0,0 +1,52 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// Where RPC clients, servers and caches register their metrics, under names such as
+// rpc-server/calls{method=CalculatorService.add}. Counters and histograms are created on first use
+// and shared by later callers with the same name; gauges are read on demand.
+public class RPCMetricsRegistry {
+    private final ConcurrentHashMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+    static String name(String group, String name, String... tagKeysAndValues) {
+        if (tagKeysAndValues.length % 2 != 0) {
+            throw new IllegalArgumentException("Tags must be given as key/value pairs");
+        }
+        StringBuilder metric = new StringBuilder(group).append('/').append(name);
+        for (int i = 0; i < tagKeysAndValues.length; i += 2) {
+            metric.append(i == 0 ? '{' : ',').append(tagKeysAndValues[i]).append('=').append(tagKeysAndValues[i + 1]);
+        }
+        return tagKeysAndValues.length == 0 ? metric.toString() : metric.append('}').toString();
+    }
+
+    public LongAdder counter(String name) {
+        return getOrRegister(name, LongAdder.class, LongAdder::new);
+    }
+
+    public RPCLatencyHistogram histogram(String name) {
+        return getOrRegister(name, RPCLatencyHistogram.class, RPCLatencyHistogram::new);
+    }
+
+    // A gauge registered again replaces the old one
+    public void gauge(String name, LongSupplier value) {
+        metrics.put(name, value);
+    }
+
+    // Counters and histograms as themselves, gauges as their current value
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> snapshot = new TreeMap<>();
+        metrics.forEach((name, metric) -> snapshot.put(name, metric instanceof LongSupplier ? ((LongSupplier) metric).getAsLong() : metric));
+        return snapshot;
+    }
+
+    private <T> T getOrRegister(String name, Class<T> type, Supplier<T> create) {
+        Object metric = metrics.computeIfAbsent(name, n -> create.get());
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + metric.getClass().getSimpleName());
+        }
+        return type.cast(metric);
+    }
+}
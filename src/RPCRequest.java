@@ -0,0 +1,22 @@
+// Request and Response as decoded from the wire by RPCCodec
+public class RPCRequest {
+    private final int requestId;
+    private final int methodId;
+    private final RPCDeadline deadline;
+    private final long traceId;
+    private final int[] params;
+
+    public RPCRequest(int requestId, int methodId, RPCDeadline deadline, long traceId, int[] params) {
+        this.requestId = requestId;
+        this.methodId = methodId;
+        this.deadline = deadline;
+        this.traceId = traceId;
+        this.params = params;
+    }
+
+    public int getRequestId() { return requestId; }
+    public int getMethodId() { return methodId; }
+    public RPCDeadline getDeadline() { return deadline; }
+    public long getTraceId() { return traceId; }
+    public int[] getParams() { return params; }
+}
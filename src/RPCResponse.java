@@ -0,0 +1,15 @@
+public class RPCResponse {
+    private final int requestId;
+    private final byte status;
+    private final int result;
+
+    public RPCResponse(int requestId, byte status, int result) {
+        this.requestId = requestId;
+        this.status = status;
+        this.result = result;
+    }
+
+    public int getRequestId() { return requestId; }
+    public byte getStatus() { return status; }
+    public int getResult() { return result; }
+}
@@ -0,0 +1,188 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Results of @Idempotent calls, keyed by method id and arguments. Least recently used entries are
+// evicted beyond maxEntries, and with a TTL an entry also expires that long after it was stored.
+// Entries are spread over segments, each an access-ordered LinkedHashMap under its own lock, so
+// callers on different keys rarely wait for each other; each segment holds its share of maxEntries.
+// Registers <group>/hits, misses and evictions counters and a size gauge.
+public class RPCResultCache<V> {
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment<V>[] segments;
+    private final long ttlNanos;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    @SuppressWarnings("unchecked")
+    RPCResultCache(RPCCacheConfig config, String group) {
+        RPCMetricsRegistry metrics = config.getMetrics() != null ? config.getMetrics() : new RPCMetricsRegistry();
+        this.hits = metrics.counter(RPCMetricsRegistry.name(group, "hits"));
+        this.misses = metrics.counter(RPCMetricsRegistry.name(group, "misses"));
+        this.evictions = metrics.counter(RPCMetricsRegistry.name(group, "evictions"));
+        this.ttlNanos = config.getTtlNanos();
+        int segmentCount = Math.min(MAX_SEGMENTS, Integer.highestOneBit(config.getMaxEntries()));
+        this.segments = (Segment<V>[]) new Segment<?>[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // The first segments take the remainder, so the sizes add up to maxEntries
+            int maxEntries = config.getMaxEntries() / segmentCount + (i < config.getMaxEntries() % segmentCount ? 1 : 0);
+            segments[i] = new Segment<>(maxEntries, evictions);
+        }
+        metrics.gauge(RPCMetricsRegistry.name(group, "size"), this::size);
+    }
+
+    // Null, counted as a miss, if there is no live entry for the call
+    V get(Key key) {
+        Segment<V> segment = segmentFor(key);
+        Entry<V> entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if (entry != null && isExpired(entry)) {
+                segment.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    // Stores value unless there is a live entry for the call already, which is returned instead
+    V putIfAbsent(Key key, V value) {
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<V> existing = segment.get(key);
+            if (existing != null && !isExpired(existing)) {
+                return existing.value;
+            }
+            segment.put(key.copy(), new Entry<>(value, ttlNanos == 0 ? 0 : System.nanoTime() + ttlNanos));
+            return null;
+        }
+    }
+
+    void put(Key key, V value) {
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key.copy(), new Entry<>(value, ttlNanos == 0 ? 0 : System.nanoTime() + ttlNanos));
+        }
+    }
+
+    // Starts the call's TTL over if its entry still holds value, for a value stored before it was
+    // ready, such as the future of a call still in flight
+    void restartTtl(Key key, V value) {
+        if (ttlNanos == 0) {
+            return;
+        }
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<V> existing = segment.get(key);
+            if (existing != null && existing.value == value) {
+                segment.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+            }
+        }
+    }
+
+    // Removes the call's entry only if it still holds value
+    void remove(Key key, V value) {
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<V> existing = segment.get(key);
+            if (existing != null && existing.value == value) {
+                segment.remove(key);
+            }
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() { return hits.sum(); }
+    public long getMissCount() { return misses.sum(); }
+    public long getEvictionCount() { return evictions.sum(); }
+
+    private boolean isExpired(Entry<V> entry) {
+        return ttlNanos != 0 && System.nanoTime() - entry.expiresAtNanos > 0;
+    }
+
+    private Segment<V> segmentFor(Key key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ hash >>> 16) & (segments.length - 1)];
+    }
+
+    // A call as a map key. Lookups wrap the caller's array as it is; the cache stores a copy.
+    static final class Key {
+        private final int methodId;
+        private final int[] params;
+        private final int hash;
+
+        Key(int methodId, int[] params) {
+            this.methodId = methodId;
+            this.params = params;
+            this.hash = 31 * methodId + Arrays.hashCode(params);
+        }
+
+        Key copy() {
+            return new Key(methodId, params.clone());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return methodId == other.methodId && Arrays.equals(params, other.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        // Unused without a TTL
+        final long expiresAtNanos;
+
+        Entry(V value, long expiresAtNanos) {
+            this.value = value;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private static final class Segment<V> extends LinkedHashMap<Key, Entry<V>> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+        private final LongAdder evictions;
+
+        Segment(int maxEntries, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry<V>> eldest) {
+            if (size() <= maxEntries) {
+                return false;
+            }
+            evictions.increment();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,624 @@
+import java.io.*;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Server class to handle RPC requests, dispatching calls through a ServiceRegistry. It runs in one
+// of two modes (see RPCServerBenchmark for how they compare):
+// EVENT_LOOP: sockets are non-blocking and spread over a few selector loops that only move bytes,
+// while calls run on a fixed pool of platform threads. An idle client costs a selection key instead
+// of a thread, and the pool's queue is bounded, so a burst beyond it is turned away with OVERLOADED
+// rather than queueing without limit.
+// VIRTUAL_THREAD_PER_CONNECTION: each connection gets a virtual thread that reads, calls and writes
+// with plain blocking code. Blocking parks the virtual thread, not a platform thread, so this also
+// scales to many connections, but only a concurrency limit bounds how many calls run at once.
+// In both modes a request still waiting when its deadline passes is answered DEADLINE_EXCEEDED
+// without being run, and a ConcurrencyLimit can shed load before it queues up at all. Deadlines
+// count from when a request is read, which in VIRTUAL_THREAD_PER_CONNECTION mode is only once the
+// connection's previous requests are done; until then it waits unseen in the socket.
+// Given an RPCInstrumentation, the server keeps RPCMetrics for every method and runs interceptors
+// around each call, with the call's trace id current while the method runs. With a result cache,
+// @Idempotent methods run once per distinct arguments until the result is evicted or expires.
+public final class RPCServer {
+    private static final int INITIAL_BUFFER_BYTES = 4096;
+    private static final AtomicInteger CONNECTION_IDS = new AtomicInteger();
+
+    private final ServerSocketChannel serverChannel;
+    private final ServiceRegistry registry;
+    private final ServerExecutionMode executionMode;
+    private final ConcurrencyLimiter limiter;
+    // Null without a metrics registry
+    private final RPCMetrics metrics;
+    private final RPCInterceptor[] interceptors;
+    // Null unless configured
+    private final RPCResultCache<Integer> resultCache;
+    // EVENT_LOOP only
+    private final EventLoop[] eventLoops;
+    private final ThreadPoolExecutor workers;
+    private int nextEventLoop;
+    // VIRTUAL_THREAD_PER_CONNECTION only
+    private final Set<SocketChannel> connections;
+    private Thread acceptor;
+
+    public RPCServer(int port, ServiceRegistry registry) throws IOException {
+        this(port, registry, RPCServerConfig.defaults());
+    }
+
+    public RPCServer(int port, int eventLoopCount, int workerThreads, ServiceRegistry registry) throws IOException {
+        this(port, registry, new RPCServerConfig.Builder().eventLoops(eventLoopCount).workerThreads(workerThreads).build());
+    }
+
+    public RPCServer(int port, ServiceRegistry registry, RPCServerConfig config) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+        this.registry = registry;
+        synchronized (registry) {
+            if (!registry.isRegistered(HealthCheckService.SERVICE_ID)) {
+                registry.register(HealthCheckService.SERVICE_ID, HealthCheckService.class, nonce -> nonce);
+            }
+        }
+        executionMode = config.getExecutionMode();
+        limiter = new ConcurrencyLimiter(config.getConcurrencyLimit(), config.getInitialConcurrencyLimit(), config.getMaxConcurrencyLimit());
+        RPCInstrumentation instrumentation = config.getInstrumentation();
+        metrics = instrumentation.getMetrics() == null ? null : new RPCMetrics(instrumentation.getMetrics(), "rpc-server",
+                instrumentation.getLatencySampleEvery(), methodId -> {
+                    ServiceRegistry.ServiceMethod method = registry.lookup(methodId);
+                    return method == null ? null : method.getName();
+                });
+        interceptors = instrumentation.getInterceptors();
+        resultCache = config.getResultCache() == null ? null : new RPCResultCache<>(config.getResultCache(), "rpc-server-cache");
+        connections = ConcurrentHashMap.newKeySet();
+        if (executionMode == ServerExecutionMode.EVENT_LOOP) {
+            serverChannel.configureBlocking(false);
+            eventLoops = new EventLoop[config.getEventLoops()];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop("rpc-event-loop-" + i);
+            }
+            AtomicInteger workerIds = new AtomicInteger();
+            workers = new ThreadPoolExecutor(config.getWorkerThreads(), config.getWorkerThreads(), 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(config.getWorkerQueueCapacity()),
+                    runnable -> new Thread(runnable, "rpc-worker-" + workerIds.getAndIncrement()));
+        } else {
+            eventLoops = new EventLoop[0];
+            workers = null;
+        }
+        System.out.println("RPC Server started on port " + getPort());
+    }
+
+    // Returns once the server is accepting connections.
+    public void start() {
+        if (executionMode == ServerExecutionMode.VIRTUAL_THREAD_PER_CONNECTION) {
+            acceptor = Thread.ofVirtual().name("rpc-acceptor").start(this::acceptBlocking);
+            return;
+        }
+        eventLoops[0].execute(() -> eventLoops[0].register(serverChannel, SelectionKey.OP_ACCEPT, key -> accept()));
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            EventLoop eventLoop = eventLoops[nextEventLoop++ % eventLoops.length];
+            SocketChannel accepted = channel;
+            eventLoop.execute(() -> new Connection(accepted, eventLoop));
+        }
+    }
+
+    private void acceptBlocking() {
+        try {
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connections.add(channel);
+                Thread.ofVirtual().name("rpc-connection-" + CONNECTION_IDS.getAndIncrement()).start(() -> serveBlocking(channel));
+            }
+        } catch (IOException e) {
+            // The server channel was closed
+        }
+    }
+
+    // The whole life of a connection in VIRTUAL_THREAD_PER_CONNECTION mode. Replies to the requests
+    // decoded from one read are written together.
+    private void serveBlocking(SocketChannel channel) {
+        ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+        ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+        try {
+            while (channel.read(readBuffer) >= 0) {
+                long receivedNanos = System.nanoTime();
+                readBuffer.flip();
+                Object frame;
+                while ((frame = nextFrame(readBuffer)) != null) {
+                    boolean sampled = metrics != null && metrics.sample();
+                    if (!limiter.tryAcquire()) {
+                        writeBuffer = ensureWritable(writeBuffer, RPCCodec.maxBatchResponseBytes(0, 0));
+                        writeOverloaded(writeBuffer, frame);
+                    } else if (frame instanceof RPCBatchRequest) {
+                        RPCBatchRequest batch = (RPCBatchRequest) frame;
+                        RPCBatchResponse response = dispatchBatch(batch, receivedNanos, sampled);
+                        long serializeStart = sampled ? System.nanoTime() : 0;
+                        writeBuffer = ensureWritable(writeBuffer, RPCCodec.maxBatchResponseBytes(response.getResults().length, response.getFailedRows().length));
+                        RPCCodec.writeBatchResponse(writeBuffer, response.getRequestId(), response.getStatus(), response.getResults(), response.getFailedRows());
+                        if (sampled) {
+                            metrics.forMethod(batch.getMethodId()).serializeTime.record(System.nanoTime() - serializeStart);
+                        }
+                    } else {
+                        RPCRequest request = (RPCRequest) frame;
+                        RPCResponse response = dispatch(request, receivedNanos, sampled);
+                        long serializeStart = sampled ? System.nanoTime() : 0;
+                        writeBuffer = ensureWritable(writeBuffer, RPCCodec.MAX_RESPONSE_BYTES);
+                        RPCCodec.writeResponse(writeBuffer, response.getRequestId(), response.getStatus(), response.getResult());
+                        if (sampled) {
+                            metrics.forMethod(request.getMethodId()).serializeTime.record(System.nanoTime() - serializeStart);
+                        }
+                    }
+                }
+                readBuffer = compact(readBuffer);
+                writeBuffer.flip();
+                while (writeBuffer.hasRemaining()) {
+                    channel.write(writeBuffer);
+                }
+                writeBuffer.clear();
+            }
+        } catch (IOException e) {
+            // Client went away or sent garbage
+        } finally {
+            connections.remove(channel);
+            closeQuietly(channel);
+        }
+    }
+
+    // Rejected calls count as failed, but are not timed
+    private void writeOverloaded(ByteBuffer dst, Object frame) {
+        if (frame instanceof RPCBatchRequest) {
+            RPCBatchRequest batch = (RPCBatchRequest) frame;
+            RPCCodec.writeBatchResponse(dst, batch.getRequestId(), RPCCodec.STATUS_OVERLOADED, new int[0], new int[0]);
+            record(batch.getMethodId(), batch.getRowCount(), batch.getRowCount(), 0, 0, false);
+        } else {
+            RPCRequest request = (RPCRequest) frame;
+            RPCCodec.writeResponse(dst, request.getRequestId(), RPCCodec.STATUS_OVERLOADED, 0);
+            record(request.getMethodId(), 1, 1, 0, 0, false);
+        }
+    }
+
+    // Runs an admitted call on the calling thread and reports it to the limiter and metrics
+    private RPCResponse dispatch(RPCRequest request, long receivedNanos, boolean sampled) {
+        long startNanos = sampled ? System.nanoTime() : 0;
+        int methodId = request.getMethodId();
+        long traceId = request.getTraceId();
+        ServiceRegistry.ServiceMethod method = registry.lookup(methodId);
+        int[] params = request.getParams();
+        byte status = RPCCodec.STATUS_OK;
+        int result = 0;
+        long previousTrace = traceId == 0 ? 0 : RPCTrace.swap(traceId);
+        try {
+            for (RPCInterceptor interceptor : interceptors) {
+                interceptor.onInvoke(methodId, traceId);
+            }
+            if (request.getDeadline().isExpired()) {
+                status = RPCCodec.STATUS_DEADLINE_EXCEEDED;
+            } else if (method == null) {
+                status = RPCCodec.STATUS_UNKNOWN_METHOD;
+            } else if (params.length != method.getParameterCount()) {
+                status = RPCCodec.STATUS_BAD_REQUEST;
+            } else {
+                try {
+                    result = resultCache != null && method.isIdempotent() ? invokeCached(methodId, method, params) : method.invoke(params);
+                } catch (RuntimeException e) {
+                    // Counted in the method's errors and reported to interceptors, like a failed batch row
+                    status = RPCCodec.STATUS_ERROR;
+                }
+            }
+            for (RPCInterceptor interceptor : interceptors) {
+                interceptor.onInvokeComplete(methodId, traceId, status);
+            }
+        } finally {
+            if (traceId != 0) {
+                RPCTrace.swap(previousTrace);
+            }
+        }
+        limiter.onComplete(System.nanoTime() - receivedNanos, request.getDeadline().isExpired());
+        record(methodId, 1, status == RPCCodec.STATUS_OK ? 0 : 1, receivedNanos, startNanos, sampled);
+        return new RPCResponse(request.getRequestId(), status, result);
+    }
+
+    // A row whose call throws gets result 0 and is listed as failed; the other rows still run.
+    // Concurrent first calls with the same arguments may each run the method; they store the same result
+    private int invokeCached(int methodId, ServiceRegistry.ServiceMethod method, int[] params) {
+        RPCResultCache.Key key = new RPCResultCache.Key(methodId, params);
+        Integer cached = resultCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        int result = method.invoke(params);
+        resultCache.put(key, result);
+        return result;
+    }
+
+    // Interceptors see the batch as one call, while metrics count its rows.
+    private RPCBatchResponse dispatchBatch(RPCBatchRequest batch, long receivedNanos, boolean sampled) {
+        long startNanos = sampled ? System.nanoTime() : 0;
+        int methodId = batch.getMethodId();
+        long traceId = batch.getTraceId();
+        ServiceRegistry.ServiceMethod method = registry.lookup(methodId);
+        int[][] columns = batch.getColumns();
+        byte status = RPCCodec.STATUS_OK;
+        int[] results = new int[0];
+        int[] failedRows = new int[0];
+        int failedCount = 0;
+        long previousTrace = traceId == 0 ? 0 : RPCTrace.swap(traceId);
+        try {
+            for (RPCInterceptor interceptor : interceptors) {
+                interceptor.onInvoke(methodId, traceId);
+            }
+            if (batch.getDeadline().isExpired()) {
+                status = RPCCodec.STATUS_DEADLINE_EXCEEDED;
+            } else if (method == null) {
+                status = RPCCodec.STATUS_UNKNOWN_METHOD;
+            } else if (columns.length != method.getParameterCount()) {
+                status = RPCCodec.STATUS_BAD_REQUEST;
+            } else {
+                results = new int[batch.getRowCount()];
+                int row = 0;
+                while ((row = method.invokeBatch(columns, results, row)) < results.length) {
+                    if (failedCount == failedRows.length) {
+                        failedRows = Arrays.copyOf(failedRows, Math.max(8, failedCount * 2));
+                    }
+                    failedRows[failedCount++] = row++;
+                }
+            }
+            for (RPCInterceptor interceptor : interceptors) {
+                interceptor.onInvokeComplete(methodId, traceId, status);
+            }
+        } finally {
+            if (traceId != 0) {
+                RPCTrace.swap(previousTrace);
+            }
+        }
+        limiter.onComplete(System.nanoTime() - receivedNanos, batch.getDeadline().isExpired());
+        int rows = batch.getRowCount();
+        record(methodId, rows, status == RPCCodec.STATUS_OK ? failedCount : rows, receivedNanos, startNanos, sampled);
+        return new RPCBatchResponse(batch.getRequestId(), status, results, Arrays.copyOf(failedRows, failedCount));
+    }
+
+    // Sampled calls were read at receivedNanos and started at startNanos, and finish now
+    private void record(int methodId, int calls, int errors, long receivedNanos, long startNanos, boolean sampled) {
+        if (metrics == null) {
+            return;
+        }
+        RPCMetrics.MethodMetrics method = metrics.forMethod(methodId);
+        method.calls.add(calls);
+        if (errors > 0) {
+            method.errors.add(errors);
+        }
+        if (sampled) {
+            method.queueTime.record(startNanos - receivedNanos);
+            method.executeTime.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    // Decodes the next complete frame in buffer (in read mode) into an RPCRequest or RPCBatchRequest.
+    // Null if the buffer ends partway through a frame, which is left in place.
+    private static Object nextFrame(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Integer.BYTES) {
+            return null;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length <= 0 || length > RPCCodec.MAX_FRAME_BYTES) {
+            throw new IOException("Frame of " + length + " bytes");
+        }
+        if (buffer.remaining() < Integer.BYTES + length) {
+            return null;
+        }
+        int frameEnd = buffer.position() + Integer.BYTES + length;
+        int limit = buffer.limit();
+        buffer.position(buffer.position() + Integer.BYTES).limit(frameEnd);
+        try {
+            if (RPCCodec.frameType(buffer) == RPCCodec.BATCH_REQUEST) {
+                return RPCCodec.readBatchRequest(buffer);
+            }
+            return RPCCodec.readRequest(buffer);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new IOException("Malformed request", e);
+        } finally {
+            buffer.limit(limit).position(frameEnd);
+        }
+    }
+
+    // Compacts a drained read buffer, growing it only when a single frame is bigger than the buffer
+    private static ByteBuffer compact(ByteBuffer buffer) {
+        buffer.compact();
+        if (buffer.position() >= Integer.BYTES && buffer.capacity() < Integer.BYTES + buffer.getInt(0)) {
+            ByteBuffer larger = ByteBuffer.allocate(Integer.BYTES + buffer.getInt(0));
+            larger.put(buffer.flip());
+            return larger;
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer ensureWritable(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() < bytes) {
+            return ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes)).put(buffer.flip());
+        }
+        return buffer;
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public ServerExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    // Integer.MAX_VALUE unless the server has a ConcurrencyLimit
+    public int getConcurrencyLimit() {
+        return limiter.getLimit();
+    }
+
+    public void close() {
+        if (executionMode == ServerExecutionMode.VIRTUAL_THREAD_PER_CONNECTION) {
+            closeQuietly(serverChannel);
+            for (SocketChannel channel : connections) {
+                closeQuietly(channel);
+            }
+            if (acceptor != null) {
+                try {
+                    acceptor.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return;
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.close();
+        }
+        workers.shutdown();
+    }
+
+    private interface ReadyHandler {
+        void onReady(SelectionKey key) throws IOException;
+    }
+
+    // One selector and the thread that runs it. Other threads hand work to the loop through
+    // execute(), since a channel's interest ops and writes are only touched on its own loop.
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+        private final Thread thread;
+        private volatile boolean running;
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.thread = new Thread(this, name);
+            this.running = true;
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        SelectionKey register(SelectableChannel channel, int interestOps, ReadyHandler handler) {
+            try {
+                return channel.register(selector, interestOps, handler);
+            } catch (ClosedChannelException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            ((ReadyHandler) key.attachment()).onReady(key);
+                        } catch (IOException | CancelledKeyException e) {
+                            // Client went away or sent garbage; drop just this connection
+                            closeQuietly(key.channel());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                closeQuietly(selector);
+            }
+        }
+
+        void close() {
+            running = false;
+            selector.wakeup();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // A client socket owned by one event loop. Requests are decoded straight out of the read buffer
+    // and run on the worker pool; replies are encoded into the connection's write buffer back on the
+    // loop. Replies carry the request id, since a worker pool may finish them in any order.
+    private class Connection implements ReadyHandler {
+        private final SocketChannel channel;
+        private final EventLoop eventLoop;
+        private final SelectionKey key;
+        private ByteBuffer readBuffer;
+        // In write mode: holds replies encoded but not yet accepted by the socket
+        private ByteBuffer writeBuffer;
+        private boolean flushScheduled;
+
+        Connection(SocketChannel channel, EventLoop eventLoop) {
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+            this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+            this.writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+            this.key = eventLoop.register(channel, SelectionKey.OP_READ, this);
+        }
+
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            if (key.isReadable()) {
+                onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        }
+
+        private void onReadable() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            long receivedNanos = System.nanoTime();
+            readBuffer.flip();
+            Object frame;
+            while ((frame = nextFrame(readBuffer)) != null) {
+                submit(frame, receivedNanos, metrics != null && metrics.sample());
+            }
+            readBuffer = compact(readBuffer);
+        }
+
+        // Calls run on the worker pool. One over the concurrency limit, or that finds the pool's queue
+        // full, is answered OVERLOADED from here.
+        // Sampled calls also time encoding their reply.
+        private void submit(Object frame, long receivedNanos, boolean sampled) {
+            if (!limiter.tryAcquire()) {
+                replyOverloaded(frame);
+                return;
+            }
+            try {
+                if (frame instanceof RPCBatchRequest) {
+                    RPCBatchRequest batch = (RPCBatchRequest) frame;
+                    workers.execute(() -> {
+                        RPCBatchResponse response = dispatchBatch(batch, receivedNanos, sampled);
+                        if (!sampled) {
+                            eventLoop.execute(() -> replyBatch(response));
+                            return;
+                        }
+                        eventLoop.execute(() -> {
+                            long serializeStart = System.nanoTime();
+                            replyBatch(response);
+                            metrics.forMethod(batch.getMethodId()).serializeTime.record(System.nanoTime() - serializeStart);
+                        });
+                    });
+                } else {
+                    RPCRequest request = (RPCRequest) frame;
+                    workers.execute(() -> {
+                        RPCResponse response = dispatch(request, receivedNanos, sampled);
+                        if (!sampled) {
+                            eventLoop.execute(() -> reply(response.getRequestId(), response.getStatus(), response.getResult()));
+                            return;
+                        }
+                        eventLoop.execute(() -> {
+                            long serializeStart = System.nanoTime();
+                            reply(response.getRequestId(), response.getStatus(), response.getResult());
+                            metrics.forMethod(request.getMethodId()).serializeTime.record(System.nanoTime() - serializeStart);
+                        });
+                    });
+                }
+            } catch (RejectedExecutionException e) {
+                limiter.onIgnore();
+                replyOverloaded(frame);
+            }
+        }
+
+        private void replyOverloaded(Object frame) {
+            writeBuffer = ensureWritable(writeBuffer, RPCCodec.maxBatchResponseBytes(0, 0));
+            writeOverloaded(writeBuffer, frame);
+            scheduleFlush();
+        }
+
+        // Replies queued on the loop together go out in one write: the flush runs after them.
+        private void reply(int requestId, byte status, int result) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            writeBuffer = ensureWritable(writeBuffer, RPCCodec.MAX_RESPONSE_BYTES);
+            RPCCodec.writeResponse(writeBuffer, requestId, status, result);
+            scheduleFlush();
+        }
+
+        private void replyBatch(RPCBatchResponse response) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            int[] failedRows = response.getFailedRows();
+            writeBuffer = ensureWritable(writeBuffer, RPCCodec.maxBatchResponseBytes(response.getResults().length, failedRows.length));
+            RPCCodec.writeBatchResponse(writeBuffer, response.getRequestId(), response.getStatus(), response.getResults(), failedRows);
+            scheduleFlush();
+        }
+
+        private void scheduleFlush() {
+            if (!flushScheduled) {
+                flushScheduled = true;
+                eventLoop.execute(() -> {
+                    flushScheduled = false;
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        close();
+                    }
+                });
+            }
+        }
+
+        private void flush() throws IOException {
+            if (!channel.isOpen()) {
+                return;
+            }
+            writeBuffer.flip();
+            channel.write(writeBuffer);
+            boolean backedUp = writeBuffer.hasRemaining();
+            writeBuffer.compact();
+            key.interestOps(backedUp ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void close() {
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+}
@@ -0,0 +1,238 @@
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Benchmark for choosing an RPCServer execution mode. For each mode and connection count it opens
+// that many client connections, then has every connection make --calls sequential add() calls at
+// the same time, and reports:
+//   connect ms   time to open all the connections
+//   heap/conn    heap retained per open connection after GC, both ends of the socket (the client
+//                side is the same in every mode, so differences between rows are the server's)
+//   threads      live platform threads while the connections are open
+//   calls/s, p50/p99 us of the calls that succeeded, and how many were answered OVERLOADED
+//
+//   java RPCServerBenchmark --modes=EVENT_LOOP,VIRTUAL_THREAD_PER_CONNECTION --connections=100,10000,100000
+//       --calls=10 --workers=8 --queue=4096 --out=rpc-server.csv
+//
+// Clients and server share this JVM, so each connection uses two file descriptors; scenarios that
+// would run past the process's descriptor limit are skipped (raise it with ulimit -n).
+//
+// No data exists yet for the 10k/100k comparison: the only runs so far were on one CPU with a
+// descriptor limit of 20000, where the 10000 and 100000 connection scenarios were skipped. Until
+// they are run somewhere with a higher limit, the 100-connection rows are all there is.
+public class RPCServerBenchmark {
+    private static final int FD_HEADROOM = 256;
+
+    private static class Result {
+        final long connectMillis;
+        final long heapBytesPerConnection;
+        final int platformThreads;
+        final double callsPerSecond;
+        final long p50Nanos;
+        final long p99Nanos;
+        final long rejected;
+
+        Result(long connectMillis, long heapBytesPerConnection, int platformThreads, double callsPerSecond,
+               long[] sortedLatencies, long rejected) {
+            this.connectMillis = connectMillis;
+            this.heapBytesPerConnection = heapBytesPerConnection;
+            this.platformThreads = platformThreads;
+            this.callsPerSecond = callsPerSecond;
+            this.p50Nanos = percentile(sortedLatencies, 0.50);
+            this.p99Nanos = percentile(sortedLatencies, 0.99);
+            this.rejected = rejected;
+        }
+
+        private static long percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String[] modes = options.getOrDefault("modes", "EVENT_LOOP,VIRTUAL_THREAD_PER_CONNECTION").split(",");
+        int[] connectionCounts = parseList(options.getOrDefault("connections", "100,10000,100000"));
+        int calls = Integer.parseInt(options.getOrDefault("calls", "10"));
+        RPCServerConfig.Builder defaults = new RPCServerConfig.Builder();
+        if (options.containsKey("workers")) {
+            defaults.workerThreads(Integer.parseInt(options.get("workers")));
+        }
+        if (options.containsKey("queue")) {
+            defaults.workerQueueCapacity(Integer.parseInt(options.get("queue")));
+        }
+
+        List<String> csv = new ArrayList<>();
+        csv.add("mode,connections,connect_ms,heap_bytes_per_conn,platform_threads,calls_per_sec,p50_us,p99_us,rejected");
+        System.out.printf("%-30s %7s %10s %10s %8s %12s %9s %9s %9s%n",
+                "mode", "conns", "connect ms", "heap/conn", "threads", "calls/s", "p50 us", "p99 us", "rejected");
+        for (String mode : modes) {
+            ServerExecutionMode executionMode = ServerExecutionMode.valueOf(mode.trim());
+            for (int connections : connectionCounts) {
+                long available = availableFileDescriptors();
+                if (2L * connections + FD_HEADROOM > available) {
+                    System.out.printf("%-30s %7d skipped: needs %d file descriptors, %d available%n",
+                            executionMode, connections, 2L * connections + FD_HEADROOM, available);
+                    continue;
+                }
+                Result result = runOnce(defaults.executionMode(executionMode).build(), connections, calls);
+                System.out.printf("%-30s %7d %10d %10d %8d %12.0f %9.1f %9.1f %9d%n",
+                        executionMode, connections, result.connectMillis, result.heapBytesPerConnection,
+                        result.platformThreads, result.callsPerSecond, result.p50Nanos / 1e3, result.p99Nanos / 1e3,
+                        result.rejected);
+                csv.add(String.format("%s,%d,%d,%d,%d,%.0f,%.1f,%.1f,%d", executionMode, connections,
+                        result.connectMillis, result.heapBytesPerConnection, result.platformThreads,
+                        result.callsPerSecond, result.p50Nanos / 1e3, result.p99Nanos / 1e3, result.rejected));
+            }
+        }
+
+        if (options.containsKey("out")) {
+            Files.write(Paths.get(options.get("out")), csv);
+        }
+    }
+
+    private static Result runOnce(RPCServerConfig config, int connections, int calls) throws Exception {
+        ServiceRegistry registry = new ServiceRegistry();
+        registry.register(CalculatorService.class, new CalculatorServiceImpl());
+        int addMethod = ServiceDescriptor.of(0, CalculatorService.class).methodId("add", 2);
+        RPCServer server = new RPCServer(0, registry, config);
+        server.start();
+        SocketChannel[] channels = new SocketChannel[connections];
+        try {
+            long heapBefore = usedHeapAfterGc();
+            long connectStart = System.nanoTime();
+            InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+            for (int i = 0; i < connections; i++) {
+                channels[i] = SocketChannel.open(address);
+                channels[i].setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+            long connectMillis = (System.nanoTime() - connectStart) / 1_000_000;
+            // Every connection has made a call, so the server has accepted and set up all of them
+            for (int i = 0; i < connections; i++) {
+                call(channels[i], ByteBuffer.allocate(64), i, addMethod, i, 1);
+            }
+            long heapPerConnection = Math.max(0, usedHeapAfterGc() - heapBefore) / connections;
+            int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            long[] latencies = new long[connections * calls];
+            AtomicInteger completed = new AtomicInteger();
+            LongAdder rejected = new LongAdder();
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(connections);
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = channels[i];
+                int connection = i;
+                Thread.startVirtualThread(() -> {
+                    ByteBuffer buffer = ByteBuffer.allocate(64);
+                    try {
+                        start.await();
+                        for (int c = 0; c < calls; c++) {
+                            long callStart = System.nanoTime();
+                            byte status = call(channel, buffer, c, addMethod, connection, c);
+                            if (status == RPCCodec.STATUS_OVERLOADED) {
+                                rejected.increment();
+                            } else if (status == RPCCodec.STATUS_OK) {
+                                latencies[completed.getAndIncrement()] = System.nanoTime() - callStart;
+                            }
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            long loadStart = System.nanoTime();
+            start.countDown();
+            done.await();
+            long loadNanos = System.nanoTime() - loadStart;
+
+            long[] sorted = Arrays.copyOf(latencies, completed.get());
+            Arrays.sort(sorted);
+            return new Result(connectMillis, heapPerConnection, platformThreads, sorted.length * 1e9 / loadNanos,
+                    sorted, rejected.sum());
+        } finally {
+            for (SocketChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            server.close();
+        }
+    }
+
+    // One blocking request/response round trip; returns the reply's status
+    private static byte call(SocketChannel channel, ByteBuffer buffer, int requestId, int methodId, int a, int b)
+            throws IOException {
+        buffer.clear();
+        RPCCodec.writeRequest(buffer, requestId, methodId, 0, 0, new int[] {a, b});
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        while (buffer.position() < Integer.BYTES || buffer.position() < Integer.BYTES + buffer.getInt(0)) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Server closed the connection");
+            }
+        }
+        buffer.flip().position(Integer.BYTES);
+        RPCResponse response = RPCCodec.readResponse(buffer);
+        if (response.getRequestId() != requestId) {
+            throw new IOException("Reply to request " + response.getRequestId() + " while waiting for " + requestId);
+        }
+        return response.getStatus();
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static long availableFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof UnixOperatingSystemMXBean) {
+            UnixOperatingSystemMXBean unix = (UnixOperatingSystemMXBean) os;
+            return unix.getMaxFileDescriptorCount() - unix.getOpenFileDescriptorCount();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+
+    private static int[] parseList(String values) {
+        return Arrays.stream(values.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+}
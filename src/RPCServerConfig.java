@@ -0,0 +1,119 @@
+public class RPCServerConfig {
+    private final ServerExecutionMode executionMode;
+    private final int eventLoops;
+    private final int workerThreads;
+    private final int workerQueueCapacity;
+    private final int acceptBacklog;
+    private final ConcurrencyLimit concurrencyLimit;
+    private final int initialConcurrencyLimit;
+    private final int maxConcurrencyLimit;
+    private final RPCInstrumentation instrumentation;
+    private final RPCCacheConfig resultCache;
+
+    private RPCServerConfig(Builder builder) {
+        this.executionMode = builder.executionMode;
+        this.eventLoops = builder.eventLoops;
+        this.workerThreads = builder.workerThreads;
+        this.workerQueueCapacity = builder.workerQueueCapacity;
+        this.acceptBacklog = builder.acceptBacklog;
+        this.concurrencyLimit = builder.concurrencyLimit;
+        this.initialConcurrencyLimit = builder.initialConcurrencyLimit;
+        this.maxConcurrencyLimit = builder.maxConcurrencyLimit;
+        this.instrumentation = builder.instrumentation;
+        this.resultCache = builder.resultCache;
+    }
+
+    public static RPCServerConfig defaults() {
+        return new Builder().build();
+    }
+
+    public ServerExecutionMode getExecutionMode() { return executionMode; }
+    public int getEventLoops() { return eventLoops; }
+    public int getWorkerThreads() { return workerThreads; }
+    public int getWorkerQueueCapacity() { return workerQueueCapacity; }
+    public int getAcceptBacklog() { return acceptBacklog; }
+    public ConcurrencyLimit getConcurrencyLimit() { return concurrencyLimit; }
+    public int getInitialConcurrencyLimit() { return initialConcurrencyLimit; }
+    public int getMaxConcurrencyLimit() { return maxConcurrencyLimit; }
+    public RPCInstrumentation getInstrumentation() { return instrumentation; }
+    // Null if results are not cached
+    public RPCCacheConfig getResultCache() { return resultCache; }
+
+    public static class Builder {
+        private ServerExecutionMode executionMode = ServerExecutionMode.EVENT_LOOP;
+        private int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        private int workerThreads = Runtime.getRuntime().availableProcessors();
+        private int workerQueueCapacity = 4096;
+        private int acceptBacklog = 1024;
+        private ConcurrencyLimit concurrencyLimit = ConcurrencyLimit.NONE;
+        private int initialConcurrencyLimit = 64;
+        private int maxConcurrencyLimit = 4096;
+        private RPCInstrumentation instrumentation = RPCInstrumentation.NONE;
+        private RPCCacheConfig resultCache;
+
+        public Builder executionMode(ServerExecutionMode executionMode) {
+            this.executionMode = executionMode;
+            return this;
+        }
+
+        // EVENT_LOOP only
+        public Builder eventLoops(int eventLoops) {
+            this.eventLoops = eventLoops;
+            return this;
+        }
+
+        // EVENT_LOOP only: platform threads running calls
+        public Builder workerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        // EVENT_LOOP only: calls waiting for a worker beyond this are answered OVERLOADED at once
+        public Builder workerQueueCapacity(int workerQueueCapacity) {
+            this.workerQueueCapacity = workerQueueCapacity;
+            return this;
+        }
+
+        // Connections the kernel holds for accept(); the JDK default of 50 drops bursts of connects
+        public Builder acceptBacklog(int acceptBacklog) {
+            this.acceptBacklog = acceptBacklog;
+            return this;
+        }
+
+        public Builder concurrencyLimit(ConcurrencyLimit concurrencyLimit) {
+            this.concurrencyLimit = concurrencyLimit;
+            return this;
+        }
+
+        // Where an adaptive limit starts, and the most it may grow to
+        public Builder concurrencyLimits(int initial, int max) {
+            this.initialConcurrencyLimit = initial;
+            this.maxConcurrencyLimit = max;
+            return this;
+        }
+
+        // Metrics are registered under rpc-server
+        public Builder instrumentation(RPCInstrumentation instrumentation) {
+            this.instrumentation = instrumentation;
+            return this;
+        }
+
+        // Reuses results of @Idempotent methods for repeated arguments, with metrics under
+        // rpc-server-cache. Only worth it for methods that cost more than a map lookup, and not
+        // applied to batches, whose rows are evaluated column by column in one pass.
+        public Builder resultCache(RPCCacheConfig resultCache) {
+            this.resultCache = resultCache;
+            return this;
+        }
+
+        public RPCServerConfig build() {
+            if (eventLoops <= 0 || workerThreads <= 0 || workerQueueCapacity <= 0 || acceptBacklog <= 0) {
+                throw new IllegalArgumentException("Event loops, workers, queue capacity and backlog must be positive");
+            }
+            if (initialConcurrencyLimit <= 0 || initialConcurrencyLimit > maxConcurrencyLimit) {
+                throw new IllegalArgumentException("Concurrency limits " + initialConcurrencyLimit + " to " + maxConcurrencyLimit);
+            }
+            return new RPCServerConfig(this);
+        }
+    }
+}
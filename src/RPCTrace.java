@@ -0,0 +1,48 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+// The trace id of the call this thread is serving, 0 if none. The server makes a traced call's id
+// current while the method runs, and clients send the current id with every call, so calls made
+// from inside a method carry its trace on downstream without being passed anything.
+public class RPCTrace {
+    private static final ThreadLocal<long[]> CURRENT = new ThreadLocal<>();
+
+    private RPCTrace() {}
+
+    public static long current() {
+        long[] current = CURRENT.get();
+        return current == null ? 0 : current[0];
+    }
+
+    public static long newTraceId() {
+        long traceId;
+        do {
+            traceId = ThreadLocalRandom.current().nextLong();
+        } while (traceId == 0);
+        return traceId;
+    }
+
+    // Runs task with traceId current, e.g. to make calls on a thread that is not serving one part of a trace
+    public static void run(long traceId, Runnable task) {
+        long previous = swap(traceId);
+        try {
+            task.run();
+        } finally {
+            swap(previous);
+        }
+    }
+
+    // Makes traceId current and returns the id it replaces, for the caller to put back
+    static long swap(long traceId) {
+        long[] current = CURRENT.get();
+        if (current == null) {
+            if (traceId == 0) {
+                return 0;
+            }
+            current = new long[1];
+            CURRENT.set(current);
+        }
+        long previous = current[0];
+        current[0] = traceId;
+        return previous;
+    }
+}
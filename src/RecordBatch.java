@@ -0,0 +1,52 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class RecordBatch{
+    private final TopicPartition topicPartition;
+    private final List<Message> messages;
+    private final List<CompletableFuture<Long>> futures;
+    private int sizeInBytes;
+
+    public RecordBatch(TopicPartition topicPartition) {
+        this.topicPartition = topicPartition;
+        this.messages = new ArrayList<>();
+        this.futures = new ArrayList<>();
+    }
+
+    public CompletableFuture<Long> add(Message message){
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        messages.add(message);
+        futures.add(future);
+        sizeInBytes += message.estimatedSizeInBytes();
+        return future;
+    }
+
+    public void complete(long baseOffset){
+        for(int i = 0; i < futures.size(); i++){
+            futures.get(i).complete(baseOffset + i);
+        }
+    }
+
+    public void fail(Throwable error){
+        for(CompletableFuture<Long> future: futures){
+            future.completeExceptionally(error);
+        }
+    }
+
+    public CompletableFuture<Void> whenDone(){
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    public TopicPartition getTopicPartition() {
+        return topicPartition;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public int getSizeInBytes() {
+        return sizeInBytes;
+    }
+}
@@ -0,0 +1,71 @@
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+// Record layout, shared by log segments and the fetch wire format:
+// [int length][long offset][int crc][long timestamp][byte attributes]
+// [int keyLength][key][int valueLength][value][headers]
+// length counts the bytes after itself and the CRC32C covers everything after the crc field.
+// A null key or value is written with length -1. The low bits of attributes hold the codec id of a
+// compressed batch (see CompressedBatch) and are 0 for ordinary records.
+public class RecordFormat{
+    static final int OFFSET_POSITION = 4;
+    static final int CRC_POSITION = 12;
+    static final int TIMESTAMP_POSITION = 16;
+    static final int ATTRIBUTES_POSITION = 24;
+    static final int KEY_LENGTH_POSITION = 25;
+    static final int FIXED_BYTES = 33;
+    static final int COMPRESSION_CODEC_MASK = 0x07;
+
+    private RecordFormat() {}
+
+    static int sizeOf(ByteBuffer key, ByteBuffer value, ByteBuffer headers){
+        return FIXED_BYTES + remaining(key) + remaining(value) + headers.remaining();
+    }
+
+    // Writes with absolute puts only, so the source buffers can be shared between threads.
+    // The length goes in last, which keeps a half-written record invisible to recovery.
+    static int write(ByteBuffer dst, int position, long offset, long timestamp,
+                     ByteBuffer key, ByteBuffer value, ByteBuffer headers, ByteBuffer crcView, CRC32C crc){
+        return write(dst, position, offset, timestamp, (byte) 0, key, value, headers, crcView, crc);
+    }
+
+    static int write(ByteBuffer dst, int position, long offset, long timestamp, byte attributes,
+                     ByteBuffer key, ByteBuffer value, ByteBuffer headers, ByteBuffer crcView, CRC32C crc){
+        int size = sizeOf(key, value, headers);
+        dst.putLong(position + OFFSET_POSITION, offset);
+        dst.putLong(position + TIMESTAMP_POSITION, timestamp);
+        dst.put(position + ATTRIBUTES_POSITION, attributes);
+        int next = writeBytes(dst, position + KEY_LENGTH_POSITION, key);
+        next = writeBytes(dst, next, value);
+        dst.put(next, headers, headers.position(), headers.remaining());
+        crcView.clear().position(position + TIMESTAMP_POSITION).limit(position + size);
+        crc.reset();
+        crc.update(crcView);
+        dst.putInt(position + CRC_POSITION, (int) crc.getValue());
+        dst.putInt(position, size - Integer.BYTES);
+        return size;
+    }
+
+    private static int writeBytes(ByteBuffer dst, int position, ByteBuffer src){
+        if(src == null){
+            dst.putInt(position, -1);
+            return position + Integer.BYTES;
+        }
+        dst.putInt(position, src.remaining());
+        dst.put(position + Integer.BYTES, src, src.position(), src.remaining());
+        return position + Integer.BYTES + src.remaining();
+    }
+
+    private static int remaining(ByteBuffer buffer){
+        return buffer == null ? 0 : buffer.remaining();
+    }
+
+    // Stable across the String and ByteBuffer publish paths, so both pick the same partition for a key.
+    static int hash(ByteBuffer key){
+        int hash = 1;
+        for(int i = key.position(); i < key.limit(); i++){
+            hash = 31 * hash + key.get(i);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,3 @@
+public interface RecordHandler{
+    void onRecord(RecordView record);
+}
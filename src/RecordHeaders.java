@@ -0,0 +1,42 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Encoded as [short count] followed by [short keyLength][key][int valueLength][value] per header.
+public class RecordHeaders{
+    static final String PRODUCER_ID = "producer-id";
+    static final ByteBuffer EMPTY = new RecordHeaders().encode().asReadOnlyBuffer();
+
+    private final List<String> keys;
+    private final List<byte[]> values;
+
+    public RecordHeaders() {
+        this.keys = new ArrayList<>();
+        this.values = new ArrayList<>();
+    }
+
+    static ByteBuffer forProducer(String producerId){
+        return producerId == null ? EMPTY : new RecordHeaders().add(PRODUCER_ID, producerId).encode();
+    }
+
+    public RecordHeaders add(String key, String value){
+        keys.add(key);
+        values.add(value.getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    public ByteBuffer encode(){
+        int size = Short.BYTES;
+        for(int i = 0; i < keys.size(); i++){
+            size += Short.BYTES + keys.get(i).getBytes(StandardCharsets.UTF_8).length + Integer.BYTES + values.get(i).length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putShort((short) keys.size());
+        for(int i = 0; i < keys.size(); i++){
+            byte[] key = keys.get(i).getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short) key.length).put(key).putInt(values.get(i).length).put(values.get(i));
+        }
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,145 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+// Allocation-free view over one encoded record. A consumer keeps a single instance and
+// re-points it at each record; only the String/Message accessors allocate.
+public class RecordView{
+    private final CRC32C crc;
+    private ByteBuffer buffer;
+    private ByteBuffer crcView;
+    private int position;
+
+    public RecordView() {
+        this.crc = new CRC32C();
+    }
+
+    public RecordView wrap(ByteBuffer buffer, int position){
+        if(this.buffer != buffer){
+            this.buffer = buffer;
+            this.crcView = null;
+        }
+        this.position = position;
+        return this;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int position() {
+        return position;
+    }
+
+    public boolean isTombstone(){
+        return valueLength() < 0;
+    }
+
+    // Copy of the key bytes, usable as a hash map key; null for unkeyed records.
+    public ByteBuffer copyKey(){
+        int length = keyLength();
+        if(length < 0){
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(keyPosition(), bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    public int sizeInBytes(){
+        return Integer.BYTES + buffer.getInt(position);
+    }
+
+    public long offset(){
+        return buffer.getLong(position + RecordFormat.OFFSET_POSITION);
+    }
+
+    public long timestamp(){
+        return buffer.getLong(position + RecordFormat.TIMESTAMP_POSITION);
+    }
+
+    public byte attributes(){
+        return buffer.get(position + RecordFormat.ATTRIBUTES_POSITION);
+    }
+
+    // 0 for ordinary records
+    public int compressionCodecId(){
+        return attributes() & RecordFormat.COMPRESSION_CODEC_MASK;
+    }
+
+    public boolean isCompressedBatch(){
+        return compressionCodecId() != 0;
+    }
+
+    public int keyLength(){
+        return buffer.getInt(position + RecordFormat.KEY_LENGTH_POSITION);
+    }
+
+    public int keyPosition(){
+        return position + RecordFormat.KEY_LENGTH_POSITION + Integer.BYTES;
+    }
+
+    private int valueLengthPosition(){
+        return keyPosition() + Math.max(0, keyLength());
+    }
+
+    public int valueLength(){
+        return buffer.getInt(valueLengthPosition());
+    }
+
+    public int valuePosition(){
+        return valueLengthPosition() + Integer.BYTES;
+    }
+
+    public int headersPosition(){
+        return valuePosition() + Math.max(0, valueLength());
+    }
+
+    public boolean isValid(){
+        if(crcView == null){
+            crcView = buffer.duplicate();
+        }
+        crcView.clear().position(position + RecordFormat.TIMESTAMP_POSITION).limit(position + sizeInBytes());
+        crc.reset();
+        crc.update(crcView);
+        return (int) crc.getValue() == buffer.getInt(position + RecordFormat.CRC_POSITION);
+    }
+
+    public String key(){
+        return string(keyPosition(), keyLength());
+    }
+
+    public String value(){
+        return string(valuePosition(), valueLength());
+    }
+
+    public String header(String key){
+        int next = headersPosition();
+        int count = buffer.getShort(next);
+        next += Short.BYTES;
+        for(int i = 0; i < count; i++){
+            int keyLength = buffer.getShort(next);
+            String headerKey = string(next + Short.BYTES, keyLength);
+            next += Short.BYTES + keyLength;
+            int valueLength = buffer.getInt(next);
+            if(headerKey.equals(key)){
+                return string(next + Integer.BYTES, valueLength);
+            }
+            next += Integer.BYTES + valueLength;
+        }
+        return null;
+    }
+
+    public Message toMessage(){
+        return new Message(key(), value(), header(RecordHeaders.PRODUCER_ID), offset(), timestamp());
+    }
+
+    private String string(int start, int length){
+        if(length < 0){
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+// Keeps a follower's copy of one partition in step with the leader by fetching from the leader's
+// FetchServer as a replica. It stops as soon as the partition gets a new leader epoch; the node
+// then starts a fetcher for the new leader.
+public class ReplicaFetcher implements Runnable{
+    private static final int FETCH_BYTES = 256 * 1024;
+    private static final long EMPTY_FETCH_BACKOFF_MS = 1;
+    private static final long ERROR_BACKOFF_MS = 50;
+
+    private final Topic topic;
+    private final int partition;
+    private final PartitionReplica replica;
+    private final int leaderEpoch;
+    private final int localNodeId;
+    private final InetSocketAddress leaderAddress;
+
+    public ReplicaFetcher(Topic topic, int partition, PartitionReplica replica, int leaderEpoch, int localNodeId,
+                          InetSocketAddress leaderAddress) {
+        this.topic = topic;
+        this.partition = partition;
+        this.replica = replica;
+        this.leaderEpoch = leaderEpoch;
+        this.localNodeId = localNodeId;
+        this.leaderAddress = leaderAddress;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while(replica.isFollowing(leaderEpoch)){
+                try (FetchClient client = new FetchClient(leaderAddress.getHostString(), leaderAddress.getPort())) {
+                    while(replica.isFollowing(leaderEpoch)){
+                        if(fetchOnce(client) == 0){
+                            Thread.sleep(EMPTY_FETCH_BACKOFF_MS);
+                        }
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    // Leader unreachable or no longer leading; retry until the controller moves the partition
+                    Thread.sleep(ERROR_BACKOFF_MS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int fetchOnce(FetchClient client) throws IOException {
+        long fetchOffset = topic.getLogEndOffset(partition);
+        try {
+            int fetched = client.fetch(topic.getName(), partition, fetchOffset, FETCH_BYTES, localNodeId,
+                    record -> topic.appendReplica(partition, record));
+            replica.updateFollowerHighWatermark(client.getLastHighWatermark());
+            return fetched;
+        } catch (IllegalArgumentException e) {
+            if(client.getLastErrorCode() != FetchProtocol.OFFSET_OUT_OF_RANGE){
+                throw new IllegalStateException(e);
+            }
+            // Ahead of the leader: drop the divergent tail. Behind its retention: start over at its log start.
+            if(fetchOffset > client.getLastLogEndOffset()){
+                topic.truncateTo(partition, client.getLastLogEndOffset());
+            } else {
+                topic.truncateFullyAndStartAt(partition, client.getLastLogStartOffset());
+            }
+            return 0;
+        }
+    }
+}
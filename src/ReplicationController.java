@@ -0,0 +1,209 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Cluster metadata for replicated topics: which nodes are alive, and the leader, epoch and ISR of
+// every partition. Nodes heartbeat to it; one that stays silent for sessionTimeoutMs is declared
+// dead, its partitions get a new leader from their ISR and the decision is pushed to the replicas.
+// The controller runs in-process and talks to nodes directly, standing in for the consensus
+// service a real cluster would use. Record data between nodes travels over the fetch sockets.
+public class ReplicationController{
+    private final long sessionTimeoutMs;
+    private final Map<Integer, ClusterNode> nodes;
+    private final Map<String, TopicConfig> topicConfigs;
+    private final Map<TopicPartition, LeaderAndIsr> partitionStates;
+    private final ScheduledExecutorService failureDetector;
+
+    private static class ClusterNode{
+        final QueueSystem queueSystem;
+        final InetSocketAddress address;
+        long lastHeartbeatMs;
+        boolean alive;
+
+        ClusterNode(QueueSystem queueSystem, InetSocketAddress address) {
+            this.queueSystem = queueSystem;
+            this.address = address;
+            this.lastHeartbeatMs = System.currentTimeMillis();
+            this.alive = true;
+        }
+    }
+
+    public ReplicationController(long sessionTimeoutMs) {
+        this.sessionTimeoutMs = sessionTimeoutMs;
+        this.nodes = new TreeMap<>();
+        this.topicConfigs = new HashMap<>();
+        this.partitionStates = new HashMap<>();
+        this.failureDetector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replication-controller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long checkInterval = Math.max(1, sessionTimeoutMs / 4);
+        failureDetector.scheduleWithFixedDelay(this::checkNodes, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    // A node that registers again after being declared dead gets the topics it missed and rejoins
+    // as a follower; it goes back into the ISR once it has caught up. Offline partitions it was the
+    // last in-sync replica of are given to it as leader.
+    public void registerNode(int nodeId, QueueSystem queueSystem, InetSocketAddress address){
+        Map<String, TopicConfig> configs;
+        List<LeaderAndIsr> updates = new ArrayList<>();
+        synchronized (this) {
+            nodes.put(nodeId, new ClusterNode(queueSystem, address));
+            configs = new HashMap<>(topicConfigs);
+            for(Map.Entry<TopicPartition, LeaderAndIsr> entry: partitionStates.entrySet()){
+                LeaderAndIsr state = entry.getValue();
+                if(!state.getReplicas().contains(nodeId)){
+                    continue;
+                }
+                if(state.getLeader() < 0 && state.getIsr().contains(nodeId)){
+                    state = state.withLeader(nodeId, List.of(nodeId));
+                    entry.setValue(state);
+                }
+                updates.add(state);
+            }
+        }
+        configs.forEach(queueSystem::createLocalTopic);
+        deliver(updates);
+    }
+
+    public synchronized void heartbeat(int nodeId){
+        ClusterNode node = nodes.get(nodeId);
+        if(node != null && node.alive){
+            node.lastHeartbeatMs = System.currentTimeMillis();
+        }
+    }
+
+    // Replicas of partition p go to replicationFactor consecutive live nodes starting at p, which
+    // spreads leadership evenly; the first replica leads.
+    public void createTopic(String topicName, TopicConfig config){
+        List<ClusterNode> live = new ArrayList<>();
+        List<LeaderAndIsr> created = new ArrayList<>();
+        synchronized (this) {
+            if(topicConfigs.containsKey(topicName)){
+                return;
+            }
+            List<Integer> liveIds = new ArrayList<>();
+            for(Map.Entry<Integer, ClusterNode> entry: nodes.entrySet()){
+                if(entry.getValue().alive){
+                    liveIds.add(entry.getKey());
+                    live.add(entry.getValue());
+                }
+            }
+            if(liveIds.size() < config.getReplicationFactor()){
+                throw new IllegalArgumentException("Replication factor " + config.getReplicationFactor()
+                        + " needs at least as many live nodes, have " + liveIds.size());
+            }
+            topicConfigs.put(topicName, config);
+            for(int partition = 0; partition < config.getPartitions(); partition++){
+                List<Integer> replicas = new ArrayList<>();
+                for(int i = 0; i < config.getReplicationFactor(); i++){
+                    replicas.add(liveIds.get((partition + i) % liveIds.size()));
+                }
+                TopicPartition topicPartition = new TopicPartition(topicName, partition);
+                LeaderAndIsr state = new LeaderAndIsr(topicPartition, replicas.get(0), 0, replicas, replicas, 0);
+                partitionStates.put(topicPartition, state);
+                created.add(state);
+            }
+        }
+        for(ClusterNode node: live){
+            node.queueSystem.createLocalTopic(topicName, config);
+        }
+        deliver(created);
+    }
+
+    // Called by a partition leader. Returns null if the partition changed since current was read,
+    // which also fences a deposed leader that has not heard about its replacement yet.
+    public LeaderAndIsr alterIsr(LeaderAndIsr current, List<Integer> isr){
+        LeaderAndIsr updated;
+        synchronized (this) {
+            LeaderAndIsr latest = partitionStates.get(current.getTopicPartition());
+            if(latest == null || latest.getVersion() != current.getVersion()){
+                return null;
+            }
+            updated = latest.withIsr(isr);
+            partitionStates.put(current.getTopicPartition(), updated);
+        }
+        deliver(List.of(updated));
+        return updated;
+    }
+
+    public synchronized LeaderAndIsr getPartitionState(String topicName, int partition){
+        return partitionStates.get(new TopicPartition(topicName, partition));
+    }
+
+    // Null while the partition has no live leader
+    public synchronized QueueSystem getLeaderNode(String topicName, int partition){
+        LeaderAndIsr state = partitionStates.get(new TopicPartition(topicName, partition));
+        ClusterNode leader = state == null ? null : nodes.get(state.getLeader());
+        return leader != null && leader.alive ? leader.queueSystem : null;
+    }
+
+    public synchronized InetSocketAddress getNodeAddress(int nodeId){
+        ClusterNode node = nodes.get(nodeId);
+        return node == null ? null : node.address;
+    }
+
+    private void checkNodes(){
+        List<LeaderAndIsr> updates = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for(Map.Entry<Integer, ClusterNode> node: nodes.entrySet()){
+                if(node.getValue().alive && now - node.getValue().lastHeartbeatMs > sessionTimeoutMs){
+                    node.getValue().alive = false;
+                    updates.addAll(failOver(node.getKey()));
+                }
+            }
+        }
+        deliver(updates);
+    }
+
+    // Without unclean election a partition whose whole ISR is dead stays offline, remembering the
+    // last in-sync replica so it can lead again when it comes back.
+    private List<LeaderAndIsr> failOver(int deadNode){
+        List<LeaderAndIsr> updates = new ArrayList<>();
+        for(Map.Entry<TopicPartition, LeaderAndIsr> entry: partitionStates.entrySet()){
+            LeaderAndIsr state = entry.getValue();
+            if(!state.getIsr().contains(deadNode)){
+                continue;
+            }
+            List<Integer> isr = new ArrayList<>(state.getIsr());
+            isr.remove(Integer.valueOf(deadNode));
+            LeaderAndIsr updated;
+            if(state.getLeader() == deadNode){
+                updated = isr.isEmpty() ? state.withLeader(-1, List.of(deadNode)) : state.withLeader(isr.get(0), isr);
+            } else {
+                updated = state.withIsr(isr);
+            }
+            entry.setValue(updated);
+            updates.add(updated);
+        }
+        return updates;
+    }
+
+    // Outside the controller lock, since nodes may call back into alterIsr while applying.
+    private void deliver(List<LeaderAndIsr> updates){
+        for(LeaderAndIsr state: updates){
+            for(int replica: state.getReplicas()){
+                QueueSystem node;
+                synchronized (this) {
+                    ClusterNode clusterNode = nodes.get(replica);
+                    node = clusterNode != null && clusterNode.alive ? clusterNode.queueSystem : null;
+                }
+                if(node != null){
+                    node.applyLeaderAndIsr(state);
+                }
+            }
+        }
+    }
+
+    public void close(){
+        failureDetector.shutdownNow();
+    }
+}
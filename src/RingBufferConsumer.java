@@ -0,0 +1,46 @@
+// Independent cursor over a RingBufferTopic, meant to run on its own thread. It processes every
+// slot published up to the cursor in one go and then releases them to producers by advancing its sequence.
+public class RingBufferConsumer implements Runnable{
+    private final RingBufferTopic ringBuffer;
+    private final RecordHandler handler;
+    private final Sequence sequence;
+    private final RecordView view;
+    private volatile boolean running;
+
+    RingBufferConsumer(RingBufferTopic ringBuffer, RecordHandler handler, Sequence sequence) {
+        this.ringBuffer = ringBuffer;
+        this.handler = handler;
+        this.sequence = sequence;
+        this.view = new RecordView();
+        this.running = true;
+    }
+
+    @Override
+    public void run() {
+        WaitStrategy waitStrategy = ringBuffer.getWaitStrategy();
+        long next = sequence.get() + 1;
+        int attempt = 0;
+        while(running && !Thread.currentThread().isInterrupted()){
+            long highest = ringBuffer.highestPublished(next);
+            if(highest < next){
+                waitStrategy.idle(attempt++);
+                continue;
+            }
+            attempt = 0;
+            for(long current = next; current <= highest; current++){
+                handler.onRecord(ringBuffer.view(view, current));
+            }
+            sequence.set(highest);
+            next = highest + 1;
+        }
+    }
+
+    public void close(){
+        running = false;
+        ringBuffer.unsubscribe(sequence);
+    }
+
+    Sequence getSequence() {
+        return sequence;
+    }
+}
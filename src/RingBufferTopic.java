@@ -0,0 +1,154 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+// Alternate topic for latency-critical traffic: a preallocated power-of-two ring of fixed-size
+// slots in one direct buffer. Producers claim sequences with a CAS on the cursor and mark each
+// slot available once written; consumers follow with their own cursors and producers never
+// lap the slowest of them. Records use RecordFormat, so consumers get the usual RecordView.
+public class RingBufferTopic{
+    private static final VarHandle AVAILABLE = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final String name;
+    private final int capacity;
+    private final int mask;
+    private final int indexShift;
+    private final int slotBytes;
+    private final ByteBuffer slots;
+    private final int[] available;
+    private final Sequence cursor;
+    private final Sequence gatingCache;
+    private final WaitStrategy waitStrategy;
+    private final ThreadLocal<SlotWriter> writers;
+    private volatile Sequence[] consumerSequences;
+
+    // Per-producer-thread scratch state, so concurrent writers never share a CRC or buffer view.
+    private static class SlotWriter{
+        private final ByteBuffer crcView;
+        private final CRC32C crc;
+
+        SlotWriter(ByteBuffer slots) {
+            this.crcView = slots.duplicate();
+            this.crc = new CRC32C();
+        }
+    }
+
+    public RingBufferTopic(String name, int capacity, int slotBytes, WaitStrategy waitStrategy) {
+        if(capacity <= 0 || Integer.bitCount(capacity) != 1){
+            throw new IllegalArgumentException("Ring buffer capacity must be a power of two");
+        }
+        if(slotBytes < RecordFormat.FIXED_BYTES){
+            throw new IllegalArgumentException("Slots must hold at least an empty record");
+        }
+        this.name = name;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.indexShift = Integer.numberOfTrailingZeros(capacity);
+        this.slotBytes = slotBytes;
+        this.slots = ByteBuffer.allocateDirect(Math.multiplyExact(capacity, slotBytes));
+        this.available = new int[capacity];
+        Arrays.fill(available, -1);
+        this.cursor = new Sequence(-1);
+        this.gatingCache = new Sequence(-1);
+        this.waitStrategy = waitStrategy;
+        this.writers = ThreadLocal.withInitial(() -> new SlotWriter(slots));
+        this.consumerSequences = new Sequence[0];
+    }
+
+    // Safe for any number of producer threads. Blocks (per the wait strategy) while the ring is full.
+    public long publish(ByteBuffer key, ByteBuffer value, ByteBuffer headers){
+        if(RecordFormat.sizeOf(key, value, headers) > slotBytes){
+            throw new IllegalArgumentException("Record does not fit in a " + slotBytes + " byte slot");
+        }
+        long sequence = claim();
+        SlotWriter writer = writers.get();
+        RecordFormat.write(slots, slotPosition(sequence), sequence, System.currentTimeMillis(),
+                key, value, headers, writer.crcView, writer.crc);
+        AVAILABLE.setRelease(available, (int) sequence & mask, (int) (sequence >>> indexShift));
+        return sequence;
+    }
+
+    private long claim(){
+        int attempt = 0;
+        while(true){
+            long current = cursor.get();
+            long next = current + 1;
+            long wrapPoint = next - capacity;
+            if(wrapPoint > gatingCache.get()){
+                long minimum = minimumConsumerSequence(current);
+                if(wrapPoint > minimum){
+                    waitStrategy.idle(attempt++);
+                    continue;
+                }
+                gatingCache.set(minimum);
+            }
+            if(cursor.compareAndSet(current, next)){
+                return next;
+            }
+        }
+    }
+
+    private long minimumConsumerSequence(long defaultValue){
+        long minimum = defaultValue;
+        for(Sequence sequence: consumerSequences){
+            minimum = Math.min(minimum, sequence.get());
+        }
+        return minimum;
+    }
+
+    // Highest sequence in [lowest, cursor] such that everything up to it has been written.
+    long highestPublished(long lowest){
+        long highest = cursor.get();
+        for(long sequence = lowest; sequence <= highest; sequence++){
+            int lap = (int) AVAILABLE.getAcquire(available, (int) sequence & mask);
+            if(lap != (int) (sequence >>> indexShift)){
+                return sequence - 1;
+            }
+        }
+        return highest;
+    }
+
+    RecordView view(RecordView view, long sequence){
+        return view.wrap(slots, slotPosition(sequence));
+    }
+
+    private int slotPosition(long sequence){
+        return ((int) sequence & mask) * slotBytes;
+    }
+
+    // New consumers start after the last claimed sequence and only see records published from now on.
+    // As in the Disruptor, the sequence gates producers before it is moved up to the cursor again:
+    // a producer that read the old gating set may have claimed past the first value meanwhile, and
+    // a consumer starting there would read slots already lapped.
+    public RingBufferConsumer subscribe(RecordHandler handler){
+        RingBufferConsumer consumer = new RingBufferConsumer(this, handler, new Sequence(cursor.get()));
+        synchronized (this) {
+            Sequence[] current = consumerSequences;
+            Sequence[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = consumer.getSequence();
+            consumerSequences = updated;
+            consumer.getSequence().set(cursor.get());
+        }
+        return consumer;
+    }
+
+    synchronized void unsubscribe(Sequence sequence){
+        consumerSequences = Arrays.stream(consumerSequences)
+                .filter(existing -> existing != sequence)
+                .toArray(Sequence[]::new);
+    }
+
+    WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,610 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+// Partition log made of fixed-size segments keyed by their base offset. Segments are files under
+// dir for durable topics and pooled direct buffers otherwise. Appends go sequentially to the active
+// segment; for files, fsync is batched by message count and time.
+public class SegmentedPartitionLog implements PartitionLog{
+    private static final long BLOCK_RECHECK_MS = 5;
+
+    private final Path dir;
+    private final BufferPool pool;
+    private final TopicConfig config;
+    private final TreeMap<Long, LogSegment> segments;
+    private final LongSupplier consumedOffset;
+    private final int maxSegments;
+    private LogSegment activeSegment;
+    private long nextOffset;
+    // Appends are stamped with at least this, so timestamps stay ordered if the clock steps back
+    private long maxTimestamp;
+    private int unflushedMessages;
+    private long lastFlushMs;
+
+    // consumedOffset reports the lowest offset any consumer group still needs; segments wholly
+    // below it may be freed when a BLOCK topic is full.
+    public SegmentedPartitionLog(Path dir, BufferPool pool, TopicConfig config, LongSupplier consumedOffset) {
+        this.dir = dir;
+        // The compactor reads closed segments without the log lock, so their buffers must not be
+        // recycled into new segments while it might still be looking at them.
+        this.pool = config.getCleanupPolicy() == CleanupPolicy.COMPACT ? null : pool;
+        this.config = config;
+        this.consumedOffset = consumedOffset;
+        this.maxSegments = config.getMaxBytes() < 0 ? Integer.MAX_VALUE
+                : (int) Math.max(2, config.getMaxBytes() / config.getPartitions() / config.getSegmentBytes());
+        this.segments = new TreeMap<>();
+        if(dir != null){
+            loadSegments();
+        }
+        if(segments.isEmpty()){
+            segments.put(0L, newSegment(0));
+        }
+        this.activeSegment = segments.lastEntry().getValue();
+        this.nextOffset = activeSegment.getNextOffset();
+        this.maxTimestamp = -1;
+        for(LogSegment segment: segments.values()){
+            maxTimestamp = Math.max(maxTimestamp, segment.getMaxTimestamp());
+        }
+        this.lastFlushMs = System.currentTimeMillis();
+    }
+
+    // Closed segments are mapped at the size they were written with, since cleaned ones are smaller
+    // than segmentBytes; the last becomes the active segment and gets the full size.
+    private void loadSegments(){
+        List<Long> baseOffsets;
+        try {
+            Files.createDirectories(dir);
+            try (Stream<Path> files = Files.list(dir)) {
+                baseOffsets = files.map(file -> file.getFileName().toString())
+                        .filter(name -> name.endsWith(".log"))
+                        .map(name -> Long.parseLong(name.substring(0, name.length() - 4)))
+                        .sorted()
+                        .toList();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        long end = -1;
+        for(int i = 0; i < baseOffsets.size(); i++){
+            long baseOffset = baseOffsets.get(i);
+            LogSegment segment = i == baseOffsets.size() - 1 ? newSegment(baseOffset)
+                    : LogSegment.openClosedFile(dir, baseOffset, config);
+            if(baseOffset < end){
+                // Merged into the segment before by a cleaner that crashed before deleting it
+                segment.delete();
+                continue;
+            }
+            segments.put(baseOffset, segment);
+            end = segment.getNextOffset();
+        }
+    }
+
+    private LogSegment newSegment(long baseOffset){
+        return dir != null ? LogSegment.openFile(dir, baseOffset, config) : LogSegment.allocate(pool, baseOffset, config);
+    }
+
+    @Override
+    public synchronized long append(ByteBuffer key, ByteBuffer value, ByteBuffer headers){
+        long offset = appendRecord(key, value, headers);
+        maybeFlush();
+        return offset;
+    }
+
+    @Override
+    public long append(Message message){
+        return append(Message.utf8(message.getKey()), Message.utf8(message.getContent()),
+                RecordHeaders.forProducer(message.getProducerId()));
+    }
+
+    // Room for the whole batch is made before its first offset is taken: a BLOCK wait releases the
+    // lock, and another producer appending mid-batch would break the offsets reported for it.
+    @Override
+    public synchronized long appendBatch(List<Message> messages){
+        List<ByteBuffer[]> records = new ArrayList<>(messages.size());
+        int[] sizes = new int[messages.size()];
+        for(int i = 0; i < sizes.length; i++){
+            Message message = messages.get(i);
+            ByteBuffer[] record = {Message.utf8(message.getKey()), Message.utf8(message.getContent()),
+                    RecordHeaders.forProducer(message.getProducerId())};
+            records.add(record);
+            sizes[i] = RecordFormat.sizeOf(record[0], record[1], record[2]);
+        }
+        makeRoomForBatch(sizes);
+        long baseOffset = nextOffset;
+        for(ByteBuffer[] record: records){
+            appendRecord(record[0], record[1], record[2]);
+        }
+        maybeFlush();
+        return baseOffset;
+    }
+
+    // The batch is stored as it arrived; it takes recordCount offsets and the wrapper gets the last.
+    @Override
+    public synchronized long appendCompressedBatch(CompressionCodec codec, int recordCount, ByteBuffer batch){
+        makeRoomFor(RecordFormat.sizeOf(null, batch, RecordHeaders.EMPTY));
+        long baseOffset = nextOffset;
+        nextOffset += recordCount;
+        maxTimestamp = Math.max(maxTimestamp, System.currentTimeMillis());
+        activeSegment.append(nextOffset - 1, maxTimestamp, (byte) codec.id(), null, batch, RecordHeaders.EMPTY);
+        unflushedMessages += recordCount;
+        maybeFlush();
+        return baseOffset;
+    }
+
+    private long appendRecord(ByteBuffer key, ByteBuffer value, ByteBuffer headers){
+        makeRoomFor(RecordFormat.sizeOf(key, value, headers));
+        long offset = nextOffset++;
+        maxTimestamp = Math.max(maxTimestamp, System.currentTimeMillis());
+        activeSegment.append(offset, maxTimestamp, key, value, headers);
+        unflushedMessages++;
+        return offset;
+    }
+
+    // Frees segments until every roll the batch will need can happen without freeing another, so
+    // the appends that follow never wait.
+    private void makeRoomForBatch(int[] sizes){
+        while(true){
+            int rolls = rollsNeeded(sizes);
+            if(rolls >= maxSegments){
+                throw new IllegalArgumentException("Batch needs " + (rolls + 1) + " segments but the partition holds "
+                        + maxSegments);
+            }
+            if(segments.size() + rolls <= maxSegments){
+                return;
+            }
+            freeSegment();
+        }
+    }
+
+    private int rollsNeeded(int[] sizes){
+        int rolls = 0;
+        int room = activeSegment.getCapacity() - activeSegment.getSizeInBytes();
+        for(int size: sizes){
+            if(size > config.getSegmentBytes()){
+                throw new IllegalArgumentException("Record of " + size + " bytes does not fit in a segment");
+            }
+            if(size > room){
+                rolls++;
+                room = config.getSegmentBytes();
+            }
+            room -= size;
+        }
+        return rolls;
+    }
+
+    private void makeRoomFor(int recordBytes){
+        if(recordBytes > config.getSegmentBytes()){
+            throw new IllegalArgumentException("Record of " + recordBytes + " bytes does not fit in a segment");
+        }
+        while(!activeSegment.hasRoomFor(recordBytes)){
+            if(segments.size() < maxSegments || freeSegment()){
+                roll();
+            }
+        }
+    }
+
+    // The leader's offsets are kept, so a compacted leader log leaves the same gaps here.
+    @Override
+    public synchronized void appendReplica(RecordView record){
+        if(record.offset() < nextOffset){
+            throw new IllegalStateException("Replicated offset " + record.offset() + " is below the log end " + nextOffset);
+        }
+        makeRoomFor(record.sizeInBytes());
+        activeSegment.appendRaw(record);
+        nextOffset = record.offset() + 1;
+        maxTimestamp = Math.max(maxTimestamp, record.timestamp());
+        unflushedMessages++;
+        maybeFlush();
+    }
+
+    private void maybeFlush(){
+        if(unflushedMessages >= config.getFlushIntervalMessages()){
+            flush();
+        }
+    }
+
+    // Makes room for one more segment according to the overflow policy. Returns false when the
+    // caller should re-check, since another producer may have rolled while this one was waiting.
+    private boolean freeSegment(){
+        switch (config.getOverflowPolicy()) {
+            case FAIL_FAST:
+                throw new IllegalStateException("Partition is full: " + maxSegments + " segments in use");
+            case DROP_OLDEST:
+                deleteOldestSegment();
+                return true;
+            default:
+                return awaitConsumedSegment();
+        }
+    }
+
+    private boolean awaitConsumedSegment(){
+        long deadline = System.currentTimeMillis() + config.getMaxBlockMs();
+        LogSegment waitingOn = activeSegment;
+        while(true){
+            Map.Entry<Long, LogSegment> oldest = segments.firstEntry();
+            if(oldest.getValue() != activeSegment && segments.higherKey(oldest.getKey()) <= consumedOffset.getAsLong()){
+                deleteOldestSegment();
+                return true;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0){
+                throw new IllegalStateException("Partition stayed full for " + config.getMaxBlockMs() + " ms");
+            }
+            try {
+                // Releases the partition lock so consumers can keep reading while we wait
+                wait(Math.min(remaining, BLOCK_RECHECK_MS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for space", e);
+            }
+            if(activeSegment != waitingOn || segments.size() < maxSegments){
+                return false;
+            }
+        }
+    }
+
+    private void deleteOldestSegment(){
+        segments.pollFirstEntry().getValue().delete();
+    }
+
+    private void roll(){
+        activeSegment.flush();
+        activeSegment = newSegment(nextOffset);
+        segments.put(nextOffset, activeSegment);
+        enforceRetention();
+    }
+
+    // Only the record positions are found under the lock; handlers run after it is released, so a
+    // slow consumer never holds up producers. Retention can drop a segment meanwhile, but the
+    // slice keeps its bytes readable until it is released.
+    @Override
+    public int read(long offset, long endOffset, int maxRecords, RecordView view, RecordHandler handler){
+        BufferLogSlice first = BufferLogSlice.EMPTY;
+        List<BufferLogSlice> more = null;
+        int read = 0;
+        synchronized (this) {
+            Map.Entry<Long, LogSegment> entry = segments.floorEntry(Math.max(offset, getLogStartOffset()));
+            while(entry != null && read < maxRecords && entry.getKey() < endOffset){
+                BufferLogSlice slice = entry.getValue().sliceRecords(offset, endOffset, maxRecords - read);
+                if(slice.getRecordCount() > 0){
+                    if(read == 0){
+                        first = slice;
+                    } else {
+                        if(more == null){
+                            more = new ArrayList<>();
+                        }
+                        more.add(slice);
+                    }
+                    read += slice.getRecordCount();
+                }
+                entry = segments.higherEntry(entry.getKey());
+            }
+        }
+        try {
+            first.read(view, handler);
+            if(more != null){
+                for(BufferLogSlice slice: more){
+                    slice.read(view, handler);
+                }
+            }
+        } finally {
+            first.release();
+            if(more != null){
+                for(BufferLogSlice slice: more){
+                    slice.release();
+                }
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public List<Message> read(long offset, int maxMessages){
+        List<Message> out = new ArrayList<>();
+        read(offset, Long.MAX_VALUE, maxMessages, new RecordView(), new BatchDecompressor().collect(offset, maxMessages, out));
+        return out;
+    }
+
+    @Override
+    public synchronized long getLogStartOffset(){
+        return segments.firstKey();
+    }
+
+    // Only locates the byte range; the caller transfers it outside the partition lock.
+    @Override
+    public synchronized LogSlice slice(long offset, long endOffset, int maxBytes){
+        Map.Entry<Long, LogSegment> entry = segments.floorEntry(Math.max(offset, getLogStartOffset()));
+        while(entry != null && offset < Math.min(nextOffset, endOffset)){
+            LogSlice slice = entry.getValue().slice(offset, endOffset, maxBytes);
+            if(slice.sizeInBytes() > 0){
+                return slice;
+            }
+            entry = segments.higherEntry(entry.getKey());
+        }
+        return BufferLogSlice.EMPTY;
+    }
+
+    @Override
+    public synchronized long getLogEndOffset(){
+        return nextOffset;
+    }
+
+    // Segments whose newest record is older than timestamp are skipped on an O(1) check, so only the
+    // segment holding the answer is searched through its index.
+    @Override
+    public synchronized long offsetForTimestamp(long timestamp){
+        for(LogSegment segment: segments.values()){
+            if(segment.getMaxTimestamp() >= timestamp){
+                long offset = segment.offsetForTimestamp(timestamp);
+                if(offset >= 0){
+                    return offset;
+                }
+            }
+        }
+        return nextOffset;
+    }
+
+    // Whole segments past the offset are deleted and the one containing it is cut short, which then
+    // becomes the active segment.
+    @Override
+    public synchronized void truncateTo(long offset){
+        if(offset >= nextOffset){
+            return;
+        }
+        if(offset <= segments.firstKey()){
+            truncateFullyAndStartAt(offset);
+            return;
+        }
+        while(segments.lastKey() >= offset){
+            segments.pollLastEntry().getValue().delete();
+        }
+        activeSegment = segments.lastEntry().getValue();
+        activeSegment.truncateTo(offset);
+        nextOffset = offset;
+        flush();
+    }
+
+    @Override
+    public synchronized void truncateFullyAndStartAt(long offset){
+        while(!segments.isEmpty()){
+            segments.pollFirstEntry().getValue().delete();
+        }
+        activeSegment = newSegment(offset);
+        segments.put(offset, activeSegment);
+        nextOffset = offset;
+    }
+
+    @Override
+    public synchronized void maintain(){
+        if(unflushedMessages > 0 && System.currentTimeMillis() - lastFlushMs >= config.getFlushIntervalMs()){
+            flush();
+        }
+        enforceRetention();
+    }
+
+    private void flush(){
+        activeSegment.flush();
+        unflushedMessages = 0;
+        lastFlushMs = System.currentTimeMillis();
+    }
+
+    // Drops whole segments from the head of the log; the active segment is never deleted.
+    private void enforceRetention(){
+        long totalBytes = 0;
+        for(LogSegment segment: segments.values()){
+            totalBytes += segment.getSizeInBytes();
+        }
+        long now = System.currentTimeMillis();
+        while(segments.size() > 1){
+            LogSegment oldest = segments.firstEntry().getValue();
+            boolean overSize = config.getRetentionBytes() >= 0 && totalBytes > config.getRetentionBytes();
+            boolean expired = config.getRetentionMs() >= 0 && now - oldest.getLastAppendMs() > config.getRetentionMs();
+            if(!overSize && !expired){
+                break;
+            }
+            segments.pollFirstEntry();
+            totalBytes -= oldest.getSizeInBytes();
+            oldest.delete();
+        }
+    }
+
+    // Builds a key -> latest offset map over the closed segments, then works out how many bytes each
+    // keeps once cleaned and rewrites runs of neighbours whose kept records fit in one segment, so
+    // a compacted log does not stay spread over many mostly empty segments. A run is rewritten when
+    // it holds superseded records or expired tombstones, or when it merges more than one segment.
+    // Scanning and copying happen outside the log lock (closed segments never change); only
+    // swapping the cleaned segment in takes it.
+    @Override
+    public void compact(){
+        if(config.getCleanupPolicy() != CleanupPolicy.COMPACT){
+            return;
+        }
+        List<LogSegment> closed;
+        synchronized (this) {
+            closed = new ArrayList<>(segments.headMap(activeSegment.getBaseOffset()).values());
+        }
+        if(closed.isEmpty()){
+            return;
+        }
+        Map<ByteBuffer, Long> latestOffsets = new HashMap<>();
+        RecordView view = new RecordView();
+        BatchDecompressor decompressor = new BatchDecompressor();
+        RecordHandler latest = record -> {
+            ByteBuffer key = record.copyKey();
+            if(key != null){
+                latestOffsets.put(key, record.offset());
+            }
+        };
+        for(LogSegment segment: closed){
+            segment.read(segment.getBaseOffset(), Long.MAX_VALUE, Integer.MAX_VALUE, view,
+                    record -> decompressor.forEach(record, 0, latest));
+        }
+        long tombstoneCutoff = System.currentTimeMillis() - config.getTombstoneRetentionMs();
+        List<LogSegment> run = new ArrayList<>();
+        // [bytes kept, records dropped] for the run
+        int[] runStats = new int[2];
+        for(LogSegment segment: closed){
+            int[] stats = new int[2];
+            clean(segment, null, stats, latestOffsets, tombstoneCutoff, view, decompressor);
+            // Offsets within a segment are stored relative to its base as ints
+            boolean fits = !run.isEmpty() && (long) runStats[0] + stats[0] <= config.getSegmentBytes()
+                    && segment.getNextOffset() - run.get(0).getBaseOffset() <= Integer.MAX_VALUE;
+            if(!run.isEmpty() && !fits){
+                cleanRun(run, runStats, latestOffsets, tombstoneCutoff, view, decompressor);
+                run.clear();
+                runStats[0] = 0;
+                runStats[1] = 0;
+            }
+            run.add(segment);
+            runStats[0] += stats[0];
+            runStats[1] += stats[1];
+        }
+        cleanRun(run, runStats, latestOffsets, tombstoneCutoff, view, decompressor);
+    }
+
+    private static boolean isObsolete(RecordView record, Map<ByteBuffer, Long> latestOffsets, long tombstoneCutoff){
+        ByteBuffer key = record.copyKey();
+        if(key == null){
+            return false;
+        }
+        return latestOffsets.get(key) != record.offset() || (record.isTombstone() && record.timestamp() < tombstoneCutoff);
+    }
+
+    private void cleanRun(List<LogSegment> run, int[] runStats, Map<ByteBuffer, Long> latestOffsets, long tombstoneCutoff,
+                          RecordView view, BatchDecompressor decompressor){
+        if(run.size() == 1 && runStats[1] == 0){
+            return;
+        }
+        LogSegment cleaned = null;
+        if(runStats[0] > 0){
+            long baseOffset = run.get(0).getBaseOffset();
+            if(dir != null){
+                Path cleaningDir = dir.resolve("cleaning");
+                try {
+                    Files.createDirectories(cleaningDir);
+                    Files.deleteIfExists(cleaningDir.resolve(run.get(0).getLogFile().getFileName()));
+                    Files.deleteIfExists(cleaningDir.resolve(run.get(0).getIndexFile().getFileName()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                cleaned = LogSegment.openFile(cleaningDir, baseOffset, config, runStats[0]);
+            } else {
+                cleaned = LogSegment.allocate(baseOffset, config, runStats[0]);
+            }
+            for(LogSegment segment: run){
+                clean(segment, cleaned, new int[2], latestOffsets, tombstoneCutoff, view, decompressor);
+            }
+            cleaned.flush();
+        }
+        swapIn(run, cleaned);
+    }
+
+    // Copies the records of segment that survive cleaning to cleaned, or with cleaned null only
+    // counts them, adding [bytes kept, records dropped] to stats. A compressed batch is kept whole
+    // while all of its records survive; once some do not, the rest are written out uncompressed,
+    // since the batch format has no room for gaps.
+    private static void clean(LogSegment segment, LogSegment cleaned, int[] stats, Map<ByteBuffer, Long> latestOffsets,
+                              long tombstoneCutoff, RecordView view, BatchDecompressor decompressor){
+        int[] batch = new int[2];
+        RecordHandler countLive = inner -> {
+            if(!isObsolete(inner, latestOffsets, tombstoneCutoff)){
+                batch[0]++;
+                batch[1] += inner.sizeInBytes();
+            }
+        };
+        RecordHandler copyLive = inner -> {
+            if(!isObsolete(inner, latestOffsets, tombstoneCutoff)){
+                cleaned.appendRewritten(inner);
+            }
+        };
+        segment.read(segment.getBaseOffset(), Long.MAX_VALUE, Integer.MAX_VALUE, view, record -> {
+            if(!record.isCompressedBatch()){
+                if(isObsolete(record, latestOffsets, tombstoneCutoff)){
+                    stats[1]++;
+                } else {
+                    stats[0] += record.sizeInBytes();
+                    if(cleaned != null){
+                        cleaned.appendRaw(record);
+                    }
+                }
+                return;
+            }
+            batch[0] = 0;
+            batch[1] = 0;
+            decompressor.forEach(record, 0, countLive);
+            int recordCount = CompressedBatch.recordCount(record);
+            stats[1] += recordCount - batch[0];
+            if(batch[0] == recordCount){
+                stats[0] += record.sizeInBytes();
+                if(cleaned != null){
+                    cleaned.appendRaw(record);
+                }
+            } else if(batch[0] > 0){
+                stats[0] += batch[1];
+                if(cleaned != null){
+                    decompressor.forEach(record, 0, copyLive);
+                }
+            }
+        });
+    }
+
+    // Offsets are preserved, so readers just see gaps. The cleaned segment takes the place of the
+    // first segment of the run. For files the old index is removed before the cleaned log atomically
+    // replaces the old one, and the rest of the run is deleted after that; recovery rebuilds an index
+    // if we crash in between, and loadSegments drops run segments the cleaned one already covers.
+    private synchronized void swapIn(List<LogSegment> run, LogSegment cleaned){
+        for(LogSegment segment: run){
+            if(segments.get(segment.getBaseOffset()) != segment){
+                // Retention removed the segment while we were cleaning it
+                if(cleaned != null){
+                    cleaned.delete();
+                }
+                return;
+            }
+        }
+        for(LogSegment segment: run){
+            segments.remove(segment.getBaseOffset());
+        }
+        LogSegment first = run.get(0);
+        if(cleaned == null || dir == null){
+            if(cleaned != null){
+                segments.put(first.getBaseOffset(), cleaned);
+            }
+            for(LogSegment segment: run){
+                segment.delete();
+            }
+            return;
+        }
+        first.close();
+        cleaned.close();
+        try {
+            Files.deleteIfExists(first.getIndexFile());
+            Files.move(cleaned.getLogFile(), first.getLogFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(cleaned.getIndexFile(), first.getIndexFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for(LogSegment segment: run.subList(1, run.size())){
+            segment.delete();
+        }
+        segments.put(first.getBaseOffset(), LogSegment.openFile(dir, first.getBaseOffset(), config, cleaned.getCapacity()));
+    }
+
+    @Override
+    public synchronized void close(){
+        flush();
+        for(LogSegment segment: segments.values()){
+            segment.close();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+public class Sequence extends SequenceValue{
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(SequenceValue.class, "value", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    protected long p9, p10, p11, p12, p13, p14, p15;
+
+    public Sequence(long initialValue) {
+        this.value = initialValue;
+    }
+
+    public long get(){
+        return (long) VALUE.getAcquire(this);
+    }
+
+    public void set(long newValue){
+        VALUE.setRelease(this, newValue);
+    }
+
+    public boolean compareAndSet(long expected, long newValue){
+        return VALUE.compareAndSet(this, expected, newValue);
+    }
+}
@@ -0,0 +1,5 @@
+// Padding on both sides keeps each sequence on its own cache line, so producers advancing the
+// cursor do not invalidate the line a consumer is spinning on. Superclasses fix the field layout.
+public class SequenceLeftPadding{
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
@@ -0,0 +1,3 @@
+public class SequenceValue extends SequenceLeftPadding{
+    protected volatile long value;
+}
@@ -0,0 +1,5 @@
+// How RPCServer runs connections and calls.
+public enum ServerExecutionMode {
+    EVENT_LOOP,                     // non-blocking sockets on a few selector loops; calls run on a bounded worker pool
+    VIRTUAL_THREAD_PER_CONNECTION   // blocking reads, calls and writes on one virtual thread per connection
+}
@@ -0,0 +1,90 @@
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+// Method ids of one service interface, derived from the interface itself so the client stub and the
+// server's registry agree without negotiating: methods are numbered in order of name, then parameter
+// count, with the service id in the bits above (id = serviceId << 8 | index). Both sides must be
+// built from the same version of the interface. The wire only carries ints, so every method has to
+// take ints and return an int.
+public class ServiceDescriptor<T> {
+    static final int MAX_SERVICE_ID = 255;
+    static final int MAX_METHODS = 256;
+
+    private final Class<T> serviceInterface;
+    private final int serviceId;
+    private final Method[] methods;
+    private final Map<Method, Integer> methodIds;
+
+    private ServiceDescriptor(int serviceId, Class<T> serviceInterface, Method[] methods) {
+        this.serviceInterface = serviceInterface;
+        this.serviceId = serviceId;
+        this.methods = methods;
+        this.methodIds = new HashMap<>();
+        for (int i = 0; i < methods.length; i++) {
+            methodIds.put(methods[i], serviceId << 8 | i);
+        }
+    }
+
+    public static <T> ServiceDescriptor<T> of(int serviceId, Class<T> serviceInterface) {
+        if (!serviceInterface.isInterface()) {
+            throw new IllegalArgumentException(serviceInterface.getName() + " is not an interface");
+        }
+        if (serviceId < 0 || serviceId > MAX_SERVICE_ID) {
+            throw new IllegalArgumentException("Service id must be between 0 and " + MAX_SERVICE_ID);
+        }
+        Method[] methods = Arrays.stream(serviceInterface.getMethods())
+                .filter(method -> !Modifier.isStatic(method.getModifiers()))
+                .sorted(Comparator.comparing(Method::getName).thenComparingInt(Method::getParameterCount))
+                .toArray(Method[]::new);
+        if (methods.length > MAX_METHODS) {
+            throw new IllegalArgumentException(serviceInterface.getName() + " has more than " + MAX_METHODS + " methods");
+        }
+        for (Method method : methods) {
+            boolean intsOnly = method.getReturnType() == int.class;
+            for (Class<?> parameterType : method.getParameterTypes()) {
+                intsOnly &= parameterType == int.class;
+            }
+            if (!intsOnly) {
+                throw new IllegalArgumentException(method + " must take ints and return an int");
+            }
+        }
+        return new ServiceDescriptor<>(serviceId, serviceInterface, methods);
+    }
+
+    public Class<T> getServiceInterface() { return serviceInterface; }
+    public int getServiceId() { return serviceId; }
+    public int getMethodCount() { return methods.length; }
+    public Method getMethod(int index) { return methods[index]; }
+
+    public boolean isIdempotent(int index) {
+        return methods[index].isAnnotationPresent(Idempotent.class);
+    }
+
+    // -1 for methods that are not part of the service, such as Object's methods on a stub
+    public int methodId(Method method) {
+        Integer id = methodIds.get(method);
+        return id == null ? -1 : id;
+    }
+
+    // For callers addressing methods by id, e.g. RPCClient.callAsync; resolve once, not per call
+    public int methodId(String methodName, int parameterCount) {
+        for (int i = 0; i < methods.length; i++) {
+            if (methods[i].getName().equals(methodName) && methods[i].getParameterCount() == parameterCount) {
+                return serviceId << 8 | i;
+            }
+        }
+        throw new IllegalArgumentException(serviceInterface.getSimpleName() + " has no method " + methodName + " with " + parameterCount + " parameters");
+    }
+
+    static int serviceIdOf(int methodId) {
+        return methodId >>> 8;
+    }
+
+    static int methodIndexOf(int methodId) {
+        return methodId & 0xFF;
+    }
+}
@@ -0,0 +1,165 @@
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+
+// Server side of ServiceDescriptor. An invoker per method is generated once, at registration, so
+// dispatching a request is two array lookups and an interface call: no string matching and no
+// reflection per call. For up to three parameters the invoker is a LambdaMetafactory class that
+// calls the implementation directly, which the JIT treats like a hand-written call; longer methods
+// go through a MethodHandle spread over the params array, which costs a few nanoseconds more.
+// Adding a method to a registered interface needs no change to the server.
+public class ServiceRegistry {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final Class<?>[] DIRECT_ARITIES = {Arity0.class, Arity1.class, Arity2.class, Arity3.class};
+
+    // Indexed by service id, then method index. Replaced as a whole on register, so lookups need no lock.
+    private volatile ServiceMethod[][] services = new ServiceMethod[ServiceDescriptor.MAX_SERVICE_ID + 1][];
+
+    public <T> ServiceRegistry register(Class<T> serviceInterface, T implementation) {
+        return register(0, serviceInterface, implementation);
+    }
+
+    public synchronized <T> ServiceRegistry register(int serviceId, Class<T> serviceInterface, T implementation) {
+        ServiceDescriptor<T> descriptor = ServiceDescriptor.of(serviceId, serviceInterface);
+        if (services[serviceId] != null) {
+            throw new IllegalStateException("Service id " + serviceId + " is already registered");
+        }
+        ServiceMethod[] methods = new ServiceMethod[descriptor.getMethodCount()];
+        for (int i = 0; i < methods.length; i++) {
+            methods[i] = new ServiceMethod(descriptor.getMethod(i), implementation);
+        }
+        ServiceMethod[][] updated = services.clone();
+        updated[serviceId] = methods;
+        services = updated;
+        return this;
+    }
+
+    public boolean isRegistered(int serviceId) {
+        return services[serviceId] != null;
+    }
+
+    // Null if no registered service has this method id
+    public ServiceMethod lookup(int methodId) {
+        int serviceId = ServiceDescriptor.serviceIdOf(methodId);
+        if (serviceId > ServiceDescriptor.MAX_SERVICE_ID) {
+            return null;
+        }
+        ServiceMethod[] methods = services[serviceId];
+        int index = ServiceDescriptor.methodIndexOf(methodId);
+        return methods == null || index >= methods.length ? null : methods[index];
+    }
+
+    interface Arity0 { int invoke(); }
+    interface Arity1 { int invoke(int a); }
+    interface Arity2 { int invoke(int a, int b); }
+    interface Arity3 { int invoke(int a, int b, int c); }
+
+    static final class ServiceMethod {
+        private final String name;
+        private final int parameterCount;
+        private final boolean idempotent;
+        // An ArityN bound to the implementation, or for longer methods a (int[])int MethodHandle
+        private final Object invoker;
+
+        ServiceMethod(Method method, Object implementation) {
+            this.name = method.getDeclaringClass().getSimpleName() + "." + method.getName();
+            this.parameterCount = method.getParameterCount();
+            this.idempotent = method.isAnnotationPresent(Idempotent.class);
+            try {
+                MethodHandle handle = LOOKUP.unreflect(method);
+                if (parameterCount < DIRECT_ARITIES.length) {
+                    MethodType signature = handle.type().dropParameterTypes(0, 1);
+                    this.invoker = LambdaMetafactory.metafactory(LOOKUP, "invoke",
+                            MethodType.methodType(DIRECT_ARITIES[parameterCount], method.getDeclaringClass()),
+                            signature, handle, signature).getTarget().invoke(implementation);
+                } else {
+                    this.invoker = handle.bindTo(implementation).asSpreader(int[].class, parameterCount);
+                }
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalArgumentException("Cannot generate an invoker for " + method, e);
+            }
+        }
+
+        // e.g. CalculatorService.add
+        public String getName() { return name; }
+        public int getParameterCount() { return parameterCount; }
+        public boolean isIdempotent() { return idempotent; }
+
+        // Evaluates rows from..results.length-1 of the columns (one per parameter) into results. Stops
+        // at the first row whose call throws and returns its index, or returns results.length once every
+        // row is done. The loops allocate nothing, and the try is around the loop, not each row.
+        public int invokeBatch(int[][] columns, int[] results, int from) {
+            int rows = results.length;
+            int row = from;
+            try {
+                switch (parameterCount) {
+                    case 0:
+                        Arity0 arity0 = (Arity0) invoker;
+                        for (; row < rows; row++) {
+                            results[row] = arity0.invoke();
+                        }
+                        break;
+                    case 1:
+                        Arity1 arity1 = (Arity1) invoker;
+                        int[] only = columns[0];
+                        for (; row < rows; row++) {
+                            results[row] = arity1.invoke(only[row]);
+                        }
+                        break;
+                    case 2:
+                        Arity2 arity2 = (Arity2) invoker;
+                        int[] first = columns[0];
+                        int[] second = columns[1];
+                        for (; row < rows; row++) {
+                            results[row] = arity2.invoke(first[row], second[row]);
+                        }
+                        break;
+                    case 3:
+                        Arity3 arity3 = (Arity3) invoker;
+                        for (; row < rows; row++) {
+                            results[row] = arity3.invoke(columns[0][row], columns[1][row], columns[2][row]);
+                        }
+                        break;
+                    default:
+                        int[] params = new int[parameterCount];
+                        for (; row < rows; row++) {
+                            for (int column = 0; column < parameterCount; column++) {
+                                params[column] = columns[column][row];
+                            }
+                            results[row] = invoke(params);
+                        }
+                }
+                return rows;
+            } catch (RuntimeException e) {
+                return row;
+            }
+        }
+
+        // params must hold exactly getParameterCount() values
+        public int invoke(int[] params) {
+            switch (parameterCount) {
+                case 0:
+                    return ((Arity0) invoker).invoke();
+                case 1:
+                    return ((Arity1) invoker).invoke(params[0]);
+                case 2:
+                    return ((Arity2) invoker).invoke(params[0], params[1]);
+                case 3:
+                    return ((Arity3) invoker).invoke(params[0], params[1], params[2]);
+                default:
+                    try {
+                        return (int) ((MethodHandle) invoker).invokeExact(params);
+                    } catch (RuntimeException | Error e) {
+                        throw e;
+                    } catch (Throwable e) {
+                        throw new UndeclaredThrowableException(e);
+                    }
+            }
+        }
+    }
+}
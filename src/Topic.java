@@ -0,0 +1,261 @@
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public final class Topic{
+    private final String name;
+    private final PartitionLog[] partitions;
+    private final AtomicInteger nextPartition;
+    private final Set<ConsumerGroup> consumerGroups;
+    private final LongAdder[] messagesIn;
+    private final LongAdder[] bytesIn;
+    private final LatencyHistogram appendLatency;
+    // Null unless the topic is replicated across a ReplicationController cluster
+    private final PartitionReplica[] replicas;
+
+    // Durable topics keep their segments under dataDir; in-memory ones take segment buffers from pool.
+    // Replicated topics (replicationFactor > 1) need the cluster's controller and this node's id.
+    public Topic(String name, TopicConfig config, Path dataDir, BufferPool pool, MetricsRegistry metrics,
+                 ReplicationController controller, int localNodeId) {
+        if(config.isDurable() && dataDir == null){
+            throw new IllegalStateException("Durable topics need a QueueSystem created with a data directory");
+        }
+        this.name = name;
+        this.consumerGroups = new CopyOnWriteArraySet<>();
+        this.partitions = new PartitionLog[config.getPartitions()];
+        for(int i = 0; i < partitions.length; i++){
+            int partition = i;
+            LongSupplier consumedOffset = () -> getConsumedOffset(partition);
+            partitions[i] = config.isDurable()
+                    ? new SegmentedPartitionLog(dataDir.resolve(name + "-" + i), null, config, consumedOffset)
+                    : new SegmentedPartitionLog(null, pool, config, consumedOffset);
+        }
+        this.nextPartition = new AtomicInteger();
+        this.messagesIn = new LongAdder[partitions.length];
+        this.bytesIn = new LongAdder[partitions.length];
+        for(int i = 0; i < partitions.length; i++){
+            String partition = String.valueOf(i);
+            PartitionLog log = partitions[i];
+            messagesIn[i] = metrics.counter(MetricName.of("topic", "messages-in", "topic", name, "partition", partition));
+            bytesIn[i] = metrics.counter(MetricName.of("topic", "bytes-in", "topic", name, "partition", partition));
+            metrics.gauge(MetricName.of("topic", "log-start-offset", "topic", name, "partition", partition), log::getLogStartOffset);
+            metrics.gauge(MetricName.of("topic", "log-end-offset", "topic", name, "partition", partition), log::getLogEndOffset);
+        }
+        this.appendLatency = metrics.histogram(MetricName.of("topic", "append-latency-ns", "topic", name));
+        if(config.getReplicationFactor() > 1){
+            if(controller == null){
+                throw new IllegalStateException("Replicated topics need a QueueSystem that joined a ReplicationController");
+            }
+            this.replicas = new PartitionReplica[partitions.length];
+            for(int i = 0; i < partitions.length; i++){
+                PartitionReplica replica = new PartitionReplica(new TopicPartition(name, i), localNodeId, partitions[i], config, controller);
+                replicas[i] = replica;
+                String partition = String.valueOf(i);
+                metrics.gauge(MetricName.of("topic", "high-watermark", "topic", name, "partition", partition), replica::getHighWatermark);
+                metrics.gauge(MetricName.of("topic", "isr-size", "topic", name, "partition", partition), () -> {
+                    LeaderAndIsr state = replica.getState();
+                    return state == null ? 0 : state.getIsr().size();
+                });
+            }
+        } else {
+            this.replicas = null;
+        }
+    }
+
+    public void registerConsumerGroup(ConsumerGroup group){
+        consumerGroups.add(group);
+    }
+
+    // Lowest committed offset across the groups reading this topic. With no groups there is
+    // nobody to wait for, so the whole log counts as consumed.
+    public long getConsumedOffset(int partition){
+        long consumed = Long.MAX_VALUE;
+        TopicPartition topicPartition = new TopicPartition(name, partition);
+        for(ConsumerGroup group: consumerGroups){
+            consumed = Math.min(consumed, group.getCommittedOffset(topicPartition));
+        }
+        return consumed;
+    }
+
+    // Keyed messages always land on the same partition; unkeyed ones are spread round-robin.
+    public int partitionFor(String key){
+        return partitionFor(Message.utf8(key));
+    }
+
+    public int partitionFor(ByteBuffer key){
+        if(key == null){
+            return Math.floorMod(nextPartition.getAndIncrement(), partitions.length);
+        }
+        return Math.floorMod(RecordFormat.hash(key), partitions.length);
+    }
+
+    // Consumers pull from the log on their own threads, so appending never waits on delivery.
+    public long addMessage(int partition, Message message){
+        PartitionLog log = getPartition(partition);
+        long start = System.nanoTime();
+        long offset = log.append(message);
+        recordAppend(partition, start, 1, message.estimatedSizeInBytes());
+        return offset;
+    }
+
+    public long addRecord(int partition, ByteBuffer key, ByteBuffer value, ByteBuffer headers){
+        PartitionLog log = getPartition(partition);
+        int bytes = (key == null ? 0 : key.remaining()) + value.remaining();
+        long start = System.nanoTime();
+        long offset = log.append(key, value, headers);
+        recordAppend(partition, start, 1, bytes);
+        return offset;
+    }
+
+    public long addMessages(int partition, List<Message> messages){
+        PartitionLog log = getPartition(partition);
+        long bytes = 0;
+        for(Message message: messages){
+            bytes += message.estimatedSizeInBytes();
+        }
+        long start = System.nanoTime();
+        long offset = log.appendBatch(messages);
+        recordAppend(partition, start, messages.size(), bytes);
+        return offset;
+    }
+
+    // bytes-in counts the compressed size, which is what the batch occupies in the log
+    public long addCompressedBatch(int partition, CompressionCodec codec, int recordCount, ByteBuffer batch){
+        PartitionLog log = getPartition(partition);
+        int bytes = batch.remaining();
+        long start = System.nanoTime();
+        long offset = log.appendCompressedBatch(codec, recordCount, batch);
+        recordAppend(partition, start, recordCount, bytes);
+        return offset;
+    }
+
+    // Append latency includes time spent blocked on a full topic, which is what producers see.
+    private void recordAppend(int partition, long startNanos, int messages, long bytes){
+        appendLatency.record(System.nanoTime() - startNanos);
+        messagesIn[partition].add(messages);
+        bytesIn[partition].add(bytes);
+    }
+
+    // Reads stop at the high watermark, so consumers never see records that could still be lost
+    // in a leader failover.
+    public List<Message> read(int partition, long offset, int maxMessages){
+        List<Message> out = new ArrayList<>();
+        read(partition, offset, maxMessages, new RecordView(), new BatchDecompressor().collect(offset, maxMessages, out));
+        return out;
+    }
+
+    public int read(int partition, long offset, int maxRecords, RecordView view, RecordHandler handler){
+        return getPartition(partition).read(offset, getHighWatermark(partition), maxRecords, view, handler);
+    }
+
+    // The log end offset for unreplicated topics
+    public long getHighWatermark(int partition){
+        PartitionLog log = getPartition(partition);
+        return replicas == null ? log.getLogEndOffset() : replicas[partition].getHighWatermark();
+    }
+
+    public boolean isReplicated(){
+        return replicas != null;
+    }
+
+    public PartitionReplica getReplica(int partition){
+        getPartition(partition);
+        return replicas == null ? null : replicas[partition];
+    }
+
+    public boolean isLeader(int partition){
+        return replicas == null || getReplica(partition).isLeader();
+    }
+
+    // Throws unless this node may take the append with the given acks.
+    public void checkAppend(int partition, Acks acks){
+        if(replicas != null){
+            getReplica(partition).checkAppend(acks);
+        }
+    }
+
+    public void awaitReplication(int partition, long offset){
+        if(replicas != null){
+            getReplica(partition).awaitReplication(offset);
+        }
+    }
+
+    public boolean recordFollowerFetch(int partition, int replicaId, long fetchOffset){
+        return replicas != null && getReplica(partition).recordFollowerFetch(replicaId, fetchOffset);
+    }
+
+    public void appendReplica(int partition, RecordView record){
+        getPartition(partition).appendReplica(record);
+        messagesIn[partition].increment();
+        bytesIn[partition].add(record.sizeInBytes());
+    }
+
+    public void truncateTo(int partition, long offset){
+        getPartition(partition).truncateTo(offset);
+    }
+
+    public void truncateFullyAndStartAt(int partition, long offset){
+        getPartition(partition).truncateFullyAndStartAt(offset);
+    }
+
+    public long getLogStartOffset(int partition){
+        return getPartition(partition).getLogStartOffset();
+    }
+
+    public long getLogEndOffset(int partition){
+        return getPartition(partition).getLogEndOffset();
+    }
+
+    public LogSlice slice(int partition, long offset, long endOffset, int maxBytes){
+        return getPartition(partition).slice(offset, endOffset, maxBytes);
+    }
+
+    // Capped at the high watermark like reads; past the newest record this is where the tail starts.
+    public long offsetForTimestamp(int partition, long timestamp){
+        return Math.min(getPartition(partition).offsetForTimestamp(timestamp), getHighWatermark(partition));
+    }
+
+    public void maintain(){
+        for(PartitionLog partition: partitions){
+            partition.maintain();
+        }
+        if(replicas != null){
+            for(PartitionReplica replica: replicas){
+                replica.maybeShrinkIsr();
+            }
+        }
+    }
+
+    public void compact(){
+        for(PartitionLog partition: partitions){
+            partition.compact();
+        }
+    }
+
+    public void close(){
+        for(PartitionLog partition: partitions){
+            partition.close();
+        }
+    }
+
+    private PartitionLog getPartition(int partition){
+        if(partition < 0 || partition >= partitions.length){
+            throw new IllegalArgumentException("Unknown partition " + partition + " for topic " + name);
+        }
+        return partitions[partition];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+}
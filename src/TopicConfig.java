@@ -0,0 +1,179 @@
+public class TopicConfig{
+    private final int partitions;
+    private final boolean durable;
+    private final int segmentBytes;
+    private final int indexIntervalBytes;
+    private final int flushIntervalMessages;
+    private final long flushIntervalMs;
+    private final long retentionBytes;
+    private final long retentionMs;
+    private final long maxBytes;
+    private final OverflowPolicy overflowPolicy;
+    private final long maxBlockMs;
+    private final CleanupPolicy cleanupPolicy;
+    private final long tombstoneRetentionMs;
+    private final int replicationFactor;
+    private final int minInSyncReplicas;
+    private final long replicaLagTimeMs;
+
+    private TopicConfig(Builder builder) {
+        this.partitions = builder.partitions;
+        this.durable = builder.durable;
+        this.segmentBytes = builder.segmentBytes;
+        this.indexIntervalBytes = builder.indexIntervalBytes;
+        this.flushIntervalMessages = builder.flushIntervalMessages;
+        this.flushIntervalMs = builder.flushIntervalMs;
+        this.retentionBytes = builder.retentionBytes;
+        this.retentionMs = builder.retentionMs;
+        this.maxBytes = builder.maxBytes;
+        this.overflowPolicy = builder.overflowPolicy;
+        this.maxBlockMs = builder.maxBlockMs;
+        this.cleanupPolicy = builder.cleanupPolicy;
+        this.tombstoneRetentionMs = builder.tombstoneRetentionMs;
+        this.replicationFactor = builder.replicationFactor;
+        this.minInSyncReplicas = builder.minInSyncReplicas;
+        this.replicaLagTimeMs = builder.replicaLagTimeMs;
+    }
+
+    public static TopicConfig ofPartitions(int partitions){
+        return new Builder().partitions(partitions).build();
+    }
+
+    public int getPartitions() { return partitions; }
+    public boolean isDurable() { return durable; }
+    public int getSegmentBytes() { return segmentBytes; }
+    public int getIndexIntervalBytes() { return indexIntervalBytes; }
+    public int getFlushIntervalMessages() { return flushIntervalMessages; }
+    public long getFlushIntervalMs() { return flushIntervalMs; }
+    public long getRetentionBytes() { return retentionBytes; }
+    public long getRetentionMs() { return retentionMs; }
+    public long getMaxBytes() { return maxBytes; }
+    public OverflowPolicy getOverflowPolicy() { return overflowPolicy; }
+    public long getMaxBlockMs() { return maxBlockMs; }
+    public CleanupPolicy getCleanupPolicy() { return cleanupPolicy; }
+    public long getTombstoneRetentionMs() { return tombstoneRetentionMs; }
+    public int getReplicationFactor() { return replicationFactor; }
+    public int getMinInSyncReplicas() { return minInSyncReplicas; }
+    public long getReplicaLagTimeMs() { return replicaLagTimeMs; }
+
+    public static class Builder {
+        private int partitions = 1;
+        private boolean durable = false;
+        private int segmentBytes = 1024 * 1024;
+        private int indexIntervalBytes = 4096;
+        private int flushIntervalMessages = 1000;
+        private long flushIntervalMs = 1000;
+        // -1 keeps segments forever
+        private long retentionBytes = -1;
+        private long retentionMs = -1;
+        // -1 leaves the topic unbounded
+        private long maxBytes = -1;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        private long maxBlockMs = 1000;
+        private CleanupPolicy cleanupPolicy = CleanupPolicy.DELETE;
+        private long tombstoneRetentionMs = 24 * 60 * 60 * 1000L;
+        private int replicationFactor = 1;
+        private int minInSyncReplicas = 1;
+        private long replicaLagTimeMs = 10_000;
+
+        public Builder partitions(int partitions) {
+            this.partitions = partitions;
+            return this;
+        }
+
+        public Builder durable(boolean durable) {
+            this.durable = durable;
+            return this;
+        }
+
+        public Builder segmentBytes(int segmentBytes) {
+            this.segmentBytes = segmentBytes;
+            return this;
+        }
+
+        public Builder indexIntervalBytes(int indexIntervalBytes) {
+            this.indexIntervalBytes = indexIntervalBytes;
+            return this;
+        }
+
+        // 1 fsyncs every append; larger values trade durability for throughput
+        public Builder flushIntervalMessages(int flushIntervalMessages) {
+            this.flushIntervalMessages = flushIntervalMessages;
+            return this;
+        }
+
+        public Builder flushIntervalMs(long flushIntervalMs) {
+            this.flushIntervalMs = flushIntervalMs;
+            return this;
+        }
+
+        public Builder retentionBytes(long retentionBytes) {
+            this.retentionBytes = retentionBytes;
+            return this;
+        }
+
+        public Builder retentionMs(long retentionMs) {
+            this.retentionMs = retentionMs;
+            return this;
+        }
+
+        // Upper bound on segment memory (or disk) for the whole topic, split evenly across partitions.
+        // Segments are allocated whole, so each partition keeps at least two.
+        public Builder maxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        public Builder maxBlockMs(long maxBlockMs) {
+            this.maxBlockMs = maxBlockMs;
+            return this;
+        }
+
+        public Builder cleanupPolicy(CleanupPolicy cleanupPolicy) {
+            this.cleanupPolicy = cleanupPolicy;
+            return this;
+        }
+
+        // How long compaction keeps a tombstone around so consumers get to see the delete
+        public Builder tombstoneRetentionMs(long tombstoneRetentionMs) {
+            this.tombstoneRetentionMs = tombstoneRetentionMs;
+            return this;
+        }
+
+        // Copies of each partition across the nodes of a ReplicationController cluster
+        public Builder replicationFactor(int replicationFactor) {
+            this.replicationFactor = replicationFactor;
+            return this;
+        }
+
+        // acks=all publishes are refused while fewer replicas than this are in sync
+        public Builder minInSyncReplicas(int minInSyncReplicas) {
+            this.minInSyncReplicas = minInSyncReplicas;
+            return this;
+        }
+
+        // A follower that has not caught up with the leader for this long drops out of the ISR
+        public Builder replicaLagTimeMs(long replicaLagTimeMs) {
+            this.replicaLagTimeMs = replicaLagTimeMs;
+            return this;
+        }
+
+        public TopicConfig build() {
+            if(partitions <= 0){
+                throw new IllegalArgumentException("Topic needs at least one partition");
+            }
+            if(segmentBytes <= 0 || indexIntervalBytes <= 0 || flushIntervalMessages <= 0){
+                throw new IllegalArgumentException("Segment, index and flush intervals must be positive");
+            }
+            if(replicationFactor <= 0 || minInSyncReplicas <= 0 || minInSyncReplicas > replicationFactor){
+                throw new IllegalArgumentException("Need 0 < minInSyncReplicas <= replicationFactor");
+            }
+            return new TopicConfig(this);
+        }
+    }
+}
@@ -0,0 +1,5 @@
+// How a ring buffer producer or consumer waits for a sequence that is not there yet.
+// Busy-spin gives the lowest hand-off latency but burns a core per waiting thread.
+public interface WaitStrategy{
+    void idle(int attempt);
+}